@@ -25,27 +25,25 @@ package com.googlecode.droidwall;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.Manifest;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -62,15 +60,34 @@ public final class Api {
 	public static final int SPECIAL_UID_KERNEL = -11;
 	/** 脚本文件名 */
 	private static final String SCRIPT_FILE = "droidwall.sh";
+	/** 日志文件名 */
+	private static final String LOG_FILE = "droidwall.log";
+	/** 脚本执行锁 */
+	private static final Object SCRIPT_LOCK = new Object();
+	/** 正在执行或等待执行的脚本数量 */
+	private static final AtomicInteger SCRIPTS_QUEUED = new AtomicInteger();
+	/** 对话框中显示的最大输出长度 */
+	private static final int MAX_DISPLAY_OUTPUT = 64 * 1024;
+	/** 每个程序跟踪的目标地址计数器数量 */
+	private static final int LOG_TOP_COUNTERS = 16;
+	/** 每个程序显示的目标地址数量 */
+	private static final int LOG_TOP_SHOWN = 8;
+	/** 日志中统计的时间范围 (最近24小时) */
+	private static final long LOG_STATS_PERIOD = 24 * 60 * 60 * 1000L;
+	/** 目标地址过多时按网络汇总的前缀长度 */
+	private static final int LOG_ROLLUP_PREFIX = 24;
 
 	// 设置
 	public static final String PREFS_NAME = "DroidWallPrefs";
+	public static final String PREF_PASSWORD = "Password";
+	public static final String PREF_ENABLED = "Enabled";
+	public static final String PREF_RULES_PROBLEM = "RulesProblem";
+	// 旧设置 (已迁移到 RuleStore)
 	public static final String PREF_3G_UIDS = "AllowedUids3G";
 	public static final String PREF_WIFI_UIDS = "AllowedUidsWifi";
-	public static final String PREF_PASSWORD = "Password";
 	public static final String PREF_MODE = "BlockMode";
-	public static final String PREF_ENABLED = "Enabled";
 	public static final String PREF_LOGENABLED = "LogEnabled";
+	public static final String PREF_FASTPATH = "FastPathEnabled";
 	// 模式
 	public static final String MODE_WHITELIST = "whitelist";
 	public static final String MODE_BLACKLIST = "blacklist";
@@ -78,13 +95,38 @@ public final class Api {
 	public static final String STATUS_CHANGED_MSG = "com.googlecode.droidwall.intent.action.STATUS_CHANGED";
 	public static final String TOGGLE_REQUEST_MSG = "com.googlecode.droidwall.intent.action.TOGGLE_REQUEST";
 	public static final String STATUS_EXTRA = "com.googlecode.droidwall.intent.extra.STATUS";
+	// 操作阶段 (see FirewallExecutor.ProgressListener)
+	public static final int STAGE_PROBE = 1;
+	public static final int STAGE_COMPILE = 2;
+	public static final int STAGE_EXEC = 3;
+	public static final int STAGE_VERIFY = 4;
+	public static final int STAGE_DONE = 5;
 
-	// 应用程序缓存
-	public static DroidApp applications[] = null;
+	// 连接标记 (fast path): verdict + rules generation
+	private static final int CONNMARK_ALLOW = 0x01000000;
+	private static final int CONNMARK_BLOCK = 0x02000000;
+	private static final int CONNMARK_GENERATION = 0x00ffff00;
+	private static final int CONNMARK_MASK = CONNMARK_ALLOW | CONNMARK_BLOCK | CONNMARK_GENERATION;
+	// NFLOG 日志组 (用户空间接收)
+	static final int NFLOG_GROUP = 40;
+	/** 内核批量发送前积累的数据包数量 */
+	static final int NFLOG_THRESHOLD = 16;
+	// 网络接口
+	static final String ITFS_WIFI[] = { "tiwlan+", "wlan+", "eth+" };
+	static final String ITFS_3G[] = { "rmnet+", "pdp+", "ppp+", "uwbr+", "wimax+" };
+
+	// 特殊程序名称 (see specialUids)
+	private static final String SPECIAL_NAMES[] = { "(Any application) - Same as selecting all applications",
+			"(Kernel) - Linux kernel", "(root) - Applications running as root", "Media server", "VPN networking",
+			"Linux shell" };
+	// 应用程序缓存 (不可变快照, 只在 APPS_LOCK 内替换)
+	private static volatile AppTable applications = null;
+	// 应用程序缓存锁
+	private static final Object APPS_LOCK = new Object();
+	// 正在编辑的选择 (null 表示尚未开始)
+	private static SelectionEdit selection = null;
 	// 是否有 root 权限
 	private static boolean hasroot = false;
-	// 是否 ARMv6 设备 (-1: unknown, 0: no, 1: yes)
-	private static int isARMv6 = -1;
 
 	/**
 	 * Display a simple alert box
@@ -94,87 +136,53 @@ public final class Api {
 	 * @param msg
 	 *            message
 	 */
-	public static void alert(Context ctx, CharSequence msg) {
+	public static void alert(final Context ctx, final CharSequence msg) {
 		if (ctx != null) {
+			if (Looper.myLooper() != Looper.getMainLooper()) {
+				// Called from a background thread (E.g.: the firewall executor)
+				new Handler(Looper.getMainLooper()).post(new Runnable() {
+					public void run() {
+						alert(ctx, msg);
+					}
+				});
+				return;
+			}
 			new AlertDialog.Builder(ctx).setNeutralButton(android.R.string.ok, null).setMessage(msg).show();
 		}
 	}
 
 	/**
-	 * Check if this is an ARMv6 device
+	 * Display a toast message (may be called from any thread)
 	 * 
-	 * @return true if this is ARMv6
+	 * @param ctx
+	 *            context
+	 * @param resid
+	 *            message resource id
 	 */
-	private static boolean isARMv6() {
-		if (isARMv6 == -1) {
-			BufferedReader r = null;
-			try {
-				isARMv6 = 0;
-				r = new BufferedReader(new FileReader("/proc/cpuinfo"));
-				for (String line = r.readLine(); line != null; line = r.readLine()) {
-					if (line.startsWith("Processor") && line.contains("ARMv6")) {
-						isARMv6 = 1;
-						break;
-					} else if (line.startsWith("CPU architecture") && (line.contains("6TE") || line.contains("5TE"))) {
-						isARMv6 = 1;
-						break;
-					}
+	public static void toast(final Context ctx, final int resid) {
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				public void run() {
+					toast(ctx, resid);
 				}
-			} catch (Exception ex) {
-			} finally {
-				if (r != null)
-					try {
-						r.close();
-					} catch (Exception ex) {
-					}
-			}
+			});
+			return;
 		}
-		return (isARMv6 == 1);
+		Toast.makeText(ctx, resid, Toast.LENGTH_LONG).show();
 	}
 
 	/**
-	 * Create the generic shell script header used to determine which iptables
-	 * binary to use.
+	 * Create the generic shell script header, defining the tool variables
+	 * with the paths resolved by the toolchain probe.
 	 * 
 	 * @param ctx
 	 *            context
 	 * @return script header
+	 * @throws IOException
+	 *             if the toolchain could not be probed
 	 */
-	private static String scriptHeader(Context ctx) {
-		final String dir = ctx.getCacheDir().getAbsolutePath();
-		final String myiptables = dir + (isARMv6() ? "/iptables_g1" : "/iptables_n1");
-		return "" + "IPTABLES=iptables\n" + "BUSYBOX=busybox\n" + "GREP=grep\n" + "ECHO=echo\n"
-				+ "# Try to find busybox\n" + "if "
-				+ dir
-				+ "/busybox_g1 --help >/dev/null 2>/dev/null ; then\n"
-				+ "	BUSYBOX="
-				+ dir
-				+ "/busybox_g1\n"
-				+ "	GREP=\"$BUSYBOX grep\"\n"
-				+ "	ECHO=\"$BUSYBOX echo\"\n"
-				+ "elif busybox --help >/dev/null 2>/dev/null ; then\n"
-				+ "	BUSYBOX=busybox\n"
-				+ "elif /system/xbin/busybox --help >/dev/null 2>/dev/null ; then\n"
-				+ "	BUSYBOX=/system/xbin/busybox\n"
-				+ "elif /system/bin/busybox --help >/dev/null 2>/dev/null ; then\n"
-				+ "	BUSYBOX=/system/bin/busybox\n"
-				+ "fi\n"
-				+ "# Try to find grep\n"
-				+ "if ! $ECHO 1 | $GREP -q 1 >/dev/null 2>/dev/null ; then\n"
-				+ "	if $ECHO 1 | $BUSYBOX grep -q 1 >/dev/null 2>/dev/null ; then\n"
-				+ "		GREP=\"$BUSYBOX grep\"\n"
-				+ "	fi\n"
-				+ "	# Grep is absolutely required\n"
-				+ "	if ! $ECHO 1 | $GREP -q 1 >/dev/null 2>/dev/null ; then\n"
-				+ "		$ECHO The grep command is required. DroidWall will not work.\n"
-				+ "		exit 1\n"
-				+ "	fi\n"
-				+ "fi\n"
-				+ "# Try to find iptables\n"
-				+ "if "
-				+ myiptables
-				+ " --version >/dev/null 2>/dev/null ; then\n"
-				+ "	IPTABLES=" + myiptables + "\n" + "fi\n" + "";
+	private static String scriptHeader(Context ctx) throws IOException {
+		return Toolchain.get(ctx).header();
 	}
 
 	/**
@@ -211,157 +219,371 @@ public final class Api {
 	}
 
 	/**
-	 * Purge and re-add all rules (internal implementation).
+	 * Compile the firewall rules for the given UIDs.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param tools
+	 *            probed toolchain
+	 * @param uidsWifi
+	 *            set of selected UIDs for WIFI to allow or disallow (depending
+	 *            on the working mode)
+	 * @param uids3g
+	 *            set of selected UIDs for 2G/3G to allow or disallow
+	 *            (depending on the working mode)
+	 * @param whitelist
+	 *            true if working on white-list mode
+	 * @param logenabled
+	 *            true if blocked packets should be logged
+	 * @param fastpath
+	 *            true if the verdict of each connection should be cached on
+	 *            its connection mark
+	 * @param generation
+	 *            generation of the saved rules (see {@link RuleStore#generation()})
+	 * @return compiled rule set
+	 */
+	static RuleSet compileRules(Context ctx, Toolchain tools, IntSet uidsWifi, IntSet uids3g,
+			boolean whitelist, boolean logenabled, boolean fastpath, int generation) {
+		final boolean blacklist = !whitelist;
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		rules.chain("droidwall-3g");
+		rules.chain("droidwall-wifi");
+		rules.chain("droidwall-reject");
+		String allowMark = null;
+		if (fastpath) {
+			// Connections already judged by the current rules skip the UID
+			// rules. Marks left by older rules carry another generation and
+			// are simply judged again. The marks are replaced in place by
+			// the incremental apply, so every saved change invalidates them.
+			final int bits = (generation << 8) & CONNMARK_GENERATION;
+			allowMark = "0x" + Integer.toHexString(CONNMARK_ALLOW | bits) + "/0x"
+					+ Integer.toHexString(CONNMARK_MASK);
+			final String blockMark = "0x" + Integer.toHexString(CONNMARK_BLOCK | bits) + "/0x"
+					+ Integer.toHexString(CONNMARK_MASK);
+			rules.appendReplaceable("droidwall", "-m connmark --mark " + allowMark + " -j RETURN");
+			rules.appendReplaceable("droidwall", "-m connmark --mark " + blockMark + " -j droidwall-reject");
+			rules.appendReplaceable("droidwall-reject", "-j CONNMARK --set-mark " + blockMark);
+		}
+		// Check if logging is enabled
+		if (logenabled && tools.nflog()) {
+			// packets are sent in batches to the log collector (not to dmesg)
+			// (options in the same order "iptables -S" prints them)
+			rules.appendOptional("droidwall-reject", "-j NFLOG --nflog-prefix \"[DROIDWALL]\" --nflog-group "
+					+ NFLOG_GROUP + " --nflog-threshold " + NFLOG_THRESHOLD);
+		} else if (logenabled && tools.has(Toolchain.CAP_LOG_UID)) {
+			// ignore errors on the LOG target just in case it is not available
+			rules.appendOptional("droidwall-reject", "-j LOG --log-prefix \"[DROIDWALL] \" --log-uid");
+		}
+		rules.append("droidwall-reject", "-j REJECT");
+		if (whitelist && logenabled) {
+			// Allow DNS lookups on white-list for a better logging (ignore errors)
+			rules.appendOptional("droidwall", "-p udp --dport 53 -j RETURN");
+		}
+		// Main rules (per interface)
+		for (final String itf : ITFS_3G) {
+			rules.append("droidwall", "-o " + itf + " -j droidwall-3g");
+		}
+		for (final String itf : ITFS_WIFI) {
+			rules.append("droidwall", "-o " + itf + " -j droidwall-wifi");
+		}
+		// Filtering rules
+		final String targetRule = (whitelist ? "RETURN" : "droidwall-reject");
+		final boolean any_3g = uids3g.contains(SPECIAL_UID_ANY);
+		final boolean any_wifi = uidsWifi.contains(SPECIAL_UID_ANY);
+		final boolean ranges = tools.has(Toolchain.CAP_UID_RANGE);
+		int selected = 0, compiled = 0;
+		if (any_3g) {
+			if (blacklist) {
+				/* block any application on this interface */
+				rules.append("droidwall-3g", "-j " + targetRule);
+			}
+		} else {
+			/* release/block individual applications on this interface */
+			final int uids[] = sortedUids(uids3g, -1, -1);
+			selected += uids.length;
+			compiled += appendUidRules(rules, "droidwall-3g", uids, targetRule, ranges);
+		}
+		if (any_wifi) {
+			if (blacklist) {
+				/* block any application on this interface */
+				rules.append("droidwall-wifi", "-j " + targetRule);
+			}
+		} else {
+			/* release/block individual applications on this interface */
+			final int uids[];
+			if (whitelist) {
+				// When "white listing" wifi, we need to ensure that the dhcp
+				// and wifi users are allowed
+				uids = sortedUids(uidsWifi, Toolchain.systemUid(ctx, "dhcp"), Toolchain.systemUid(ctx, "wifi"));
+			} else {
+				uids = sortedUids(uidsWifi, -1, -1);
+			}
+			selected += uids.length;
+			compiled += appendUidRules(rules, "droidwall-wifi", uids, targetRule, ranges);
+		}
+		if (fastpath) {
+			// everything that was not rejected is allowed
+			rules.appendReplaceable("droidwall", "-j CONNMARK --set-mark " + allowMark);
+		}
+		Log.d("DroidWall", "Compiled " + selected + " selected UIDs into " + compiled + " owner rules"
+				+ (selected > 0 ? " (" + (100 - compiled * 100 / selected) + "% less)" : ""));
+		if (whitelist) {
+			if (!any_3g) {
+				if (uids3g.contains(SPECIAL_UID_KERNEL)) {
+					// hack to allow kernel packets on white-list
+					rules.append("droidwall-3g", "-m owner --uid-owner 0:999999999 -j droidwall-reject");
+				} else {
+					rules.append("droidwall-3g", "-j droidwall-reject");
+				}
+			}
+			if (!any_wifi) {
+				if (uidsWifi.contains(SPECIAL_UID_KERNEL)) {
+					// hack to allow kernel packets on white-list
+					rules.append("droidwall-wifi", "-m owner --uid-owner 0:999999999 -j droidwall-reject");
+				} else {
+					rules.append("droidwall-wifi", "-j droidwall-reject");
+				}
+			}
+		} else {
+			if (uids3g.contains(SPECIAL_UID_KERNEL)) {
+				// hack to BLOCK kernel packets on black-list
+				rules.append("droidwall-3g", "-m owner --uid-owner 0:999999999 -j RETURN");
+				rules.append("droidwall-3g", "-j droidwall-reject");
+			}
+			if (uidsWifi.contains(SPECIAL_UID_KERNEL)) {
+				// hack to BLOCK kernel packets on black-list
+				rules.append("droidwall-wifi", "-m owner --uid-owner 0:999999999 -j RETURN");
+				rules.append("droidwall-wifi", "-j droidwall-reject");
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Compile the firewall rules for the nftables backend.
 	 * 
 	 * @param ctx
 	 *            application context (mandatory)
 	 * @param uidsWifi
-	 *            list of selected UIDs for WIFI to allow or disallow (depending
+	 *            set of selected UIDs for WIFI to allow or disallow (depending
 	 *            on the working mode)
 	 * @param uids3g
-	 *            list of selected UIDs for 2G/3G to allow or disallow
+	 *            set of selected UIDs for 2G/3G to allow or disallow
 	 *            (depending on the working mode)
+	 * @param whitelist
+	 *            true if working on white-list mode
+	 * @param logenabled
+	 *            true if blocked packets should be logged
+	 * @param logGroup
+	 *            NFLOG group of the logged packets (-1 for the kernel log)
+	 * @return compiled rule set
+	 */
+	private static NftRuleSet compileNftRules(Context ctx, IntSet uidsWifi, IntSet uids3g,
+			boolean whitelist, boolean logenabled, int logGroup) {
+		final NftRuleSet rules = new NftRuleSet(whitelist, logenabled, logGroup);
+		rules.add("mobile", ITFS_3G, sortedUids(uids3g, -1, -1), uids3g.contains(SPECIAL_UID_ANY),
+				uids3g.contains(SPECIAL_UID_KERNEL));
+		final int wifi[];
+		if (whitelist) {
+			// dhcp and wifi users are always allowed on white-list
+			wifi = sortedUids(uidsWifi, Toolchain.systemUid(ctx, "dhcp"), Toolchain.systemUid(ctx, "wifi"));
+		} else {
+			wifi = sortedUids(uidsWifi, -1, -1);
+		}
+		rules.add("wifi", ITFS_WIFI, wifi, uidsWifi.contains(SPECIAL_UID_ANY),
+				uidsWifi.contains(SPECIAL_UID_KERNEL));
+		return rules;
+	}
+
+	/**
+	 * Sort the selected UIDs, removing duplicates and special UIDs (negative
+	 * values such as {@link #SPECIAL_UID_ANY} and {@link #SPECIAL_UID_KERNEL}).
+	 * 
+	 * @param uids
+	 *            selected UIDs
+	 * @param extra1
+	 *            additional UID to include (-1 for none)
+	 * @param extra2
+	 *            additional UID to include (-1 for none)
+	 * @return sorted unique UIDs
+	 */
+	private static int[] sortedUids(IntSet uids, int extra1, int extra2) {
+		int sorted[] = new int[uids.size() + 2];
+		int count = 0;
+		for (final int uid : uids.toSortedArray()) {
+			if (uid >= 0)
+				sorted[count++] = uid;
+		}
+		if (extra1 >= 0)
+			sorted[count++] = extra1;
+		if (extra2 >= 0)
+			sorted[count++] = extra2;
+		Arrays.sort(sorted, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || sorted[unique - 1] != sorted[i])
+				sorted[unique++] = sorted[i];
+		}
+		final int result[] = new int[unique];
+		System.arraycopy(sorted, 0, result, 0, unique);
+		return result;
+	}
+
+	/**
+	 * Append the per-UID rules of a chain, merging contiguous UIDs into a
+	 * single "--uid-owner a-b" rule when the kernel supports UID ranges.
+	 * 
+	 * @param rules
+	 *            rule set being compiled
+	 * @param chain
+	 *            chain name
+	 * @param uids
+	 *            sorted unique UIDs (see {@link #sortedUids(IntSet, int, int)})
+	 * @param target
+	 *            rule target
+	 * @param ranges
+	 *            true if UID ranges are supported
+	 * @return number of rules appended
+	 */
+	static int appendUidRules(RuleSet rules, String chain, int uids[], String target, boolean ranges) {
+		int count = 0;
+		int i = 0;
+		while (i < uids.length) {
+			final int first = uids[i];
+			int last = first;
+			if (ranges) {
+				while (i + 1 < uids.length && uids[i + 1] == last + 1) {
+					last = uids[++i];
+				}
+			}
+			i++;
+			if (last == first) {
+				rules.appendUid(chain, "-m owner --uid-owner " + first + " -j " + target);
+			} else {
+				rules.appendUid(chain, "-m owner --uid-owner " + first + "-" + last + " -j " + target);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Purge and re-add all rules (internal implementation). The rules are
+	 * committed with a single iptables-restore call when available, falling
+	 * back to the legacy script otherwise.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param uidsWifi
+	 *            set of selected UIDs for WIFI to allow or disallow (depending
+	 *            on the working mode)
+	 * @param uids3g
+	 *            set of selected UIDs for 2G/3G to allow or disallow
+	 *            (depending on the working mode)
+	 * @param generation
+	 *            generation of the saved rules (see {@link RuleStore#generation()})
 	 * @param showErrors
 	 *            indicates if errors should be alerted
+	 * @param incremental
+	 *            if true, only the difference against the currently installed
+	 *            rules is applied (when possible)
 	 */
-	private static boolean applyIptablesRulesImpl(Context ctx, List<Integer> uidsWifi, List<Integer> uids3g,
-			boolean showErrors) {
+	private static boolean applyIptablesRulesImpl(Context ctx, IntSet uidsWifi, IntSet uids3g, int generation,
+			boolean showErrors, boolean incremental) {
 		if (ctx == null) {
 			return false;
 		}
+		FirewallExecutor.stage(STAGE_PROBE);
 		assertBinaries(ctx, showErrors);
-		final String ITFS_WIFI[] = { "tiwlan+", "wlan+", "eth+" };
-		final String ITFS_3G[] = { "rmnet+", "pdp+", "ppp+", "uwbr+", "wimax+" };
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final boolean whitelist = prefs.getString(PREF_MODE, MODE_WHITELIST).equals(MODE_WHITELIST);
-		final boolean blacklist = !whitelist;
-		final boolean logenabled = ctx.getSharedPreferences(PREFS_NAME, 0).getBoolean(PREF_LOGENABLED, false);
-
-		final StringBuilder script = new StringBuilder();
+		final RuleStore store = RuleStore.get(ctx);
+		final boolean whitelist = store.isWhitelist();
+		final boolean logenabled = store.isLogEnabled();
+		final boolean fastpath = store.isFastPathEnabled();
 		try {
 			int code;
-			script.append(scriptHeader(ctx));
-			script.append(""
-					+ "$IPTABLES --version || exit 1\n"
-					+ "# Create the droidwall chains if necessary\n"
-					+ "$IPTABLES -L droidwall >/dev/null 2>/dev/null || $IPTABLES --new droidwall || exit 2\n"
-					+ "$IPTABLES -L droidwall-3g >/dev/null 2>/dev/null || $IPTABLES --new droidwall-3g || exit 3\n"
-					+ "$IPTABLES -L droidwall-wifi >/dev/null 2>/dev/null || $IPTABLES --new droidwall-wifi || exit 4\n"
-					+ "$IPTABLES -L droidwall-reject >/dev/null 2>/dev/null || $IPTABLES --new droidwall-reject || exit 5\n"
-					+ "# Add droidwall chain to OUTPUT chain if necessary\n"
-					+ "$IPTABLES -L OUTPUT | $GREP -q droidwall || $IPTABLES -A OUTPUT -j droidwall || exit 6\n"
-					+ "# Flush existing rules\n" + "$IPTABLES -F droidwall || exit 7\n"
-					+ "$IPTABLES -F droidwall-3g || exit 8\n" + "$IPTABLES -F droidwall-wifi || exit 9\n"
-					+ "$IPTABLES -F droidwall-reject || exit 10\n" + "");
-			// Check if logging is enabled
-			if (logenabled) {
-				script.append(""
-						+ "# Create the log and reject rules (ignore errors on the LOG target just in case it is not available)\n"
-						+ "$IPTABLES -A droidwall-reject -j LOG --log-prefix \"[DROIDWALL] \" --log-uid\n"
-						+ "$IPTABLES -A droidwall-reject -j REJECT || exit 11\n" + "");
-			} else {
-				script.append("" + "# Create the reject rule (log disabled)\n"
-						+ "$IPTABLES -A droidwall-reject -j REJECT || exit 11\n" + "");
-			}
-			if (whitelist && logenabled) {
-				script.append("# Allow DNS lookups on white-list for a better logging (ignore errors)\n");
-				script.append("$IPTABLES -A droidwall -p udp --dport 53 -j RETURN\n");
-			}
-			script.append("# Main rules (per interface)\n");
-			for (final String itf : ITFS_3G) {
-				script.append("$IPTABLES -A droidwall -o ").append(itf).append(" -j droidwall-3g || exit\n");
+			final Toolchain tools = Toolchain.get(ctx);
+			if (!tools.has(Toolchain.CAP_OWNER)) {
+				Log.w("DroidWall", "The iptables \"owner\" match does not seem to be supported");
 			}
-			for (final String itf : ITFS_WIFI) {
-				script.append("$IPTABLES -A droidwall -o ").append(itf).append(" -j droidwall-wifi || exit\n");
-			}
-
-			script.append("# Filtering rules\n");
-			final String targetRule = (whitelist ? "RETURN" : "droidwall-reject");
-			final boolean any_3g = uids3g.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_wifi = uidsWifi.indexOf(SPECIAL_UID_ANY) >= 0;
-			if (whitelist && !any_wifi) {
-				// When "white listing" wifi, we need to ensure that the dhcp
-				// and wifi users are allowed
-				int uid = android.os.Process.getUidForName("dhcp");
-				if (uid != -1) {
-					script.append("# dhcp user\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid)
-							.append(" -j RETURN || exit\n");
+			final StringBuilder res = new StringBuilder();
+			String cleanup = "";
+			if (tools.has(Toolchain.CAP_NFT_UID)) {
+				// UID sets are supported: use the nftables backend
+				if (fastpath) {
+					// set lookups do not depend on the number of UIDs, so
+					// verdicts are not cached there
+					Log.w("DroidWall", "Fast path requested, but not supported by the nftables backend");
 				}
-				uid = android.os.Process.getUidForName("wifi");
-				if (uid != -1) {
-					script.append("# wifi user\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid)
-							.append(" -j RETURN || exit\n");
+				FirewallExecutor.stage(STAGE_COMPILE);
+				final NftRuleSet nft = compileNftRules(ctx, uidsWifi, uids3g, whitelist, logenabled,
+						tools.nflog() ? NFLOG_GROUP : -1);
+				FirewallExecutor.stage(STAGE_EXEC);
+				if (incremental && applyNftDelta(ctx, tools, nft)) {
+					return true;
 				}
-			}
-			if (any_3g) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A droidwall-3g -j ").append(targetRule).append(" || exit\n");
+				if (isCancelled()) {
+					return false;
 				}
-			} else {
-				/* release/block individual applications on this interface */
-				for (final Integer uid : uids3g) {
-					if (uid >= 0)
-						script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner ").append(uid).append(" -j ")
-								.append(targetRule).append(" || exit\n");
+				code = runScriptAsRoot(ctx, tools.header() + nft.toScript(), res);
+				if (code == 0) {
+					return verifyRules(ctx, tools, true, showErrors);
 				}
-			}
-			if (any_wifi) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A droidwall-wifi -j ").append(targetRule).append(" || exit\n");
-				}
-			} else {
-				/* release/block individual applications on this interface */
-				for (final Integer uid : uidsWifi) {
-					if (uid >= 0)
-						script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid).append(" -j ")
-								.append(targetRule).append(" || exit\n");
+				if (isCancelled()) {
+					return false;
 				}
+				Log.d("DroidWall", "nftables apply failed (" + code + "), using iptables: " + res);
+				res.setLength(0);
 			}
-			if (whitelist) {
-				if (!any_3g) {
-					if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner 0:999999999 -j droidwall-reject || exit\n");
-					} else {
-						script.append("$IPTABLES -A droidwall-3g -j droidwall-reject || exit\n");
-					}
-				}
-				if (!any_wifi) {
-					if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner 0:999999999 -j droidwall-reject || exit\n");
-					} else {
-						script.append("$IPTABLES -A droidwall-wifi -j droidwall-reject || exit\n");
-					}
+			if (tools.has(Toolchain.CAP_NFT)) {
+				// the nftables table may be left from a previous apply (or a
+				// previous probe): never filter with both backends at once
+				cleanup = NftRuleSet.toDeleteScript();
+			}
+			FirewallExecutor.stage(STAGE_COMPILE);
+			if (fastpath && !tools.has(Toolchain.CAP_CONNMARK)) {
+				Log.w("DroidWall", "Fast path requested, but connmark is not supported");
+			}
+			final RuleSet rules = compileRules(ctx, tools, uidsWifi, uids3g, whitelist, logenabled,
+					fastpath && tools.has(Toolchain.CAP_CONNMARK), generation);
+			FirewallExecutor.stage(STAGE_EXEC);
+			if (incremental && applyDelta(ctx, rules, cleanup)) {
+				return true;
+			}
+			if (isCancelled()) {
+				return false;
+			}
+			if (tools.has(Toolchain.CAP_RESTORE)) {
+				code = runScriptAsRoot(ctx, tools.header() + cleanup + rules.toRestoreScript(), res);
+				if (code == 0) {
+					return verifyRules(ctx, tools, false, showErrors);
 				}
-			} else {
-				if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner 0:999999999 -j RETURN || exit\n");
-					script.append("$IPTABLES -A droidwall-3g -j droidwall-reject || exit\n");
+				if (isCancelled()) {
+					return false;
 				}
-				if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner 0:999999999 -j RETURN || exit\n");
-					script.append("$IPTABLES -A droidwall-wifi -j droidwall-reject || exit\n");
+				if (code == RuleSet.EXIT_NO_RESTORE) {
+					// iptables-restore is gone: probe the toolchain again next time
+					Toolchain.invalidate(ctx);
+				} else {
+					Log.d("DroidWall", "iptables-restore failed (" + code + "), using legacy script: " + res);
 				}
+				res.setLength(0);
 			}
-			final StringBuilder res = new StringBuilder();
-			code = runScriptAsRoot(ctx, script.toString(), res);
-			if (showErrors && code != 0) {
-				String msg = res.toString();
-				Log.e("DroidWall", msg);
+			code = runScriptAsRoot(ctx, tools.header() + cleanup + rules.toScript(), res);
+			if (isCancelled()) {
+				return false;
+			}
+			if (code == 0) {
+				return verifyRules(ctx, tools, false, showErrors);
+			}
+			String msg = res.toString();
+			Log.e("DroidWall", msg);
+			if (showErrors) {
 				// Remove unnecessary help message from output
 				if (msg.indexOf("\nTry `iptables -h' or 'iptables --help' for more information.") != -1) {
 					msg = msg.replace("\nTry `iptables -h' or 'iptables --help' for more information.", "");
 				}
 				alert(ctx, "Error applying iptables rules. Exit code: " + code + "\n\n" + msg.trim());
-			} else {
-				return true;
 			}
 		} catch (Exception e) {
 			if (showErrors)
@@ -370,6 +592,130 @@ public final class Api {
 		return false;
 	}
 
+	/**
+	 * Verify that the firewall rules are hooked to the output path after they
+	 * have been applied.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param tools
+	 *            probed toolchain
+	 * @param nft
+	 *            true if the nftables backend has been used
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @return true if the rules are in place
+	 */
+	private static boolean verifyRules(Context ctx, Toolchain tools, boolean nft, boolean showErrors)
+			throws IOException {
+		FirewallExecutor.stage(STAGE_VERIFY);
+		final StringBuilder res = new StringBuilder();
+		final String script = (nft ? NftRuleSet.toVerifyScript() : "$IPTABLES -L OUTPUT -n | $GREP -q droidwall\n");
+		final int code = runScriptAsRoot(ctx, tools.header() + script, res);
+		if (code != 0 && !isCancelled()) {
+			if (showErrors)
+				alert(ctx, "Error applying iptables rules: droidwall " + (nft ? "table" : "chain")
+						+ " is not referenced from OUTPUT.\n\n" + res.toString().trim());
+			return false;
+		}
+		return code == 0;
+	}
+
+	/**
+	 * @return true if the current operation has been cancelled (the calling
+	 *         thread has been interrupted)
+	 */
+	private static boolean isCancelled() {
+		return Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Apply only the difference between the installed rules and the given
+	 * rule set (per-UID rules added or removed).
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param rules
+	 *            desired rules
+	 * @param cleanup
+	 *            silent script executed before reading the installed rules
+	 *            (E.g.: removal of the nftables table)
+	 * @return true if the installed rules are now up-to-date, false if a full
+	 *         apply is required
+	 */
+	private static boolean applyDelta(Context ctx, RuleSet rules, String cleanup) {
+		try {
+			final StringBuilder res = new StringBuilder();
+			// "-S" is not supported by older iptables binaries
+			int code = runScriptAsRoot(ctx, scriptHeader(ctx) + cleanup + "$IPTABLES -S 2>/dev/null || iptables -S\n",
+					res);
+			if (code != 0) {
+				return false;
+			}
+			final String delta = rules.toDeltaScript(RuleSet.parseInstalled(res.toString()));
+			if (delta == null) {
+				return false;
+			}
+			if (delta.length() == 0) {
+				Log.d("DroidWall", "Rules already up-to-date");
+				return true;
+			}
+			res.setLength(0);
+			code = runScriptAsRoot(ctx, scriptHeader(ctx) + delta, res);
+			if (code != 0) {
+				Log.d("DroidWall", "Incremental apply failed (" + code + "): " + res);
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			Log.d("DroidWall", "Incremental apply failed: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Try to bring the installed nftables table up-to-date by adding and
+	 * deleting only the changed UID set elements, in a single transaction.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param tools
+	 *            probed toolchain
+	 * @param nft
+	 *            compiled nftables rules
+	 * @return true if the installed table is now up-to-date, false if a full
+	 *         apply is required
+	 */
+	private static boolean applyNftDelta(Context ctx, Toolchain tools, NftRuleSet nft) {
+		try {
+			final StringBuilder res = new StringBuilder();
+			int code = runScriptAsRoot(ctx, tools.header() + nft.toListScript(), res);
+			if (code != 0) {
+				return false;
+			}
+			final Map<String, int[]> installed = NftRuleSet.parseSets(res.toString());
+			final String delta = (installed == null ? null : nft.toDeltaScript(installed));
+			if (delta == null) {
+				return false;
+			}
+			if (delta.length() == 0) {
+				Log.d("DroidWall", "UID sets already up-to-date");
+				return true;
+			}
+			res.setLength(0);
+			code = runScriptAsRoot(ctx, tools.header() + delta, res);
+			if (code != 0) {
+				Log.d("DroidWall", "UID set update failed (" + code + "): " + res);
+				return false;
+			}
+			Log.d("DroidWall", "UID sets updated (" + nft.size() + " elements)");
+			return true;
+		} catch (Exception e) {
+			Log.d("DroidWall", "UID set update failed: " + e);
+			return false;
+		}
+	}
+
 	/**
 	 * Purge and re-add all saved rules (not in-memory ones). This is much
 	 * faster than just calling "applyIptablesRules", since it don't need to
@@ -384,38 +730,20 @@ public final class Api {
 		if (ctx == null) {
 			return false;
 		}
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		final List<Integer> uids_wifi = new LinkedList<Integer>();
-		if (savedUids_wifi.length() > 0) {
-			// Check which applications are allowed on wifi
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_wifi.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-					}
-				}
-			}
+		final RuleStore store = RuleStore.get(ctx);
+		final IntSet uids_wifi;
+		final IntSet uids_3g;
+		final int generation;
+		// the generation must describe exactly these UIDs
+		synchronized (store) {
+			uids_wifi = IntSet.of(store.uidsWifi());
+			uids_3g = IntSet.of(store.uids3g());
+			generation = store.generation();
 		}
-		final List<Integer> uids_3g = new LinkedList<Integer>();
-		if (savedUids_3g.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_3g.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-					}
-				}
-			}
-		}
-		return applyIptablesRulesImpl(ctx, uids_wifi, uids_3g, showErrors);
+		final boolean applied = applyIptablesRulesImpl(ctx, uids_wifi, uids_3g, generation, showErrors, true);
+		// blocked packets are collected while they are being logged
+		LogCollector.setActive(ctx, applied && store.isLogEnabled());
+		return applied;
 	}
 
 	/**
@@ -435,34 +763,28 @@ public final class Api {
 	}
 
 	/**
-	 * Save current rules using the preferences storage.
+	 * Save current rules using the rule store.
 	 * 
 	 * @param ctx
 	 *            application context (mandatory)
 	 */
 	public static void saveRules(Context ctx) {
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final DroidApp[] apps = getApps(ctx);
-		// Builds a pipe-separated list of names
-		final StringBuilder newuids_wifi = new StringBuilder();
-		final StringBuilder newuids_3g = new StringBuilder();
-		for (int i = 0; i < apps.length; i++) {
-			if (apps[i].selected_wifi) {
-				if (newuids_wifi.length() != 0)
-					newuids_wifi.append('|');
-				newuids_wifi.append(apps[i].uid);
-			}
-			if (apps[i].selected_3g) {
-				if (newuids_3g.length() != 0)
-					newuids_3g.append('|');
-				newuids_3g.append(apps[i].uid);
-			}
+		final SelectionEdit edit;
+		synchronized (APPS_LOCK) {
+			edit = selection;
 		}
-		// save the new list of UIDs
-		final Editor edit = prefs.edit();
-		edit.putString(PREF_WIFI_UIDS, newuids_wifi.toString());
-		edit.putString(PREF_3G_UIDS, newuids_3g.toString());
-		edit.commit();
+		if (edit == null) {
+			// nothing is being edited: the saved selection is up-to-date
+			return;
+		}
+		final AppTable apps = getApps(ctx);
+		if (apps == null) {
+			// the selection cannot be checked against the applications
+			Log.w("DroidWall", "Applications not available, selection not saved");
+			return;
+		}
+		// the edited selection is saved as a single unit
+		edit.commit(ctx, apps);
 	}
 
 	/**
@@ -477,15 +799,19 @@ public final class Api {
 	public static boolean purgeIptables(Context ctx, boolean showErrors) {
 		StringBuilder res = new StringBuilder();
 		try {
+			FirewallExecutor.stage(STAGE_PROBE);
 			assertBinaries(ctx, showErrors);
-			int code = runScriptAsRoot(ctx, scriptHeader(ctx) + "$IPTABLES -F droidwall\n"
-					+ "$IPTABLES -F droidwall-reject\n" + "$IPTABLES -F droidwall-3g\n"
-					+ "$IPTABLES -F droidwall-wifi\n", res);
+			final Toolchain tools = Toolchain.get(ctx);
+			FirewallExecutor.stage(STAGE_EXEC);
+			int code = runScriptAsRoot(ctx, tools.header() + "$IPTABLES -F droidwall\n"
+					+ "$IPTABLES -F droidwall-reject\n" + "$IPTABLES -F droidwall-3g\n" + "$IPTABLES -F droidwall-wifi\n"
+					+ (tools.has(Toolchain.CAP_NFT) ? NftRuleSet.toDeleteScript() : ""), res);
 			if (code == -1) {
 				if (showErrors)
 					alert(ctx, "error purging iptables. exit code: " + code + "\n" + res);
 				return false;
 			}
+			LogCollector.setActive(ctx, false);
 			return true;
 		} catch (Exception e) {
 			if (showErrors)
@@ -503,7 +829,11 @@ public final class Api {
 	public static void showIptablesRules(Context ctx) {
 		try {
 			final StringBuilder res = new StringBuilder();
-			runScriptAsRoot(ctx, scriptHeader(ctx) + "$ECHO $IPTABLES\n" + "$IPTABLES -L -v\n", res);
+			FirewallExecutor.stage(STAGE_EXEC);
+			final Toolchain tools = Toolchain.get(ctx);
+			final String script = "$ECHO $IPTABLES\n" + "$IPTABLES -L -v\n"
+					+ (tools.nft != null ? "$NFT list table " + NftRuleSet.TABLE + " 2>/dev/null\n" : "");
+			runScriptAsRoot(ctx, tools.header() + script, new ScriptOutput(res, null, MAX_DISPLAY_OUTPUT));
 			alert(ctx, res);
 		} catch (Exception e) {
 			alert(ctx, "error: " + e);
@@ -511,20 +841,16 @@ public final class Api {
 	}
 
 	/**
-	 * Display logs
+	 * Clear the collected logs and statistics (the kernel log is not changed)
 	 * 
 	 * @param ctx
 	 *            application context
-	 * @return true if the clogs were cleared
+	 * @return true if the logs were cleared
 	 */
 	public static boolean clearLog(Context ctx) {
 		try {
-			final StringBuilder res = new StringBuilder();
-			int code = runScriptAsRoot(ctx, "dmesg -c >/dev/null || exit\n", res);
-			if (code != 0) {
-				alert(ctx, res);
-				return false;
-			}
+			LogRing.get(ctx).clear();
+			BlockStats.get(ctx).clear(ctx);
 			return true;
 		} catch (Exception e) {
 			alert(ctx, "error: " + e);
@@ -539,78 +865,98 @@ public final class Api {
 	 *            application context
 	 */
 	public static void showLog(Context ctx) {
+		final File file = new File(ctx.getCacheDir(), LOG_FILE);
 		try {
+			FirewallExecutor.stage(STAGE_EXEC);
 			StringBuilder res = new StringBuilder();
-			int code = runScriptAsRoot(ctx, scriptHeader(ctx) + "dmesg | $GREP DROIDWALL\n", res);
-			if (code != 0) {
+			final IntMap<LogInfo> map = new IntMap<LogInfo>();
+			// Packets are folded into the counters as the lines are parsed
+			final LogParser parser = new LogParser(new LogParser.Sink() {
+				public void onPacket(int uid, int dst, int port, int proto, int itf) {
+					LogInfo loginfo = map.get(uid);
+					if (loginfo == null) {
+						loginfo = new LogInfo();
+						map.put(uid, loginfo);
+					}
+					loginfo.totalBlocked += 1;
+					if (dst != 0) {
+						loginfo.hosts.add(dst);
+						loginfo.networks.add(dst);
+					}
+				}
+			});
+			final LogRing ring = LogRing.get(ctx);
+			if (isEnabled(ctx) && RuleStore.get(ctx).isLogEnabled()) {
+				LogCollector.setActive(ctx, true);
+			}
+			if (LogCollector.isRunning()) {
+				// collect the records logged since the last poll first (the
+				// first poll also copies the records already on the kernel log)
+				LogCollector.catchUp();
+			}
+			if (LogCollector.isRunning() || !ring.isEmpty()) {
+				// the collected records are read locally
+				final byte records[] = ring.read();
+				parser.parse(records, 0, records.length);
+			} else if (!readKernelLog(ctx, parser, file, res)) {
+				// the collector is not working, and the kernel log could not
+				// be read either
 				if (res.length() == 0) {
 					res.append("Log is empty");
 				}
 				alert(ctx, res);
 				return;
 			}
-			final BufferedReader r = new BufferedReader(new StringReader(res.toString()));
-			final Integer unknownUID = -99;
 			res = new StringBuilder();
-			String line;
-			int start, end;
-			Integer appid;
-			final HashMap<Integer, LogInfo> map = new HashMap<Integer, LogInfo>();
-			LogInfo loginfo = null;
-			while ((line = r.readLine()) != null) {
-				if (line.indexOf("[DROIDWALL]") == -1)
-					continue;
-				appid = unknownUID;
-				if (((start = line.indexOf("UID=")) != -1) && ((end = line.indexOf(" ", start)) != -1)) {
-					appid = Integer.parseInt(line.substring(start + 4, end));
-				}
-				loginfo = map.get(appid);
-				if (loginfo == null) {
-					loginfo = new LogInfo();
-					map.put(appid, loginfo);
-				}
-				loginfo.totalBlocked += 1;
-				if (((start = line.indexOf("DST=")) != -1) && ((end = line.indexOf(" ", start)) != -1)) {
-					String dst = line.substring(start + 4, end);
-					if (loginfo.dstBlocked.containsKey(dst)) {
-						loginfo.dstBlocked.put(dst, loginfo.dstBlocked.get(dst) + 1);
-					} else {
-						loginfo.dstBlocked.put(dst, 1);
-					}
-				}
+			LogInfo loginfo;
+			final AppTable apps = getApps(ctx);
+			final BlockStats stats = BlockStats.get(ctx);
+			final long since = System.currentTimeMillis() - LOG_STATS_PERIOD;
+			// the statistics may have UIDs whose records already left the ring
+			final IntSet ids = stats.uids(since);
+			for (int id : map.keys()) {
+				ids.add(id);
 			}
-			final DroidApp[] apps = getApps(ctx);
-			for (Integer id : map.keySet()) {
+			for (int id : ids.toSortedArray()) {
 				res.append("App ID ");
-				if (id != unknownUID) {
+				if (id != SPECIAL_UID_KERNEL) {
 					res.append(id);
-					for (DroidApp app : apps) {
-						if (app.uid == id) {
-							res.append(" (").append(app.names[0]);
-							if (app.names.length > 1) {
-								res.append(", ...)");
-							} else {
-								res.append(")");
-							}
-							break;
+					final int index = apps.indexOf(id);
+					if (index != -1) {
+						res.append(" (").append(apps.name(index, 0));
+						if (apps.nameCount(index) > 1) {
+							res.append(", ...)");
+						} else {
+							res.append(")");
 						}
 					}
 				} else {
 					res.append("(kernel)");
 				}
 				loginfo = map.get(id);
-				res.append(" - Blocked ").append(loginfo.totalBlocked).append(" packets");
-				if (loginfo.dstBlocked.size() > 0) {
-					res.append(" (");
-					boolean first = true;
-					for (String dst : loginfo.dstBlocked.keySet()) {
-						if (!first) {
-							res.append(", ");
-						}
-						res.append(loginfo.dstBlocked.get(dst)).append(" packets for ").append(dst);
-						first = false;
+				if (loginfo != null) {
+					res.append(" - Blocked ").append(loginfo.totalBlocked).append(" packets");
+					if (loginfo.hosts.total() > 0) {
+						// too many distinct hosts: report them per network
+						final TopDestinations dsts = (loginfo.hosts.isApproximate() ? loginfo.networks
+								: loginfo.hosts);
+						res.append(" (");
+						dsts.appendTo(res, LOG_TOP_SHOWN);
+						res.append(")");
+					}
+				}
+				// the statistics also count the records that left the ring
+				final BlockStats.Counts counts = stats.query(id, BlockStats.ANY_ITF, since);
+				if (counts.total() > 0) {
+					int wifi = 0, mobile = 0;
+					for (int i = 0; i < counts.size(); i++) {
+						if (counts.itf(i) == LogParser.ITF_WIFI)
+							wifi += counts.count(i);
+						else if (counts.itf(i) == LogParser.ITF_3G)
+							mobile += counts.count(i);
 					}
-					res.append(")");
+					res.append("\nLast 24h: ").append(counts.total()).append(" packets (").append(wifi)
+							.append(" over Wi-fi, ").append(mobile).append(" over 2G/3G)");
 				}
 				res.append("\n\n");
 			}
@@ -620,7 +966,62 @@ public final class Api {
 			alert(ctx, res);
 		} catch (Exception e) {
 			alert(ctx, "error: " + e);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Copy the blocked packet lines of the kernel log to a file. The kernel
+	 * log is only read (never cleared), and the lines are written to the file
+	 * by the root process, so they never go through the shell output as
+	 * strings.
+	 * 
+	 * @param ctx
+	 *            application context
+	 * @param file
+	 *            destination file (readable by the application)
+	 * @param res
+	 *            receives the error messages
+	 * @return script exit code (1 if there are no blocked packets)
+	 * @throws IOException
+	 *             on error
+	 */
+	static int dumpKernelLog(Context ctx, File file, StringBuilder res) throws IOException {
+		final String path = file.getAbsolutePath();
+		return runScriptAsRoot(ctx, scriptHeader(ctx) + "dmesg | $GREP DROIDWALL >\"" + path + "\"\n" + "RC=$?\n"
+				+ "chmod 644 \"" + path + "\"\n" + "exit $RC\n", new ScriptOutput(res, null, MAX_DISPLAY_OUTPUT));
+	}
+
+	/**
+	 * Parse the blocked packets of the kernel log (used when the log collector
+	 * is not available)
+	 * 
+	 * @param ctx
+	 *            application context
+	 * @param parser
+	 *            log parser
+	 * @param file
+	 *            temporary file
+	 * @param res
+	 *            receives the error messages
+	 * @return false if the kernel log could not be read (or has no blocked
+	 *         packets)
+	 * @throws IOException
+	 *             on error
+	 */
+	private static boolean readKernelLog(Context ctx, LogParser parser, File file, StringBuilder res)
+			throws IOException {
+		if (dumpKernelLog(ctx, file, res) != 0) {
+			return false;
+		}
+		final InputStream in = new FileInputStream(file);
+		try {
+			parser.parse(in);
+		} finally {
+			in.close();
 		}
+		return true;
 	}
 
 	/**
@@ -628,133 +1029,237 @@ public final class Api {
 	 *            application context (mandatory)
 	 * @return a list of applications
 	 */
-	public static DroidApp[] getApps(Context ctx) {
-		if (applications != null) {
+	public static AppTable getApps(Context ctx) {
+		final AppTable cached = applications;
+		if (cached != null) {
 			// return cached instance
-			return applications;
+			return cached;
 		}
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		// allowed application names separated by pipe '|' (persisted)
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		int selected_wifi[] = new int[0];
-		int selected_3g[] = new int[0];
-		if (savedUids_wifi.length() > 0) {
-			// Check which applications are allowed
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			selected_wifi = new int[tok.countTokens()];
-			for (int i = 0; i < selected_wifi.length; i++) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						selected_wifi[i] = Integer.parseInt(uid);
-					} catch (Exception ex) {
-						selected_wifi[i] = -1;
-					}
-				}
+		try {
+			final AppCatalog catalog = AppCatalog.get(ctx);
+			if (catalog.isEmpty() && catalog.reconcile(ctx)) {
+				// first run: the catalog has never been saved
+				catalog.save(ctx);
 			}
-			// Sort the array to allow using "Arrays.binarySearch" later
-			Arrays.sort(selected_wifi);
-		}
-		if (savedUids_3g.length() > 0) {
-			// Check which applications are allowed
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			selected_3g = new int[tok.countTokens()];
-			for (int i = 0; i < selected_3g.length; i++) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						selected_3g[i] = Integer.parseInt(uid);
-					} catch (Exception ex) {
-						selected_3g[i] = -1;
-					}
+			final AppTable apps;
+			synchronized (APPS_LOCK) {
+				if (applications == null) {
+					applications = buildApps(ctx, catalog);
 				}
+				apps = applications;
 			}
-			// Sort the array to allow using "Arrays.binarySearch" later
-			Arrays.sort(selected_3g);
+			// labels that are not cached are displayed by their package name
+			// until they get resolved on the background
+			LabelResolver.start(ctx);
+			return apps;
+		} catch (Exception e) {
+			alert(ctx, "error: " + e);
 		}
-		try {
-			final PackageManager pkgmanager = ctx.getPackageManager();
-			final List<ApplicationInfo> installed = pkgmanager.getInstalledApplications(0);
-			final HashMap<Integer, DroidApp> map = new HashMap<Integer, DroidApp>();
-			final Editor edit = prefs.edit();
-			boolean changed = false;
-			String name = null;
-			String cachekey = null;
-			DroidApp app = null;
-			for (final ApplicationInfo apinfo : installed) {
-				app = map.get(apinfo.uid);
-				// filter applications which are not allowed to access the
-				// Internet
-				if (app == null
-						&& PackageManager.PERMISSION_GRANTED != pkgmanager.checkPermission(
-								Manifest.permission.INTERNET, apinfo.packageName)) {
-					continue;
-				}
-				// try to get the application label from our cache -
-				// getApplicationLabel() is horribly slow!!!!
-				cachekey = "cache.label." + apinfo.packageName;
-				name = prefs.getString(cachekey, "");
-				if (name.length() == 0) {
-					// get label and put on cache
-					name = pkgmanager.getApplicationLabel(apinfo).toString();
-					edit.putString(cachekey, name);
-					changed = true;
-				}
-				if (app == null) {
-					app = new DroidApp();
-					app.uid = apinfo.uid;
-					app.names = new String[] { name };
-					map.put(apinfo.uid, app);
-				} else {
-					final String newnames[] = new String[app.names.length + 1];
-					System.arraycopy(app.names, 0, newnames, 0, app.names.length);
-					newnames[app.names.length] = name;
-					app.names = newnames;
-				}
-				// check if this application is selected
-				if (!app.selected_wifi && Arrays.binarySearch(selected_wifi, app.uid) >= 0) {
-					app.selected_wifi = true;
-				}
-				if (!app.selected_3g && Arrays.binarySearch(selected_3g, app.uid) >= 0) {
-					app.selected_3g = true;
-				}
+		return null;
+	}
+
+	/**
+	 * @return the current application table, or null if it has not been
+	 *         loaded yet
+	 */
+	static AppTable cachedApps() {
+		return applications;
+	}
+
+	/**
+	 * Get the selection being edited. It starts as the saved selection and is
+	 * saved by {@link #saveRules(Context)}.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return selection edit buffer
+	 */
+	static SelectionEdit selection(Context ctx) {
+		synchronized (APPS_LOCK) {
+			if (selection == null) {
+				selection = new SelectionEdit(RuleStore.get(ctx));
 			}
-			if (changed) {
-				edit.commit();
+			return selection;
+		}
+	}
+
+	/**
+	 * Discard the selection being edited (changes that have not been saved
+	 * are lost). The next call to {@link #selection(Context)} starts again
+	 * from the saved selection.
+	 */
+	static void discardSelection() {
+		synchronized (APPS_LOCK) {
+			selection = null;
+		}
+	}
+
+	/**
+	 * Build the application table from the catalog
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param catalog
+	 *            application catalog
+	 * @return application table
+	 */
+	private static AppTable buildApps(Context ctx, AppCatalog catalog) {
+		final AppTable.Builder builder = new AppTable.Builder();
+		for (final AppCatalog.Entry entry : catalog.entries()) {
+			// filter applications which are not allowed to access the
+			// Internet
+			if (entry.internet) {
+				builder.add(entry.uid, entry.packageName, entry.name());
 			}
-			/* add special applications to the list */
-			final DroidApp special[] = {
-					new DroidApp(SPECIAL_UID_ANY, "(Any application) - Same as selecting all applications", false,
-							false),
-					new DroidApp(SPECIAL_UID_KERNEL, "(Kernel) - Linux kernel", false, false),
-					new DroidApp(android.os.Process.getUidForName("root"), "(root) - Applications running as root",
-							false, false),
-					new DroidApp(android.os.Process.getUidForName("media"), "Media server", false, false),
-					new DroidApp(android.os.Process.getUidForName("vpn"), "VPN networking", false, false),
-					new DroidApp(android.os.Process.getUidForName("shell"), "Linux shell", false, false), };
+		}
+		/* add special applications to the list */
+		final int special[] = specialUids(ctx);
+		for (int i = 0; i < special.length; i++) {
+			if (special[i] != -1 && !builder.contains(special[i])) {
+				builder.add(special[i], null, SPECIAL_NAMES[i]);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return UIDs of the special applications (see {@link #SPECIAL_NAMES}),
+	 *         -1 if not available on this device
+	 */
+	private static int[] specialUids(Context ctx) {
+		return new int[] { SPECIAL_UID_ANY, SPECIAL_UID_KERNEL, Toolchain.systemUid(ctx, "root"),
+				Toolchain.systemUid(ctx, "media"), Toolchain.systemUid(ctx, "vpn"), Toolchain.systemUid(ctx, "shell") };
+	}
+
+	/**
+	 * Called when a package has been installed, updated or changed. The
+	 * package is inspected again and only the affected application entry is
+	 * patched.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param packageName
+	 *            package name
+	 */
+	public static void packageChanged(Context ctx, String packageName) {
+		final AppCatalog catalog = AppCatalog.get(ctx);
+		final int olduid = catalog.uid(packageName);
+		catalog.update(ctx, packageName);
+		catalog.save(ctx);
+		final int newuid = catalog.uid(packageName);
+		patchApplication(ctx, olduid);
+		if (newuid != olduid) {
+			patchApplication(ctx, newuid);
+		}
+	}
+
+	/**
+	 * Called when a package has been uninstalled. Only the affected
+	 * application entry is patched.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param packageName
+	 *            package name
+	 */
+	public static void packageRemoved(Context ctx, String packageName) {
+		final AppCatalog catalog = AppCatalog.get(ctx);
+		final int uid = catalog.uid(packageName);
+		catalog.remove(ctx, packageName);
+		catalog.save(ctx);
+		patchApplication(ctx, uid);
+	}
+
+	/**
+	 * Called on the background when a batch of labels has been resolved.
+	 * Only the names of the packages are replaced on the application table,
+	 * which is copied once for the whole batch (the catalog is not locked).
+	 * 
+	 * @param labels
+	 *            resolved labels per package name
+	 */
+	static void labelsResolved(Map<String, String> labels) {
+		synchronized (APPS_LOCK) {
+			final AppTable apps = applications;
+			if (apps != null) {
+				applications = apps.withPackageNames(labels);
+			}
+		}
+	}
+
+	/**
+	 * Patch the application entry of a single UID, after the packages
+	 * sharing it have changed (names are merged again, the entry is added or
+	 * removed if necessary).
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param uid
+	 *            linux user id
+	 */
+	private static void patchApplication(Context ctx, int uid) {
+		if (applications == null || uid < 0) {
+			return;
+		}
+		final List<AppCatalog.Entry> entries = AppCatalog.get(ctx).entries(uid);
+		final List<String> names = new ArrayList<String>(entries.size());
+		for (AppCatalog.Entry entry : entries) {
+			if (entry.internet)
+				names.add(entry.name());
+		}
+		if (names.isEmpty()) {
+			final int special[] = specialUids(ctx);
 			for (int i = 0; i < special.length; i++) {
-				app = special[i];
-				if (app.uid != -1 && !map.containsKey(app.uid)) {
-					// check if this application is allowed
-					if (Arrays.binarySearch(selected_wifi, app.uid) >= 0) {
-						app.selected_wifi = true;
-					}
-					if (Arrays.binarySearch(selected_3g, app.uid) >= 0) {
-						app.selected_3g = true;
-					}
-					map.put(app.uid, app);
+				if (special[i] == uid) {
+					// no more packages, but still a special application
+					names.add(SPECIAL_NAMES[i]);
 				}
 			}
-			applications = new DroidApp[map.size()];
-			int index = 0;
-			for (DroidApp application : map.values())
-				applications[index++] = application;
-			return applications;
-		} catch (Exception e) {
-			alert(ctx, "error: " + e);
 		}
-		return null;
+		synchronized (APPS_LOCK) {
+			final AppTable apps = applications;
+			if (apps == null) {
+				return;
+			}
+			final int index = apps.indexOf(uid);
+			if (index == -1 ? names.isEmpty() : names.size() == apps.nameCount(index)) {
+				// same rows: only the names of this row are replaced
+				if (index != -1) {
+					applications = apps.withNames(index, names.toArray(new String[names.size()]));
+				}
+				return;
+			}
+			// an application or a shared package has been added or removed
+			applications = buildApps(ctx, AppCatalog.get(ctx));
+		}
+	}
+
+	/**
+	 * Compare the application catalog with the installed packages, updating
+	 * the application list if anything has changed. Selections that have not
+	 * been saved yet are kept. This may take a while, so it must not be called
+	 * from the main thread.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return true if the application list has changed
+	 */
+	public static boolean reconcileApps(Context ctx) {
+		final AppCatalog catalog = AppCatalog.get(ctx);
+		final boolean changed = catalog.reconcile(ctx);
+		// saved anyway, to keep the reconciliation time
+		catalog.save(ctx);
+		if (!changed) {
+			return false;
+		}
+		// the selection is kept apart, so nothing is lost
+		synchronized (APPS_LOCK) {
+			applications = buildApps(ctx, catalog);
+		}
+		LabelResolver.start(ctx);
+		return true;
 	}
 
 	/**
@@ -803,25 +1308,63 @@ public final class Api {
 	 * @return the script exit code
 	 */
 	public static int runScript(Context ctx, String script, StringBuilder res, long timeout, boolean asroot) {
+		return runScript(ctx, script, new ScriptOutput(res, null, -1), timeout, asroot);
+	}
+
+	/**
+	 * Runs a script, wither as root or as a regular user (multiple commands
+	 * separated by "\n"), streaming its output.
+	 * 
+	 * @param ctx
+	 *            mandatory context
+	 * @param script
+	 *            the script to be executed
+	 * @param out
+	 *            receives the script output (stdout + stderr)
+	 * @param timeout
+	 *            timeout in milliseconds (-1 for none)
+	 * @return the script exit code
+	 */
+	public static int runScript(Context ctx, String script, ScriptOutput out, long timeout, boolean asroot) {
 		final File file = new File(ctx.getCacheDir(), SCRIPT_FILE);
-		final ScriptRunner runner = new ScriptRunner(file, script, res, asroot);
-		runner.start();
+		SCRIPTS_QUEUED.incrementAndGet();
 		try {
-			if (timeout > 0) {
-				runner.join(timeout);
-			} else {
-				runner.join();
-			}
-			if (runner.isAlive()) {
-				// Timed-out
-				runner.interrupt();
-				runner.join(150);
-				runner.destroy();
-				runner.join(50);
+			// Only one script at a time, since they all share the same script file
+			synchronized (SCRIPT_LOCK) {
+				final ScriptRunner runner = new ScriptRunner(file, script, out, asroot);
+				runner.start();
+				try {
+					if (timeout > 0) {
+						runner.join(timeout);
+					} else {
+						runner.join();
+					}
+					if (runner.isAlive()) {
+						// Timed-out
+						runner.interrupt();
+						runner.join(150);
+						runner.destroy();
+						runner.join(50);
+					}
+				} catch (InterruptedException ex) {
+					// Operation cancelled: stop the script and keep the interrupted state
+					runner.interrupt();
+					runner.destroy();
+					Thread.currentThread().interrupt();
+				}
+				return runner.exitcode;
 			}
-		} catch (InterruptedException ex) {
+		} finally {
+			SCRIPTS_QUEUED.decrementAndGet();
 		}
-		return runner.exitcode;
+	}
+
+	/**
+	 * @return true if a script is running or waiting to run (background
+	 *         scripts can be postponed, so they do not delay it)
+	 */
+	static boolean isScriptBusy() {
+		return SCRIPTS_QUEUED.get() > 0;
 	}
 
 	/**
@@ -861,6 +1404,24 @@ public final class Api {
 		return runScriptAsRoot(ctx, script, res, 40000);
 	}
 
+	/**
+	 * Runs a script as root (multiple commands separated by "\n") with a
+	 * default timeout of 40 seconds, streaming its output.
+	 * 
+	 * @param ctx
+	 *            mandatory context
+	 * @param script
+	 *            the script to be executed
+	 * @param out
+	 *            receives the script output (stdout + stderr)
+	 * @return the script exit code
+	 * @throws IOException
+	 *             on any error executing the script, or writing it to disk
+	 */
+	public static int runScriptAsRoot(Context ctx, String script, ScriptOutput out) throws IOException {
+		return runScript(ctx, script, out, 40000, true);
+	}
+
 	/**
 	 * Runs a script as a regular user (multiple commands separated by "\n")
 	 * with a default timeout of 20 seconds.
@@ -895,13 +1456,13 @@ public final class Api {
 		try {
 			// Check iptables_g1
 			File file = new File(ctx.getCacheDir(), "iptables_g1");
-			if ((!file.exists()) && isARMv6()) {
+			if ((!file.exists()) && Toolchain.isARMv6(ctx)) {
 				copyRawFile(ctx, R.raw.iptables_g1, file, "755");
 				changed = true;
 			}
 			// Check iptables_n1
 			file = new File(ctx.getCacheDir(), "iptables_n1");
-			if ((!file.exists()) && (!isARMv6())) {
+			if ((!file.exists()) && (!Toolchain.isARMv6(ctx))) {
 				copyRawFile(ctx, R.raw.iptables_n1, file, "755");
 				changed = true;
 			}
@@ -912,7 +1473,7 @@ public final class Api {
 				changed = true;
 			}
 			if (changed) {
-				Toast.makeText(ctx, R.string.toast_bin_installed, Toast.LENGTH_LONG).show();
+				toast(ctx, R.string.toast_bin_installed);
 			}
 		} catch (Exception e) {
 			if (showErrors)
@@ -922,6 +1483,25 @@ public final class Api {
 		return true;
 	}
 
+	/**
+	 * Check if connection verdicts can be cached (fast path) with the probed
+	 * toolchain: connmark is required, and the nftables backend does not use
+	 * it. This does not probe the toolchain, so it may be called from the
+	 * main thread.
+	 * 
+	 * @param ctx
+	 *            mandatory context
+	 * @return false if the fast path is known to be unavailable
+	 */
+	static boolean isFastPathAvailable(Context ctx) {
+		final int caps = Toolchain.probedCaps(ctx);
+		if (caps == -1) {
+			// not probed yet
+			return true;
+		}
+		return (caps & Toolchain.CAP_CONNMARK) != 0 && (caps & Toolchain.CAP_NFT_UID) == 0;
+	}
+
 	/**
 	 * Check if the firewall is enabled
 	 * 
@@ -973,119 +1553,107 @@ public final class Api {
 	 *            UID of the application that has been removed
 	 */
 	public static void applicationRemoved(Context ctx, int uid) {
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final Editor editor = prefs.edit();
-		// allowed application names separated by pipe '|' (persisted)
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		final String uid_str = uid + "";
-		boolean changed = false;
-		// look for the removed application in the "wi-fi" list
-		if (savedUids_wifi.length() > 0) {
-			final StringBuilder newuids = new StringBuilder();
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String token = tok.nextToken();
-				if (uid_str.equals(token)) {
-					Log.d("DroidWall", "Removing UID " + token + " from the wi-fi list (package removed)!");
-					changed = true;
-				} else {
-					if (newuids.length() > 0)
-						newuids.append('|');
-					newuids.append(token);
-				}
-			}
-			if (changed) {
-				editor.putString(PREF_WIFI_UIDS, newuids.toString());
+		synchronized (APPS_LOCK) {
+			if (selection != null) {
+				selection.remove(uid);
 			}
 		}
-		// look for the removed application in the "3g" list
-		if (savedUids_3g.length() > 0) {
-			final StringBuilder newuids = new StringBuilder();
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			while (tok.hasMoreTokens()) {
-				final String token = tok.nextToken();
-				if (uid_str.equals(token)) {
-					Log.d("DroidWall", "Removing UID " + token + " from the 3G list (package removed)!");
-					changed = true;
-				} else {
-					if (newuids.length() > 0)
-						newuids.append('|');
-					newuids.append(token);
-				}
-			}
-			if (changed) {
-				editor.putString(PREF_3G_UIDS, newuids.toString());
-			}
-		}
-		// if anything has changed, save the new prefs...
-		if (changed) {
-			editor.commit();
+		// if anything has changed, save the new rules...
+		if (RuleStore.get(ctx).removeUid(ctx, uid)) {
+			Log.d("DroidWall", "Removing UID " + uid + " from the selected lists (package removed)!");
 			if (isEnabled(ctx)) {
 				// .. and also re-apply the rules if the firewall is enabled
-				applySavedIptablesRules(ctx, false);
+				// (a burst of removals is merged into a single apply)
+				FirewallExecutor.apply(ctx, false, null);
 			}
 		}
 	}
 
+
 	/**
-	 * Small structure to hold an application info
+	 * Small internal structure used to hold log information
 	 */
-	public static final class DroidApp {
-		/** linux user id */
-		int uid;
-		/** application names belonging to this user id */
-		String names[];
-		/** indicates if this application is selected for wifi */
-		boolean selected_wifi;
-		/** indicates if this application is selected for 3g */
-		boolean selected_3g;
-		/** toString cache */
-		String tostr;
-
-		public DroidApp() {
-		}
+	private static final class LogInfo {
+		private int totalBlocked; // Total number of packets blocked
+		private TopDestinations hosts; // Most blocked destination addresses
+		private TopDestinations networks; // Most blocked destination networks
 
-		public DroidApp(int uid, String name, boolean selected_wifi, boolean selected_3g) {
-			this.uid = uid;
-			this.names = new String[] { name };
-			this.selected_wifi = selected_wifi;
-			this.selected_3g = selected_3g;
+		private LogInfo() {
+			this.hosts = new TopDestinations(LOG_TOP_COUNTERS, 32);
+			this.networks = new TopDestinations(LOG_TOP_COUNTERS, LOG_ROLLUP_PREFIX);
 		}
+	}
 
+	/**
+	 * Receives the output of a script, one line at a time
+	 */
+	public interface LineHandler {
 		/**
-		 * Screen representation of this application
+		 * Called for each output line (stdout or stderr). Lines from both
+		 * streams are never delivered at the same time.
+		 * 
+		 * @param line
+		 *            output line, without the line terminator
 		 */
-		@Override
-		public String toString() {
-			if (tostr == null) {
-				final StringBuilder s = new StringBuilder();
-				if (uid > 0)
-					s.append(uid + ": ");
-				for (int i = 0; i < names.length; i++) {
-					if (i != 0)
-						s.append(", ");
-					s.append(names[i]);
-				}
-				s.append("\n");
-				tostr = s.toString();
-			}
-			return tostr;
-		}
+		void onLine(String line);
 	}
 
 	/**
-	 * Small internal structure used to hold log information
+	 * Collects the output of a script: each line is passed to an optional
+	 * {@link LineHandler} and captured on an optional response buffer, up to
+	 * a maximum number of characters.
 	 */
-	private static final class LogInfo {
-		private int totalBlocked; // Total number of packets blocked
-		private HashMap<String, Integer> dstBlocked; // Number of packets
-														// blocked per
-														// destination IP
-														// address
+	public static final class ScriptOutput {
+		private final StringBuilder res;
+		private final LineHandler handler;
+		private final int max;
+		private boolean truncated;
 
-		private LogInfo() {
-			this.dstBlocked = new HashMap<String, Integer>();
+		/**
+		 * @param res
+		 *            the script output response (null to discard)
+		 * @param handler
+		 *            line handler (null for none)
+		 * @param max
+		 *            maximum number of characters captured on "res" (-1 for
+		 *            no limit)
+		 */
+		public ScriptOutput(StringBuilder res, LineHandler handler, int max) {
+			this.res = res;
+			this.handler = handler;
+			this.max = max;
+		}
+
+		/**
+		 * Deliver an output line
+		 * 
+		 * @param line
+		 *            output line
+		 */
+		synchronized void line(String line) {
+			if (handler != null) {
+				handler.onLine(line);
+			}
+			append(line);
+			append("\n");
+		}
+
+		/**
+		 * Append a message to the response buffer (E.g.: an error)
+		 * 
+		 * @param msg
+		 *            message
+		 */
+		synchronized void append(String msg) {
+			if (res == null || truncated) {
+				return;
+			}
+			if (max >= 0 && res.length() + msg.length() > max) {
+				truncated = true;
+				res.append("\n(output truncated)\n");
+				return;
+			}
+			res.append(msg);
 		}
 	}
 
@@ -1095,10 +1663,12 @@ public final class Api {
 	private static final class ScriptRunner extends Thread {
 		private final File file;
 		private final String script;
-		private final StringBuilder res;
+		private final ScriptOutput res;
 		private final boolean asroot;
 		public int exitcode = -1;
 		private Process exec;
+		/** true while the script is running on the persistent root shell */
+		private volatile boolean shell;
 
 		/**
 		 * Creates a new script runner.
@@ -1112,7 +1682,7 @@ public final class Api {
 		 * @param asroot
 		 *            if true, executes the script as root
 		 */
-		public ScriptRunner(File file, String script, StringBuilder res, boolean asroot) {
+		public ScriptRunner(File file, String script, ScriptOutput res, boolean asroot) {
 			this.file = file;
 			this.script = script;
 			this.res = res;
@@ -1121,6 +1691,26 @@ public final class Api {
 
 		@Override
 		public void run() {
+			if (asroot) {
+				try {
+					// Prefer the persistent root shell, so "su" is only called once
+					shell = true;
+					this.exitcode = RootShell.run(script, res);
+					if (this.exitcode == -1 && interrupted()) {
+						res.append("\nOperation timed-out");
+					}
+					return;
+				} catch (IOException ex) {
+					// The script has not been sent: it is safe to run it on "su"
+					Log.d("DroidWall", "Root shell not available: " + ex);
+				} finally {
+					shell = false;
+				}
+				if (interrupted()) {
+					res.append("\nOperation timed-out");
+					return;
+				}
+			}
 			try {
 				file.createNewFile();
 				final String abspath = file.getAbsolutePath();
@@ -1144,42 +1734,74 @@ public final class Api {
 					// Create the "sh" request to run the script
 					exec = Runtime.getRuntime().exec("sh " + abspath);
 				}
-				InputStreamReader r = new InputStreamReader(exec.getInputStream());
-				final char buf[] = new char[1024];
-				int read = 0;
+				// Consume the "stderr" on another thread, so the script never
+				// blocks writing to a full pipe
+				final Thread stderr = new StreamReader(exec.getErrorStream(), res);
+				stderr.start();
 				// Consume the "stdout"
-				while ((read = r.read(buf)) != -1) {
-					if (res != null)
-						res.append(buf, 0, read);
-				}
-				// Consume the "stderr"
-				r = new InputStreamReader(exec.getErrorStream());
-				read = 0;
-				while ((read = r.read(buf)) != -1) {
-					if (res != null)
-						res.append(buf, 0, read);
-				}
+				new StreamReader(exec.getInputStream(), res).run();
+				stderr.join();
 				// get the process exit code
 				if (exec != null)
 					this.exitcode = exec.waitFor();
 			} catch (InterruptedException ex) {
-				if (res != null)
-					res.append("\nOperation timed-out");
+				res.append("\nOperation timed-out");
 			} catch (Exception ex) {
-				if (res != null)
-					res.append("\n" + ex);
+				res.append("\n" + ex);
 			} finally {
-				destroy();
+				destroyProcess();
 			}
 		}
 
 		/**
-		 * Destroy this script runner
+		 * Destroy this script runner. If the script is running on the
+		 * persistent root shell, the shell is killed (it will be restarted by
+		 * the next script).
 		 */
 		public synchronized void destroy() {
+			if (shell)
+				RootShell.kill();
+			destroyProcess();
+		}
+
+		/**
+		 * Destroy the script process (if any)
+		 */
+		private synchronized void destroyProcess() {
 			if (exec != null)
 				exec.destroy();
 			exec = null;
 		}
 	}
+
+	/**
+	 * Internal thread used to consume a process output stream line by line
+	 */
+	private static final class StreamReader extends Thread {
+		private final InputStream is;
+		private final ScriptOutput out;
+
+		/**
+		 * @param is
+		 *            stream to be consumed
+		 * @param out
+		 *            output receiver
+		 */
+		StreamReader(InputStream is, ScriptOutput out) {
+			this.is = is;
+			this.out = out;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final BufferedReader r = new BufferedReader(new InputStreamReader(is), 8192);
+				String line;
+				while ((line = r.readLine()) != null) {
+					out.line(line);
+				}
+			} catch (IOException ex) {
+			}
+		}
+	}
 }
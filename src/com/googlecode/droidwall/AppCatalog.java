@@ -0,0 +1,531 @@
+/**
+ * Persistent catalog of the installed applications.
+ * The catalog is stored on a compact binary file, so the application list
+ * can be displayed immediately, and only the packages that changed since the
+ * last scan need to be inspected again.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+/**
+ * Persistent catalog of the installed packages. Each record holds the
+ * package name, its UID, label, whether it may access the Internet and a
+ * stamp (modification time of the package file) used to detect updates.
+ * The labels are tagged with their locale, and left pending again when the
+ * locale changes.
+ */
+final class AppCatalog {
+	/** File signature */
+	private static final int MAGIC = 0x44574143;
+	/** File format version */
+	private static final int VERSION = 3;
+	/** Catalog file name (on the application files directory) */
+	private static final String FILE_NAME = "apps.bin";
+	/** Interval between full reconciliations (package broadcasts keep it up-to-date) */
+	private static final long RECONCILE_INTERVAL = 24 * 60 * 60 * 1000L;
+
+	/** loaded catalog (null if not loaded yet) */
+	private static AppCatalog instance;
+
+	/**
+	 * Serializes the changes (the package manager is queried while holding
+	 * it). The catalog monitor itself is only held for short sections, so
+	 * that the readers on the main thread never wait for a scan.
+	 */
+	private final Object changeLock = new Object();
+	/** catalog entries, in the package manager listing order */
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	/** entries per package name */
+	private final HashMap<String, Entry> packages = new HashMap<String, Entry>();
+	/** time of the last full reconciliation */
+	private volatile long reconciled;
+	/** locale of the labels */
+	private volatile String locale = Locale.getDefault().toString();
+
+	private AppCatalog() {
+	}
+
+	/**
+	 * Get the catalog, loading it from its file if necessary.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return application catalog (empty if it has never been saved)
+	 */
+	static synchronized AppCatalog get(Context ctx) {
+		if (instance == null) {
+			instance = new AppCatalog();
+			instance.load(ctx);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if the catalog has no entries (never scanned)
+	 */
+	synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return copy of the catalog entries, in the package manager listing
+	 *         order
+	 */
+	synchronized List<Entry> entries() {
+		return new ArrayList<Entry>(entries);
+	}
+
+	/**
+	 * @return true if the last full reconciliation is too old
+	 */
+	boolean needsReconcile() {
+		if (!Locale.getDefault().toString().equals(locale)) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		return reconciled > now || now - reconciled > RECONCILE_INTERVAL;
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return entries of all packages sharing the given UID, in the package
+	 *         manager listing order
+	 */
+	synchronized List<Entry> entries(int uid) {
+		final ArrayList<Entry> list = new ArrayList<Entry>(1);
+		for (Entry entry : entries) {
+			if (entry.uid == uid)
+				list.add(entry);
+		}
+		return list;
+	}
+
+	/**
+	 * Inspect a single package again (E.g.: it has just been installed or
+	 * updated). The package is removed from the catalog if it is no longer
+	 * installed.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param packageName
+	 *            package name
+	 */
+	void update(Context ctx, String packageName) {
+		synchronized (changeLock) {
+			final boolean known;
+			synchronized (this) {
+				known = packages.containsKey(packageName);
+			}
+			final PackageManager pkgmanager = ctx.getPackageManager();
+			ApplicationInfo apinfo;
+			try {
+				apinfo = pkgmanager.getApplicationInfo(packageName, 0);
+			} catch (PackageManager.NameNotFoundException ex) {
+				remove(ctx, packageName);
+				return;
+			}
+			final LabelCache labels = LabelCache.get(ctx);
+			final Entry entry = inspect(pkgmanager, labels, apinfo, known, true);
+			labels.flush(ctx);
+			synchronized (this) {
+				final Entry old = packages.put(packageName, entry);
+				if (old == null) {
+					entries.add(entry);
+				} else {
+					entries.set(entries.indexOf(old), entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a package from the catalog (and its cached label)
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param packageName
+	 *            package name
+	 */
+	void remove(Context ctx, String packageName) {
+		synchronized (changeLock) {
+			synchronized (this) {
+				final Entry old = packages.remove(packageName);
+				if (old != null) {
+					entries.remove(old);
+				}
+			}
+		}
+		final LabelCache labels = LabelCache.get(ctx);
+		labels.remove(packageName);
+		labels.flush(ctx);
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 * @return UID of the package, or -1 if it is not on the catalog
+	 */
+	synchronized int uid(String packageName) {
+		final Entry entry = packages.get(packageName);
+		return (entry == null ? -1 : entry.uid);
+	}
+
+	/**
+	 * @return entries that may access the Internet but have no label yet
+	 */
+	synchronized List<Entry> pending() {
+		final ArrayList<Entry> list = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (entry.internet && entry.label == null)
+				list.add(entry);
+		}
+		return list;
+	}
+
+	/**
+	 * Set the resolved label of a package. The label cache is updated, but
+	 * neither the cache nor the catalog are saved.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param packageName
+	 *            package name
+	 * @param label
+	 *            application label
+	 * @return UID of the package, or -1 if it is not on the catalog anymore
+	 */
+	synchronized int setLabel(Context ctx, String packageName, String label) {
+		final Entry entry = packages.get(packageName);
+		if (entry == null || !entry.internet) {
+			return -1;
+		}
+		entry.label = label;
+		LabelCache.get(ctx).put(packageName, label);
+		return entry.uid;
+	}
+
+	/**
+	 * Compare the catalog with the installed packages. Only new or updated
+	 * packages (different UID or stamp) are inspected again, and labels that
+	 * are not cached are left pending (see {@link LabelResolver}). All labels
+	 * are left pending again if the locale has changed.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return true if the catalog has changed
+	 */
+	boolean reconcile(Context ctx) {
+		synchronized (changeLock) {
+			return reconcileLocked(ctx);
+		}
+	}
+
+	/**
+	 * Reconcile while holding the change lock (the catalog monitor is only
+	 * held to read the known packages and to publish the result)
+	 */
+	private boolean reconcileLocked(Context ctx) {
+		final long start = System.currentTimeMillis();
+		final PackageManager pkgmanager = ctx.getPackageManager();
+		final List<ApplicationInfo> installed = pkgmanager.getInstalledApplications(0);
+		final LabelCache labels = LabelCache.get(ctx);
+		final ArrayList<Entry> list = new ArrayList<Entry>(installed.size());
+		final HashMap<String, Entry> map = new HashMap<String, Entry>(installed.size() * 2);
+		final HashMap<String, Entry> known;
+		boolean changed;
+		synchronized (this) {
+			changed = checkLocale();
+			known = new HashMap<String, Entry>(packages);
+		}
+		// same size and no new package means that nothing has been removed
+		changed |= (installed.size() != known.size());
+		int inspected = 0;
+		for (final ApplicationInfo apinfo : installed) {
+			final long stamp = stamp(apinfo);
+			Entry entry = known.get(apinfo.packageName);
+			if (entry == null || entry.uid != apinfo.uid || entry.stamp != stamp) {
+				entry = inspect(pkgmanager, labels, apinfo, entry != null, false);
+				changed = true;
+				inspected++;
+			}
+			list.add(entry);
+			map.put(entry.packageName, entry);
+		}
+		// evict uninstalled packages and write all label changes at once
+		labels.retain(map.keySet());
+		labels.flush(ctx);
+		synchronized (this) {
+			reconciled = System.currentTimeMillis();
+			if (changed) {
+				entries.clear();
+				entries.addAll(list);
+				packages.clear();
+				packages.putAll(map);
+			}
+		}
+		Log.d("DroidWall", "Application catalog reconciled in " + (System.currentTimeMillis() - start) + "ms: "
+				+ inspected + " of " + installed.size() + " packages inspected");
+		return changed;
+	}
+
+	/**
+	 * Discard the labels if the locale has changed since they were resolved
+	 * (must hold the catalog monitor)
+	 *
+	 * @return true if the labels were discarded
+	 */
+	private boolean checkLocale() {
+		final String current = Locale.getDefault().toString();
+		if (current.equals(locale)) {
+			return false;
+		}
+		Log.d("DroidWall", "Locale changed, application labels will be resolved again");
+		for (Entry entry : entries) {
+			entry.label = null;
+		}
+		locale = current;
+		return true;
+	}
+
+	/**
+	 * Save the catalog to its file
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	void save(Context ctx) {
+		synchronized (changeLock) {
+			saveLocked(ctx);
+		}
+	}
+
+	/**
+	 * Save while holding the change lock (the file is written without
+	 * holding the catalog monitor)
+	 */
+	private void saveLocked(Context ctx) {
+		final Entry snapshot[];
+		final String labels[];
+		final long time;
+		final String labelsLocale;
+		synchronized (this) {
+			snapshot = entries.toArray(new Entry[entries.size()]);
+			labels = new String[snapshot.length];
+			for (int i = 0; i < snapshot.length; i++) {
+				labels[i] = snapshot[i].label;
+			}
+			time = reconciled;
+			labelsLocale = locale;
+		}
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		final File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 8192));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(time);
+			out.writeUTF(labelsLocale);
+			out.writeInt(snapshot.length);
+			for (int i = 0; i < snapshot.length; i++) {
+				final Entry entry = snapshot[i];
+				out.writeUTF(entry.packageName);
+				out.writeInt(entry.uid);
+				out.writeLong(entry.stamp);
+				out.writeBoolean(entry.internet);
+				if (entry.internet) {
+					// pending labels are saved as empty
+					out.writeUTF(labels[i] == null ? "" : labels[i]);
+				}
+			}
+			out.close();
+			out = null;
+			// replace the old file only when the new one is complete
+			if (!tmp.renameTo(file)) {
+				Log.e("DroidWall", "Could not save the application catalog");
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not save the application catalog: " + ex);
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Load the catalog from its file. Missing, corrupted or outdated files
+	 * are ignored (the catalog stays empty). Labels of another locale are
+	 * left pending.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void load(Context ctx) {
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.d("DroidWall", "Ignoring outdated application catalog");
+				return;
+			}
+			reconciled = in.readLong();
+			final boolean relabel = !locale.equals(in.readUTF());
+			if (relabel) {
+				Log.d("DroidWall", "Locale changed, ignoring the catalog labels");
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				final Entry entry = new Entry(in.readUTF(), in.readInt(), in.readLong());
+				entry.internet = in.readBoolean();
+				if (entry.internet) {
+					entry.label = in.readUTF();
+					if (relabel || entry.label.length() == 0) {
+						entry.label = null;
+					}
+				}
+				entries.add(entry);
+				packages.put(entry.packageName, entry);
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not load the application catalog: " + ex);
+			entries.clear();
+			packages.clear();
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Create the catalog entry of a package, checking its permission and
+	 * label
+	 *
+	 * @param pkgmanager
+	 *            package manager
+	 * @param labels
+	 *            label cache (changes are not flushed)
+	 * @param apinfo
+	 *            package information
+	 * @param updated
+	 *            true if the package has been updated (cached label is
+	 *            discarded)
+	 * @param resolve
+	 *            true to resolve a label that is not cached right now, false
+	 *            to leave it pending
+	 * @return new entry
+	 */
+	private static Entry inspect(PackageManager pkgmanager, LabelCache labels, ApplicationInfo apinfo,
+			boolean updated, boolean resolve) {
+		final Entry entry = new Entry(apinfo.packageName, apinfo.uid, stamp(apinfo));
+		entry.internet = (PackageManager.PERMISSION_GRANTED == pkgmanager.checkPermission(
+				Manifest.permission.INTERNET, apinfo.packageName));
+		if (entry.internet) {
+			// try to get the application label from our cache -
+			// getApplicationLabel() is horribly slow!!!!
+			entry.label = (updated ? null : labels.get(apinfo.packageName));
+			if (entry.label == null && resolve) {
+				entry.label = pkgmanager.getApplicationLabel(apinfo).toString();
+				labels.put(apinfo.packageName, entry.label);
+			}
+		} else if (updated) {
+			labels.remove(apinfo.packageName);
+		}
+		return entry;
+	}
+
+	/**
+	 * Get the stamp used to detect package updates. The package file is
+	 * replaced on every update, so its modification time is used
+	 * (ApplicationInfo has no update time on this API level).
+	 *
+	 * @param apinfo
+	 *            package information
+	 * @return package stamp
+	 */
+	private static long stamp(ApplicationInfo apinfo) {
+		if (apinfo.sourceDir == null) {
+			return 0;
+		}
+		return new File(apinfo.sourceDir).lastModified();
+	}
+
+	/**
+	 * Catalog entry (one per package)
+	 */
+	static final class Entry {
+		/** package name */
+		final String packageName;
+		/** linux user id */
+		final int uid;
+		/** package stamp (modification time of the package file) */
+		final long stamp;
+		/** indicates if this package may access the Internet */
+		boolean internet;
+		/**
+		 * application label (only for packages that may access the Internet,
+		 * null while pending)
+		 */
+		volatile String label;
+
+		private Entry(String packageName, int uid, long stamp) {
+			this.packageName = packageName;
+			this.uid = uid;
+			this.stamp = stamp;
+		}
+
+		/**
+		 * @return label to be displayed (the package name while the label is
+		 *         pending)
+		 */
+		String name() {
+			return (label != null ? label : packageName);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Search index of the application list.
+ * Sort keys and normalized search text are computed once per application
+ * table, so sorting and filtering the list only touch primitive arrays.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Index of an application table. Rows are pre-sorted by the collation key of
+ * their first name, and each row has a lower-case search text holding its
+ * UID, names and package names. A query that refines the previous one (the
+ * new text contains the old one) only scans the previous matches.
+ * Not thread-safe (used from the main thread).
+ */
+final class AppIndex {
+	/** Filter: all applications */
+	static final int FILTER_ALL = 0;
+	/** Filter: applications selected for any interface */
+	static final int FILTER_SELECTED = 1;
+	/** Filter: applications selected for wifi */
+	static final int FILTER_WIFI = 2;
+	/** Filter: applications selected for 2G/3G */
+	static final int FILTER_3G = 3;
+
+	/** last index built (tables are immutable, so it can be reused) */
+	private static AppIndex last;
+
+	/** indexed table */
+	private final AppTable apps;
+	/** rows, sorted by their first name */
+	private final int sorted[];
+	/** search text of all rows */
+	private final char text[];
+	/** start of the search text of each row (plus the end of the last one) */
+	private final int textOffsets[];
+	/** text of the last query */
+	private String lastQuery = "";
+	/** rows matching the last query, in sorted order */
+	private int lastMatches[];
+
+	private AppIndex(AppTable apps) {
+		this.apps = apps;
+		final int size = apps.size();
+		// sort once using collation keys (locale aware, much faster than
+		// comparing the strings with the collator)
+		final Collator collator = Collator.getInstance();
+		collator.setStrength(Collator.SECONDARY);
+		final CollationKey keys[] = new CollationKey[size];
+		final Integer rows[] = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = collator.getCollationKey(apps.name(i, 0));
+			rows[i] = i;
+		}
+		Arrays.sort(rows, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return keys[o1].compareTo(keys[o2]);
+			}
+		});
+		sorted = new int[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = rows[i];
+		}
+		// search text: "uid|name|...|package|..." per row
+		final StringBuilder packages[] = new StringBuilder[size];
+		for (int p = 0; p < apps.packageCount(); p++) {
+			final int row = apps.indexOf(apps.packageUid(p));
+			if (row != -1) {
+				if (packages[row] == null)
+					packages[row] = new StringBuilder();
+				packages[row].append('|').append(apps.packageName(p));
+			}
+		}
+		final StringBuilder all = new StringBuilder(size * 64);
+		textOffsets = new int[size + 1];
+		for (int i = 0; i < size; i++) {
+			textOffsets[i] = all.length();
+			all.append(apps.uid(i));
+			for (int n = 0; n < apps.nameCount(i); n++) {
+				all.append('|').append(apps.name(i, n));
+			}
+			if (packages[i] != null)
+				all.append(packages[i]);
+		}
+		textOffsets[size] = all.length();
+		// lower-cased char by char, so the offsets are kept
+		text = new char[all.length()];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = Character.toLowerCase(all.charAt(i));
+		}
+		lastMatches = sorted;
+	}
+
+	/**
+	 * Get the index of an application table (the last index is reused if it
+	 * was built for the same table)
+	 *
+	 * @param apps
+	 *            application table
+	 * @return table index
+	 */
+	static AppIndex of(AppTable apps) {
+		final AppIndex index = last;
+		if (index != null && index.apps == apps) {
+			return index;
+		}
+		return (last = new AppIndex(apps));
+	}
+
+	/**
+	 * @return indexed table
+	 */
+	AppTable table() {
+		return apps;
+	}
+
+	/**
+	 * Find the rows matching a query and a filter
+	 *
+	 * @param query
+	 *            text to look for on the UIDs, names and package names
+	 *            (empty for all)
+	 * @param filter
+	 *            selection filter (FILTER_*)
+	 * @param selection
+	 *            current selection
+	 * @param selectedFirst
+	 *            true to list the selected applications first
+	 * @return matching rows, sorted
+	 */
+	int[] query(String query, int filter, SelectionEdit selection, boolean selectedFirst) {
+		final char chars[] = query.trim().toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		final String q = new String(chars);
+		final int matches[] = match(q);
+		final int result[] = new int[matches.length];
+		int count = 0;
+		// selected rows first (when requested), keeping the sorted order
+		for (int pass = (selectedFirst ? 0 : 1); pass < 2; pass++) {
+			for (int row : matches) {
+				final int uid = apps.uid(row);
+				final boolean wifi = selection.isSelectedWifi(uid);
+				final boolean g3 = selection.isSelected3g(uid);
+				switch (filter) {
+				case FILTER_SELECTED:
+					if (!wifi && !g3)
+						continue;
+					break;
+				case FILTER_WIFI:
+					if (!wifi)
+						continue;
+					break;
+				case FILTER_3G:
+					if (!g3)
+						continue;
+					break;
+				}
+				if (selectedFirst && (pass == 0) != (wifi || g3))
+					continue;
+				result[count++] = row;
+			}
+		}
+		if (count == result.length) {
+			return result;
+		}
+		final int trimmed[] = new int[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/**
+	 * Find the rows whose search text contains the query
+	 *
+	 * @param q
+	 *            lower-case query
+	 * @return matching rows, sorted
+	 */
+	private int[] match(String q) {
+		if (q.length() == 0) {
+			lastQuery = q;
+			lastMatches = sorted;
+			return sorted;
+		}
+		// a refined query can only match rows that matched the last one
+		final int candidates[] = (q.indexOf(lastQuery) != -1 ? lastMatches : sorted);
+		final char pattern[] = q.toCharArray();
+		final int matches[] = new int[candidates.length];
+		int count = 0;
+		for (int row : candidates) {
+			if (contains(textOffsets[row], textOffsets[row + 1], pattern))
+				matches[count++] = row;
+		}
+		final int result[] = new int[count];
+		System.arraycopy(matches, 0, result, 0, count);
+		lastQuery = q;
+		lastMatches = result;
+		return result;
+	}
+
+	/**
+	 * @return true if the search text between start and end contains the
+	 *         pattern
+	 */
+	private boolean contains(int start, int end, char pattern[]) {
+		final char first = pattern[0];
+		final int max = end - pattern.length;
+		for (int i = start; i <= max; i++) {
+			if (text[i] != first)
+				continue;
+			int j = 1;
+			while (j < pattern.length && text[i + j] == pattern[j])
+				j++;
+			if (j == pattern.length)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,415 @@
+/**
+ * Compact table of the applications displayed on the main screen.
+ * Applications are stored as parallel primitive arrays (one row per UID)
+ * with a single pool of interned names, plus hash indexes to find a row by
+ * UID and the UID of a package, so no lookup needs to scan the table.
+ * Tables are immutable snapshots, so they can be shared between threads.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application table. Each row is an application (a linux user id) with the
+ * names of all packages sharing it. Rows are addressed by their index (0 to
+ * {@link #size()} - 1); the names of a row are references to a name pool
+ * shared by the whole table. A table is never modified once built: changes
+ * produce a new table with a higher version (see {@link #withPackageNames}),
+ * and a compacted name pool. The
+ * selection is kept apart (see {@link SelectionEdit}).
+ */
+final class AppTable {
+	/** last version given to a table */
+	private static final AtomicInteger versions = new AtomicInteger();
+
+	/** table version (increases with every new table) */
+	private final int version;
+	/** UID of each row */
+	private final int uids[];
+	/** first name reference of each row (plus the end of the last row) */
+	private final int nameOffsets[];
+	/** name references (indexes on the pool), grouped by row */
+	private final int nameRefs[];
+	/** name pool (no duplicates) */
+	private final String pool[];
+	/** UID index: row index + 1 (0 for free slots) */
+	private final int uidIndex[];
+	/** package names (only packages on the table) */
+	private final String packages[];
+	/** UID of each package */
+	private final int packageUids[];
+	/** package index: package position + 1 (0 for free slots) */
+	private final int packageIndex[];
+	/** name reference of each package (position on nameRefs, -1 if none) */
+	private final int packageRefs[];
+
+	private AppTable(Builder builder) {
+		version = versions.incrementAndGet();
+		final int size = builder.count;
+		uids = new int[size];
+		System.arraycopy(builder.uids, 0, uids, 0, size);
+		nameOffsets = new int[size + 1];
+		int refs = 0;
+		for (int i = 0; i < size; i++) {
+			refs += builder.names.get(uids[i]).size();
+		}
+		nameRefs = new int[refs];
+		refs = 0;
+		for (int i = 0; i < size; i++) {
+			nameOffsets[i] = refs;
+			for (int ref : builder.names.get(uids[i])) {
+				nameRefs[refs++] = ref;
+			}
+		}
+		nameOffsets[size] = refs;
+		pool = builder.pool.toArray(new String[builder.pool.size()]);
+		uidIndex = new int[IntSet.tableSize(size)];
+		final int mask = uidIndex.length - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = IntSet.hash(uids[i]) & mask;
+			while (uidIndex[slot] != 0)
+				slot = (slot + 1) & mask;
+			uidIndex[slot] = i + 1;
+		}
+		packages = builder.packages.toArray(new String[builder.packages.size()]);
+		packageUids = new int[packages.length];
+		packageIndex = new int[IntSet.tableSize(packages.length)];
+		final int pmask = packageIndex.length - 1;
+		for (int i = 0; i < packages.length; i++) {
+			packageUids[i] = builder.packageUids.get(i);
+			int slot = IntSet.hash(packages[i].hashCode()) & pmask;
+			while (packageIndex[slot] != 0)
+				slot = (slot + 1) & pmask;
+			packageIndex[slot] = i + 1;
+		}
+		// the names of a row are in the same order as its packages
+		packageRefs = new int[packages.length];
+		final int seen[] = new int[size];
+		for (int i = 0; i < packages.length; i++) {
+			final int index = indexOf(packageUids[i]);
+			packageRefs[i] = (seen[index] < nameCount(index) ? nameOffsets[index] + seen[index]++ : -1);
+		}
+	}
+
+	/**
+	 * Copy a table with new name references (all the other arrays are shared)
+	 */
+	private AppTable(AppTable base, int nameRefs[], String pool[]) {
+		version = versions.incrementAndGet();
+		uids = base.uids;
+		nameOffsets = base.nameOffsets;
+		this.nameRefs = nameRefs;
+		this.pool = pool;
+		uidIndex = base.uidIndex;
+		packages = base.packages;
+		packageUids = base.packageUids;
+		packageIndex = base.packageIndex;
+		packageRefs = base.packageRefs;
+	}
+
+	/**
+	 * @return table version (a newer table always has a higher version)
+	 */
+	int version() {
+		return version;
+	}
+
+	/**
+	 * @param other
+	 *            another table
+	 * @return true if both tables have the same rows, at the same indexes
+	 *         (only names may differ)
+	 */
+	boolean hasSameRows(AppTable other) {
+		return other != null && uids == other.uids;
+	}
+
+	/**
+	 * @return number of rows (applications)
+	 */
+	int size() {
+		return uids.length;
+	}
+
+	/**
+	 * @param index
+	 *            row index
+	 * @return linux user id of the row
+	 */
+	int uid(int index) {
+		return uids[index];
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return row index of the UID, or -1 if it is not on the table
+	 */
+	int indexOf(int uid) {
+		final int mask = uidIndex.length - 1;
+		for (int slot = IntSet.hash(uid) & mask;; slot = (slot + 1) & mask) {
+			final int index = uidIndex[slot] - 1;
+			if (index == -1 || uids[index] == uid)
+				return index;
+		}
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 * @return UID of the package, or -1 if it is not on the table
+	 */
+	int uidOf(String packageName) {
+		final int position = packagePosition(packageName);
+		return (position == -1 ? -1 : packageUids[position]);
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 * @return position of the package, or -1 if it is not on the table
+	 */
+	private int packagePosition(String packageName) {
+		final int mask = packageIndex.length - 1;
+		for (int slot = IntSet.hash(packageName.hashCode()) & mask;; slot = (slot + 1) & mask) {
+			final int position = packageIndex[slot] - 1;
+			if (position == -1 || packages[position].equals(packageName))
+				return position;
+		}
+	}
+
+	/**
+	 * @return number of packages on the table
+	 */
+	int packageCount() {
+		return packages.length;
+	}
+
+	/**
+	 * @param position
+	 *            package position (0 to {@link #packageCount()} - 1)
+	 * @return package name
+	 */
+	String packageName(int position) {
+		return packages[position];
+	}
+
+	/**
+	 * @param position
+	 *            package position (0 to {@link #packageCount()} - 1)
+	 * @return UID of the package
+	 */
+	int packageUid(int position) {
+		return packageUids[position];
+	}
+
+	/**
+	 * @param index
+	 *            row index
+	 * @return number of names of the row (one per package sharing the UID)
+	 */
+	int nameCount(int index) {
+		return nameOffsets[index + 1] - nameOffsets[index];
+	}
+
+	/**
+	 * @param index
+	 *            row index
+	 * @param n
+	 *            name number (0 to {@link #nameCount(int)} - 1)
+	 * @return application name
+	 */
+	String name(int index, int n) {
+		return pool[nameRefs[nameOffsets[index] + n]];
+	}
+
+	/**
+	 * Replace the names of a row, keeping the same number of names (E.g.: a
+	 * package has been updated)
+	 *
+	 * @param index
+	 *            row index
+	 * @param names
+	 *            new names ({@link #nameCount(int)} elements)
+	 * @return new table with the same rows, or this table if no name has
+	 *         changed
+	 */
+	AppTable withNames(int index, String names[]) {
+		final int offset = nameOffsets[index];
+		String patched[] = null;
+		for (int n = 0; n < names.length; n++) {
+			if (!names[n].equals(pool[nameRefs[offset + n]])) {
+				if (patched == null)
+					patched = new String[nameRefs.length];
+				patched[offset + n] = names[n];
+			}
+		}
+		return (patched == null ? this : patch(patched));
+	}
+
+	/**
+	 * Replace the names of a batch of packages at once (E.g.: their labels
+	 * have just been resolved). The names of a row are in the same order as
+	 * its packages. The table is copied only once per batch.
+	 *
+	 * @param names
+	 *            new names per package name (packages that are not on the
+	 *            table are ignored)
+	 * @return new table with the same rows, or this table if no name has
+	 *         changed
+	 */
+	AppTable withPackageNames(Map<String, String> names) {
+		String patched[] = null;
+		for (Map.Entry<String, String> entry : names.entrySet()) {
+			final int position = packagePosition(entry.getKey());
+			final int ref = (position == -1 ? -1 : packageRefs[position]);
+			if (ref == -1 || entry.getValue().equals(pool[nameRefs[ref]]))
+				continue;
+			if (patched == null)
+				patched = new String[nameRefs.length];
+			patched[ref] = entry.getValue();
+		}
+		return (patched == null ? this : patch(patched));
+	}
+
+	/**
+	 * Copy this table with some names replaced. The name pool is built again,
+	 * so the names that are not referenced anymore are dropped.
+	 *
+	 * @param names
+	 *            new name per name reference (null to keep it)
+	 * @return new table with the same rows
+	 */
+	private AppTable patch(String names[]) {
+		final int newrefs[] = new int[nameRefs.length];
+		final ArrayList<String> newpool = new ArrayList<String>(pool.length);
+		final HashMap<String, Integer> interned = new HashMap<String, Integer>(pool.length * 2);
+		for (int ref = 0; ref < newrefs.length; ref++) {
+			final String name = (names[ref] != null ? names[ref] : pool[nameRefs[ref]]);
+			Integer index = interned.get(name);
+			if (index == null) {
+				index = newpool.size();
+				newpool.add(name);
+				interned.put(name, index);
+			}
+			newrefs[ref] = index;
+		}
+		return new AppTable(this, newrefs, newpool.toArray(new String[newpool.size()]));
+	}
+
+	/**
+	 * Screen representation of a row
+	 *
+	 * @param index
+	 *            row index
+	 * @return UID and names of the row
+	 */
+	String label(int index) {
+		final StringBuilder s = new StringBuilder();
+		if (uids[index] > 0)
+			s.append(uids[index]).append(": ");
+		for (int ref = nameOffsets[index]; ref < nameOffsets[index + 1]; ref++) {
+			if (ref != nameOffsets[index])
+				s.append(", ");
+			s.append(pool[nameRefs[ref]]);
+		}
+		s.append('\n');
+		return s.toString();
+	}
+
+
+	/**
+	 * Application table builder. Names added for the same UID are merged on
+	 * a single row, in the order they were added.
+	 */
+	static final class Builder {
+		/** UID of each row, in the order they were added */
+		private int uids[] = new int[64];
+		/** number of rows */
+		private int count;
+		/** name references of each UID */
+		private final IntMap<ArrayList<Integer>> names = new IntMap<ArrayList<Integer>>(64);
+		/** name pool */
+		private final ArrayList<String> pool = new ArrayList<String>();
+		/** pool index of each name */
+		private final HashMap<String, Integer> interned = new HashMap<String, Integer>();
+		/** package names */
+		private final ArrayList<String> packages = new ArrayList<String>();
+		/** UID of each package */
+		private final ArrayList<Integer> packageUids = new ArrayList<Integer>();
+
+		/**
+		 * Add a name to the row of an UID (the row is created if necessary)
+		 *
+		 * @param uid
+		 *            linux user id
+		 * @param packageName
+		 *            package name (null for special applications)
+		 * @param name
+		 *            application name
+		 * @return this builder
+		 */
+		Builder add(int uid, String packageName, String name) {
+			ArrayList<Integer> refs = names.get(uid);
+			if (refs == null) {
+				refs = new ArrayList<Integer>(1);
+				names.put(uid, refs);
+				if (count == uids.length) {
+					final int newuids[] = new int[count * 2];
+					System.arraycopy(uids, 0, newuids, 0, count);
+					uids = newuids;
+				}
+				uids[count++] = uid;
+			}
+			Integer ref = interned.get(name);
+			if (ref == null) {
+				ref = pool.size();
+				pool.add(name);
+				interned.put(name, ref);
+			}
+			refs.add(ref);
+			if (packageName != null) {
+				packages.add(packageName);
+				packageUids.add(uid);
+			}
+			return this;
+		}
+
+		/**
+		 * @param uid
+		 *            linux user id
+		 * @return true if the UID already has a row
+		 */
+		boolean contains(int uid) {
+			return names.containsKey(uid);
+		}
+
+		/**
+		 * @return new table
+		 */
+		AppTable build() {
+			return new AppTable(this);
+		}
+	}
+}
@@ -0,0 +1,594 @@
+/**
+ * Persistent statistics of the blocked packets.
+ * Packets are counted per UID, destination, port and interface class on
+ * time buckets that are rolled up from minutes to hours and days, so the
+ * history can be queried without parsing the logs again.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Blocked packet counters on three tiers of time buckets: minutes (kept for
+ * two hours), hours (kept for two days) and days (kept for five weeks). When a
+ * bucket leaves its tier it is merged into the bucket of the next tier that
+ * contains it, and buckets older than the last tier are dropped. A bucket
+ * holds at most {@link #MAX_ENTRIES} detailed counters: beyond that, new
+ * destinations of an UID are only counted per interface class (downsampling).
+ * Bucket times never go backwards, even if the wall clock does (see
+ * {@link #monotonic(long)}). All methods are thread-safe.
+ */
+final class BlockStats {
+	/** Any interface class (for queries) */
+	static final int ANY_ITF = -1;
+
+	/** Statistics file name (on the application files directory) */
+	private static final String FILE_NAME = "stats.bin";
+	/** File magic number ("DWBS") */
+	private static final int MAGIC = 0x44574253;
+	/** Current file format version */
+	private static final int VERSION = 1;
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+	/** Bucket length of each tier */
+	private static final long RESOLUTION[] = { MINUTE, HOUR, DAY };
+	/** Number of buckets kept on each tier */
+	private static final int RETENTION[] = { 120, 48, 35 };
+	/** Maximum number of detailed counters per bucket */
+	private static final int MAX_ENTRIES = 4096;
+	/** Minimum interval between automatic saves */
+	private static final long SAVE_INTERVAL = 5 * MINUTE;
+	/** Largest backward clock step absorbed by the newest bucket */
+	private static final long MAX_CLOCK_STEP = HOUR;
+
+	/** loaded statistics (null if not loaded yet) */
+	private static BlockStats instance;
+
+	/** closed buckets of each tier, oldest first */
+	private final ArrayList<ArrayList<Counts>> tiers = new ArrayList<ArrayList<Counts>>();
+	/** bucket of the current minute (null if none) */
+	private Counts current;
+	/** true if there are changes not saved yet */
+	private boolean dirty;
+	/** time of the last save */
+	private long lastSave;
+
+	private BlockStats() {
+		for (int t = 0; t < RESOLUTION.length; t++) {
+			tiers.add(new ArrayList<Counts>());
+		}
+	}
+
+	/**
+	 * Get the statistics, loading them from their file if necessary.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return blocked packet statistics
+	 */
+	static synchronized BlockStats get(Context ctx) {
+		if (instance == null) {
+			instance = new BlockStats();
+			instance.load(ctx);
+		}
+		return instance;
+	}
+
+	/**
+	 * Count a blocked packet
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param now
+	 *            current time
+	 * @param uid
+	 *            linux user id
+	 * @param dst
+	 *            IPv4 destination address (0 if unknown)
+	 * @param port
+	 *            destination port (-1 if none)
+	 * @param itf
+	 *            interface class (LogParser.ITF_*)
+	 */
+	synchronized void add(Context ctx, long now, int uid, int dst, int port, int itf) {
+		now = monotonic(now);
+		if (current == null || now >= current.start + MINUTE) {
+			close(now);
+			if (dirty && now - lastSave >= SAVE_INTERVAL) {
+				save(ctx, now);
+			}
+			current = new Counts(now - now % MINUTE);
+		}
+		current.add(uid, dst, pack(port, itf), 1, MAX_ENTRIES);
+		dirty = true;
+	}
+
+	/**
+	 * Count the packets blocked for an UID since a given time
+	 *
+	 * @param uid
+	 *            linux user id
+	 * @param itf
+	 *            interface class (LogParser.ITF_*), or ANY_ITF
+	 * @param since
+	 *            start time (whole buckets are counted, so the result may
+	 *            include packets up to one bucket older)
+	 * @return counters per destination, port and interface class (the UID of
+	 *         all entries is the given one), highest count first
+	 */
+	synchronized Counts query(int uid, int itf, long since) {
+		final Counts result = new Counts(since);
+		for (int t = 0; t < tiers.size(); t++) {
+			for (Counts bucket : tiers.get(t)) {
+				if (bucket.start + RESOLUTION[t] > since)
+					bucket.collect(uid, itf, result);
+			}
+		}
+		if (current != null && current.start + MINUTE > since)
+			current.collect(uid, itf, result);
+		result.sort();
+		return result;
+	}
+
+	/**
+	 * List the UIDs with blocked packets since a given time
+	 *
+	 * @param since
+	 *            start time (whole buckets are checked, as on
+	 *            {@link #query(int, int, long)})
+	 * @return new set of UIDs
+	 */
+	synchronized IntSet uids(long since) {
+		final IntSet result = new IntSet();
+		for (int t = 0; t < tiers.size(); t++) {
+			for (Counts bucket : tiers.get(t)) {
+				if (bucket.start + RESOLUTION[t] > since)
+					bucket.collectUids(result);
+			}
+		}
+		if (current != null && current.start + MINUTE > since)
+			current.collectUids(result);
+		return result;
+	}
+
+	/**
+	 * Remove all counters
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	synchronized void clear(Context ctx) {
+		for (ArrayList<Counts> tier : tiers) {
+			tier.clear();
+		}
+		current = null;
+		dirty = true;
+		save(ctx, System.currentTimeMillis());
+	}
+
+	/**
+	 * Save the counters if there are pending changes
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	synchronized void flush(Context ctx) {
+		if (dirty) {
+			save(ctx, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Keep the bucket times in order when the wall clock goes backwards. A
+	 * small step is absorbed by the newest bucket (the time is clamped to
+	 * it), while after a larger one the newer buckets are dropped: they have
+	 * been counted with a wrong clock, and would hide the new ones.
+	 *
+	 * @param now
+	 *            current time
+	 * @return time to use
+	 */
+	private long monotonic(long now) {
+		long latest = lastSave;
+		if (current != null)
+			latest = Math.max(latest, current.start);
+		for (ArrayList<Counts> tier : tiers) {
+			if (!tier.isEmpty())
+				latest = Math.max(latest, tier.get(tier.size() - 1).start);
+		}
+		if (now >= latest) {
+			return now;
+		}
+		if (latest - now <= MAX_CLOCK_STEP) {
+			return latest;
+		}
+		Log.w("DroidWall", "Clock went back " + (latest - now) + "ms, dropping the newer statistics");
+		if (current != null && current.start > now)
+			current = null;
+		for (ArrayList<Counts> tier : tiers) {
+			while (!tier.isEmpty() && tier.get(tier.size() - 1).start > now)
+				tier.remove(tier.size() - 1);
+		}
+		lastSave = now;
+		dirty = true;
+		return now;
+	}
+
+	/**
+	 * Close the current bucket and roll up the buckets that left their tiers
+	 *
+	 * @param now
+	 *            current time
+	 */
+	private void close(long now) {
+		if (current != null) {
+			tiers.get(0).add(current);
+			current = null;
+		}
+		for (int t = 0; t < tiers.size(); t++) {
+			final ArrayList<Counts> tier = tiers.get(t);
+			final long oldest = now - now % RESOLUTION[t] - (RETENTION[t] - 1) * RESOLUTION[t];
+			while (!tier.isEmpty() && tier.get(0).start < oldest) {
+				final Counts bucket = tier.remove(0);
+				if (t + 1 < tiers.size()) {
+					rollUp(bucket, tiers.get(t + 1), RESOLUTION[t + 1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge a bucket into the bucket of the next tier that contains it
+	 *
+	 * @param bucket
+	 *            bucket leaving its tier
+	 * @param next
+	 *            buckets of the next tier
+	 * @param resolution
+	 *            bucket length of the next tier
+	 */
+	private static void rollUp(Counts bucket, ArrayList<Counts> next, long resolution) {
+		final long start = bucket.start - bucket.start % resolution;
+		// buckets leave their tier in time order: only the last one may match
+		Counts target = (next.isEmpty() ? null : next.get(next.size() - 1));
+		if (target == null || target.start != start) {
+			target = new Counts(start);
+			next.add(target);
+		}
+		for (int i = 0; i < bucket.size; i++) {
+			target.add(bucket.uids[i], bucket.dsts[i], bucket.keys[i], bucket.counts[i], MAX_ENTRIES);
+		}
+	}
+
+	/**
+	 * @return port and interface class packed on an int
+	 */
+	private static int pack(int port, int itf) {
+		return ((port + 1) << 2) | (itf & 3);
+	}
+
+	private void load(Context ctx) {
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.e("DroidWall", "Unknown statistics file format");
+				return;
+			}
+			lastSave = in.readLong();
+			for (int t = 0; t < tiers.size(); t++) {
+				final int buckets = in.readInt();
+				for (int b = 0; b < buckets; b++) {
+					final Counts bucket = new Counts(in.readLong());
+					final int size = in.readInt();
+					for (int i = 0; i < size; i++) {
+						bucket.add(in.readInt(), in.readInt(), in.readInt(), in.readInt(), Integer.MAX_VALUE);
+					}
+					tiers.get(t).add(bucket);
+				}
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not load the statistics: " + ex);
+			for (ArrayList<Counts> tier : tiers) {
+				tier.clear();
+			}
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Save all counters (the current bucket is closed)
+	 */
+	private void save(Context ctx, long now) {
+		now = monotonic(now);
+		close(now);
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		final File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 8192));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(now);
+			for (ArrayList<Counts> tier : tiers) {
+				out.writeInt(tier.size());
+				for (Counts bucket : tier) {
+					out.writeLong(bucket.start);
+					out.writeInt(bucket.size);
+					for (int i = 0; i < bucket.size; i++) {
+						out.writeInt(bucket.uids[i]);
+						out.writeInt(bucket.dsts[i]);
+						out.writeInt(bucket.keys[i]);
+						out.writeInt(bucket.counts[i]);
+					}
+				}
+			}
+			out.close();
+			out = null;
+			// replace the old file only when the new one is complete
+			if (tmp.renameTo(file)) {
+				dirty = false;
+				lastSave = now;
+			} else {
+				Log.e("DroidWall", "Could not save the statistics");
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not save the statistics: " + ex);
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Packet counters of a time bucket (or a query result): parallel arrays
+	 * of UID, destination, packed port/interface class and count, with a hash
+	 * index to find the counter of a key.
+	 */
+	static final class Counts {
+		/** bucket start time */
+		private final long start;
+		private int uids[] = new int[16];
+		private int dsts[] = new int[16];
+		private int keys[] = new int[16];
+		private int counts[] = new int[16];
+		/** number of counters */
+		private int size;
+		/** total number of packets */
+		private int total;
+		/** hash index: counter position + 1 (0 for free slots) */
+		private int index[] = new int[IntSet.tableSize(16)];
+
+		private Counts(long start) {
+			this.start = start;
+		}
+
+		/**
+		 * @return number of counters
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @return total number of packets
+		 */
+		int total() {
+			return total;
+		}
+
+		/**
+		 * @param i
+		 *            counter position
+		 * @return IPv4 destination address (0 if unknown, or not detailed)
+		 */
+		int dst(int i) {
+			return dsts[i];
+		}
+
+		/**
+		 * @param i
+		 *            counter position
+		 * @return destination port (-1 if none, or not detailed)
+		 */
+		int port(int i) {
+			return (keys[i] >>> 2) - 1;
+		}
+
+		/**
+		 * @param i
+		 *            counter position
+		 * @return interface class (LogParser.ITF_*)
+		 */
+		int itf(int i) {
+			return keys[i] & 3;
+		}
+
+		/**
+		 * @param i
+		 *            counter position
+		 * @return number of packets
+		 */
+		int count(int i) {
+			return counts[i];
+		}
+
+		/**
+		 * Add packets to a counter. If the bucket is full, new keys are
+		 * counted without their destination and port.
+		 */
+		private void add(int uid, int dst, int key, int count, int max) {
+			total += count;
+			int pos = find(uid, dst, key);
+			if (pos == -1 && size >= max) {
+				dst = 0;
+				key &= 3;
+				pos = find(uid, dst, key);
+			}
+			if (pos != -1) {
+				counts[pos] += count;
+				return;
+			}
+			if (size == uids.length) {
+				grow();
+			}
+			uids[size] = uid;
+			dsts[size] = dst;
+			keys[size] = key;
+			counts[size] = count;
+			size++;
+			insert(size - 1);
+		}
+
+		/**
+		 * @return position of the counter of a key, or -1
+		 */
+		private int find(int uid, int dst, int key) {
+			final int mask = index.length - 1;
+			for (int slot = hash(uid, dst, key) & mask;; slot = (slot + 1) & mask) {
+				final int pos = index[slot] - 1;
+				if (pos == -1)
+					return -1;
+				if (uids[pos] == uid && dsts[pos] == dst && keys[pos] == key)
+					return pos;
+			}
+		}
+
+		/**
+		 * Add a counter to the hash index
+		 */
+		private void insert(int pos) {
+			if (size * 4 > index.length * 3) {
+				index = new int[index.length * 2];
+				for (int i = 0; i < size; i++) {
+					insertSlot(i);
+				}
+			} else {
+				insertSlot(pos);
+			}
+		}
+
+		private void insertSlot(int pos) {
+			final int mask = index.length - 1;
+			int slot = hash(uids[pos], dsts[pos], keys[pos]) & mask;
+			while (index[slot] != 0)
+				slot = (slot + 1) & mask;
+			index[slot] = pos + 1;
+		}
+
+		private void grow() {
+			final int length = uids.length * 2;
+			final int newuids[] = new int[length];
+			final int newdsts[] = new int[length];
+			final int newkeys[] = new int[length];
+			final int newcounts[] = new int[length];
+			System.arraycopy(uids, 0, newuids, 0, size);
+			System.arraycopy(dsts, 0, newdsts, 0, size);
+			System.arraycopy(keys, 0, newkeys, 0, size);
+			System.arraycopy(counts, 0, newcounts, 0, size);
+			uids = newuids;
+			dsts = newdsts;
+			keys = newkeys;
+			counts = newcounts;
+		}
+
+		/**
+		 * Add the counters of an UID (and interface class) to a result
+		 */
+		private void collect(int uid, int itf, Counts result) {
+			for (int i = 0; i < size; i++) {
+				if (uids[i] == uid && (itf == ANY_ITF || (keys[i] & 3) == itf))
+					result.add(uid, dsts[i], keys[i], counts[i], Integer.MAX_VALUE);
+			}
+		}
+
+		/**
+		 * Add the UIDs of all counters to a set
+		 */
+		private void collectUids(IntSet result) {
+			for (int i = 0; i < size; i++) {
+				result.add(uids[i]);
+			}
+		}
+
+		/**
+		 * Sort the counters, highest count first (the hash index is dropped:
+		 * no counters can be added after sorting)
+		 */
+		private void sort() {
+			final Integer order[] = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer o1, Integer o2) {
+					final int c1 = counts[o1], c2 = counts[o2];
+					return (c1 > c2 ? -1 : (c1 < c2 ? 1 : 0));
+				}
+			});
+			final int newuids[] = new int[size];
+			final int newdsts[] = new int[size];
+			final int newkeys[] = new int[size];
+			final int newcounts[] = new int[size];
+			for (int i = 0; i < size; i++) {
+				newuids[i] = uids[order[i]];
+				newdsts[i] = dsts[order[i]];
+				newkeys[i] = keys[order[i]];
+				newcounts[i] = counts[order[i]];
+			}
+			System.arraycopy(newuids, 0, uids, 0, size);
+			System.arraycopy(newdsts, 0, dsts, 0, size);
+			System.arraycopy(newkeys, 0, keys, 0, size);
+			System.arraycopy(newcounts, 0, counts, 0, size);
+			index = null;
+		}
+
+		private static int hash(int uid, int dst, int key) {
+			return IntSet.hash((uid * 31 + dst) * 31 + key);
+		}
+	}
+}
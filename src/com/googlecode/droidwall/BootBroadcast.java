@@ -37,11 +37,16 @@ public class BootBroadcast extends BroadcastReceiver {
 	public void onReceive(Context context, Intent intent) {
 		if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
 			if (Api.isEnabled(context)) {
-				if (!Api.applySavedIptablesRules(context, false)) {
-					// Error enabling firewall on boot
-					Toast.makeText(context, R.string.toast_error_enabling, Toast.LENGTH_SHORT).show();
-					Api.setEnabled(context, false);
-				}
+				final Context ctx = context.getApplicationContext();
+				FirewallExecutor.apply(ctx, false, new FirewallExecutor.Callback<Boolean>() {
+					public void onResult(Boolean applied) {
+						if (!Boolean.TRUE.equals(applied)) {
+							// Error enabling firewall on boot
+							Toast.makeText(ctx, R.string.toast_error_enabling, Toast.LENGTH_SHORT).show();
+							Api.setEnabled(ctx, false);
+						}
+					}
+				});
 			}
 		}
 	}
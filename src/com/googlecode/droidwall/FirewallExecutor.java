@@ -0,0 +1,425 @@
+/**
+ * Serialized executor for firewall commands.
+ * All changes to the iptables rules are queued here and executed in order,
+ * one at a time, on a single background thread.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Serialized executor for firewall commands. Requests are executed in order
+ * on a single worker thread. While an "apply" or "purge" request is waiting
+ * on the queue, newer state requests are merged into it: a new apply shares
+ * the pending apply, and an apply/purge pair cancels the older request, since
+ * only the newest one determines the final kernel state.
+ */
+final class FirewallExecutor {
+	/** Request kind: apply the saved rules */
+	private static final int KIND_APPLY = 1;
+	/** Request kind: purge all rules */
+	private static final int KIND_PURGE = 2;
+	/** Request kind: any other command (never merged) */
+	private static final int KIND_OTHER = 3;
+
+	/** pending requests */
+	private static final LinkedList<Request<?>> queue = new LinkedList<Request<?>>();
+	/** worker thread (null if not started) */
+	private static volatile Thread worker;
+	/** request currently running on the worker thread */
+	private static volatile Request<?> current;
+
+	private FirewallExecutor() {
+	}
+
+	/**
+	 * Callback notified on the main thread when a request finishes. Requests
+	 * that have been cancelled (E.g.: superseded by a newer request) are not
+	 * notified.
+	 */
+	interface Callback<T> {
+		/**
+		 * @param result
+		 *            request result
+		 */
+		void onResult(T result);
+	}
+
+	/**
+	 * Listener notified on the main thread about the progress of a request.
+	 * The last notified stage is always {@link Api#STAGE_DONE}, even if the
+	 * request has been cancelled.
+	 */
+	interface ProgressListener {
+		/**
+		 * @param stage
+		 *            current stage (one of the Api.STAGE_* constants)
+		 */
+		void onStage(int stage);
+	}
+
+	/**
+	 * Queue a request to apply the saved rules.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @param callback
+	 *            optional callback (may be null)
+	 * @return future result of the apply (true if the rules were applied)
+	 */
+	static Future<Boolean> apply(final Context ctx, final boolean showErrors, Callback<Boolean> callback) {
+		return submitState(KIND_APPLY, ctx, showErrors, callback, null);
+	}
+
+	/**
+	 * Queue a request to apply the saved rules, reporting its progress.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @param callback
+	 *            optional callback (may be null)
+	 * @param listener
+	 *            optional progress listener (may be null)
+	 * @return future result of the apply (true if the rules were applied)
+	 */
+	static Future<Boolean> apply(final Context ctx, final boolean showErrors, Callback<Boolean> callback,
+			ProgressListener listener) {
+		return submitState(KIND_APPLY, ctx, showErrors, callback, listener);
+	}
+
+	/**
+	 * Queue a request to purge all rules.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @param callback
+	 *            optional callback (may be null)
+	 * @return future result of the purge (true if the rules were purged)
+	 */
+	static Future<Boolean> purge(final Context ctx, final boolean showErrors, Callback<Boolean> callback) {
+		return submitState(KIND_PURGE, ctx, showErrors, callback, null);
+	}
+
+	/**
+	 * Queue a request to purge all rules, reporting its progress.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @param callback
+	 *            optional callback (may be null)
+	 * @param listener
+	 *            optional progress listener (may be null)
+	 * @return future result of the purge (true if the rules were purged)
+	 */
+	static Future<Boolean> purge(final Context ctx, final boolean showErrors, Callback<Boolean> callback,
+			ProgressListener listener) {
+		return submitState(KIND_PURGE, ctx, showErrors, callback, listener);
+	}
+
+	/**
+	 * Queue any other command, to be executed in order with the firewall
+	 * changes.
+	 *
+	 * @param command
+	 *            command to be executed
+	 * @param callback
+	 *            optional callback (may be null)
+	 * @param listener
+	 *            optional progress listener (may be null)
+	 * @return future result of the command
+	 */
+	static <T> Future<T> submit(Callable<T> command, Callback<T> callback, ProgressListener listener) {
+		final Request<T> request = new Request<T>(KIND_OTHER, command);
+		request.addCallback(callback);
+		request.addListener(listener);
+		synchronized (queue) {
+			queue.add(request);
+			wakeUp();
+		}
+		return request;
+	}
+
+	/**
+	 * Cancel a request on behalf of the user. Apply and purge requests are
+	 * only cancelled while they are still waiting on the queue and have not
+	 * been merged with other requests: once running, their scripts are never
+	 * interrupted (the rules would be left half-applied), and their callbacks
+	 * always report the final result.
+	 *
+	 * @param future
+	 *            request returned by this class
+	 * @return true if the request has been cancelled
+	 */
+	static boolean cancel(Future<?> future) {
+		if (!(future instanceof Request)) {
+			return false;
+		}
+		final Request<?> request = (Request<?>) future;
+		synchronized (queue) {
+			if (request.kind == KIND_OTHER) {
+				// other commands do not change the rules: stop them anyway
+				queue.remove(request);
+				return request.cancel(true);
+			}
+			if (request.shared || !queue.remove(request)) {
+				return false;
+			}
+		}
+		return request.cancel(false);
+	}
+
+	/**
+	 * Report the current stage of the running request. This is called by the
+	 * Api methods and does nothing when not running on the worker thread.
+	 *
+	 * @param stage
+	 *            current stage (one of the Api.STAGE_* constants)
+	 */
+	static void stage(int stage) {
+		final Request<?> request = current;
+		if (request != null && Thread.currentThread() == worker) {
+			request.notifyStage(stage);
+		}
+	}
+
+	/**
+	 * Queue an apply or purge request, merging it with the pending ones.
+	 */
+	private static Future<Boolean> submitState(int kind, Context ctx, boolean showErrors,
+			Callback<Boolean> callback, ProgressListener listener) {
+		synchronized (queue) {
+			for (Request<?> pending : queue) {
+				if (pending.kind == KIND_OTHER || pending.isCancelled()) {
+					continue;
+				}
+				@SuppressWarnings("unchecked")
+				final Request<Boolean> state = (Request<Boolean>) pending;
+				if (state.kind == kind) {
+					// Same request already waiting: share it
+					state.shared = true;
+					state.command.merge(ctx, showErrors);
+					state.addCallback(callback);
+					state.addListener(listener);
+					return state;
+				}
+				// apply/purge pair: only the newest request matters
+				Log.d("DroidWall", "Cancelling pending firewall request (superseded)");
+				queue.remove(state);
+				state.cancel(false);
+				break;
+			}
+			final StateCommand command = new StateCommand(kind, ctx, showErrors);
+			final Request<Boolean> request = new Request<Boolean>(kind, command);
+			request.addCallback(callback);
+			request.addListener(listener);
+			queue.add(request);
+			wakeUp();
+			return request;
+		}
+	}
+
+	/**
+	 * Wake up the worker thread, starting it if necessary (must be called
+	 * while holding the queue lock)
+	 */
+	private static void wakeUp() {
+		if (worker == null) {
+			worker = new Thread("DroidWall-firewall") {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		queue.notifyAll();
+	}
+
+	/**
+	 * Worker loop
+	 */
+	private static void work() {
+		while (true) {
+			final Request<?> request;
+			synchronized (queue) {
+				while (queue.isEmpty()) {
+					try {
+						queue.wait();
+					} catch (InterruptedException ex) {
+					}
+				}
+				request = queue.removeFirst();
+			}
+			// clear any interruption left by a cancelled request
+			Thread.interrupted();
+			current = request;
+			try {
+				request.run();
+			} finally {
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Apply or purge command. Merged requests keep the most useful context
+	 * (the one that wants errors to be displayed).
+	 */
+	private static final class StateCommand implements Callable<Boolean> {
+		private final int kind;
+		private Context ctx;
+		private boolean showErrors;
+
+		private StateCommand(int kind, Context ctx, boolean showErrors) {
+			this.kind = kind;
+			this.ctx = ctx;
+			this.showErrors = showErrors;
+		}
+
+		private synchronized void merge(Context ctx, boolean showErrors) {
+			if (showErrors || !this.showErrors) {
+				this.ctx = ctx;
+				this.showErrors = showErrors;
+			}
+		}
+
+		public Boolean call() {
+			final Context ctx;
+			final boolean showErrors;
+			synchronized (this) {
+				ctx = this.ctx;
+				showErrors = this.showErrors;
+			}
+			// interactive requests also check (and report) root access
+			if (showErrors && !Api.hasRootAccess(ctx, true)) {
+				return false;
+			}
+			if (kind == KIND_APPLY) {
+				return Api.applySavedIptablesRules(ctx, showErrors);
+			}
+			return Api.purgeIptables(ctx, showErrors);
+		}
+	}
+
+	/**
+	 * Queued request (future result plus callbacks and progress listeners)
+	 */
+	private static final class Request<T> extends FutureTask<T> {
+		private final int kind;
+		private final StateCommand command;
+		private final ArrayList<Callback<T>> callbacks = new ArrayList<Callback<T>>(1);
+		private final ArrayList<ProgressListener> listeners = new ArrayList<ProgressListener>(1);
+		/** true if other requests have been merged into this one (queue lock) */
+		private boolean shared;
+
+		private Request(int kind, Callable<T> command) {
+			super(command);
+			this.kind = kind;
+			this.command = (command instanceof StateCommand ? (StateCommand) command : null);
+		}
+
+		private void addCallback(Callback<T> callback) {
+			if (callback != null) {
+				synchronized (callbacks) {
+					callbacks.add(callback);
+				}
+			}
+		}
+
+		private void addListener(ProgressListener listener) {
+			if (listener != null) {
+				synchronized (listeners) {
+					listeners.add(listener);
+				}
+			}
+		}
+
+		/**
+		 * Notify the progress listeners (on the main thread)
+		 *
+		 * @param stage
+		 *            current stage
+		 */
+		private void notifyStage(final int stage) {
+			final ArrayList<ProgressListener> list;
+			synchronized (listeners) {
+				if (listeners.isEmpty()) {
+					return;
+				}
+				list = new ArrayList<ProgressListener>(listeners);
+			}
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				public void run() {
+					for (ProgressListener listener : list) {
+						listener.onStage(stage);
+					}
+				}
+			});
+		}
+
+		@Override
+		protected void done() {
+			notifyStage(Api.STAGE_DONE);
+			if (isCancelled()) {
+				return;
+			}
+			final ArrayList<Callback<T>> list;
+			synchronized (callbacks) {
+				if (callbacks.isEmpty()) {
+					return;
+				}
+				list = new ArrayList<Callback<T>>(callbacks);
+			}
+			T result = null;
+			try {
+				result = get();
+			} catch (Exception ex) {
+				Log.e("DroidWall", "Firewall request failed", ex);
+			}
+			final T value = result;
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				public void run() {
+					for (Callback<T> callback : list) {
+						callback.onResult(value);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Primitive int-keyed hash map.
+ * Used for UID bookkeeping, avoiding the boxing of java.util collections.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Open addressing (linear probing) map of int keys to objects. Any int value
+ * may be used as a key, but null values cannot be stored.
+ * Not thread-safe.
+ *
+ * @param <V>
+ *            value type
+ */
+final class IntMap<V> {
+	/** hash table keys (power of two length) */
+	private int keys[];
+	/** hash table values (null on free slots) */
+	private Object values[];
+	/** number of entries on the table */
+	private int size;
+	/** value of the IntSet.FREE key (stored apart) */
+	private V freeValue;
+
+	/**
+	 * Creates a new empty map
+	 */
+	IntMap() {
+		this(8);
+	}
+
+	/**
+	 * Creates a new empty map
+	 *
+	 * @param expected
+	 *            expected number of entries
+	 */
+	IntMap(int expected) {
+		final int length = IntSet.tableSize(expected);
+		keys = new int[length];
+		values = new Object[length];
+	}
+
+	/**
+	 * @param key
+	 *            key to look for
+	 * @return value of the key, or null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		if (key == IntSet.FREE) {
+			return freeValue;
+		}
+		final int mask = keys.length - 1;
+		for (int i = IntSet.hash(key) & mask;; i = (i + 1) & mask) {
+			final Object value = values[i];
+			if (value == null)
+				return null;
+			if (keys[i] == key)
+				return (V) value;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            key to look for
+	 * @return true if the key is on the map
+	 */
+	boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @param key
+	 *            key
+	 * @param value
+	 *            new value (not null)
+	 * @return previous value, or null if none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null value for key " + key);
+		}
+		if (key == IntSet.FREE) {
+			final V old = freeValue;
+			freeValue = value;
+			return old;
+		}
+		final int mask = keys.length - 1;
+		int i = IntSet.hash(key) & mask;
+		for (;; i = (i + 1) & mask) {
+			final Object old = values[i];
+			if (old == null)
+				break;
+			if (keys[i] == key) {
+				values[i] = value;
+				return (V) old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 *            key to remove
+	 * @return removed value, or null if the key was not on the map
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key) {
+		if (key == IntSet.FREE) {
+			final V old = freeValue;
+			freeValue = null;
+			return old;
+		}
+		final int mask = keys.length - 1;
+		int i = IntSet.hash(key) & mask;
+		for (;; i = (i + 1) & mask) {
+			if (values[i] == null)
+				return null;
+			if (keys[i] == key)
+				break;
+		}
+		final V old = (V) values[i];
+		// shift back the following entries of the same probe sequence
+		int gap = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			final int home = IntSet.hash(keys[j]) & mask;
+			// move it unless its home slot is cyclically within (gap, j]
+			if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	/**
+	 * @return number of entries on the map
+	 */
+	int size() {
+		return size + (freeValue != null ? 1 : 0);
+	}
+
+	/**
+	 * @return new array with all keys (table order)
+	 */
+	int[] keys() {
+		final int result[] = new int[size()];
+		int count = 0;
+		if (freeValue != null)
+			result[count++] = IntSet.FREE;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				result[count++] = keys[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Copy all values to an array
+	 *
+	 * @param array
+	 *            destination array (at least {@link #size()} long)
+	 * @return the destination array
+	 */
+	@SuppressWarnings("unchecked")
+	V[] values(V array[]) {
+		int count = 0;
+		if (freeValue != null)
+			array[count++] = freeValue;
+		for (Object value : values) {
+			if (value != null)
+				array[count++] = (V) value;
+		}
+		return array;
+	}
+
+	/**
+	 * Rebuild the hash table with a new size
+	 */
+	private void rehash(int length) {
+		final int oldkeys[] = keys;
+		final Object oldvalues[] = values;
+		keys = new int[length];
+		values = new Object[length];
+		final int mask = length - 1;
+		for (int j = 0; j < oldvalues.length; j++) {
+			if (oldvalues[j] != null) {
+				int i = IntSet.hash(oldkeys[j]) & mask;
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldkeys[j];
+				values[i] = oldvalues[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Primitive int hash set.
+ * Used for UID bookkeeping, avoiding the boxing of java.util collections.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) set of int values. Any int value may be
+ * stored, including negative ones (such as the special UIDs).
+ * Not thread-safe.
+ */
+final class IntSet {
+	/** Marker of free slots (stored apart when used as a value) */
+	static final int FREE = Integer.MIN_VALUE;
+
+	/** hash table (power of two length) */
+	private int keys[];
+	/** number of values on the table */
+	private int size;
+	/** true if FREE itself is on the set */
+	private boolean hasFree;
+
+	/**
+	 * Creates a new empty set
+	 */
+	IntSet() {
+		this(8);
+	}
+
+	/**
+	 * Creates a new empty set
+	 *
+	 * @param expected
+	 *            expected number of values
+	 */
+	IntSet(int expected) {
+		keys = new int[tableSize(expected)];
+		Arrays.fill(keys, FREE);
+	}
+
+	/**
+	 * @param values
+	 *            initial values
+	 * @return new set holding the given values
+	 */
+	static IntSet of(int values[]) {
+		final IntSet set = new IntSet(values.length);
+		for (int value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+
+	/**
+	 * @param value
+	 *            value to look for
+	 * @return true if the value is on the set
+	 */
+	boolean contains(int value) {
+		if (value == FREE) {
+			return hasFree;
+		}
+		final int mask = keys.length - 1;
+		for (int i = hash(value) & mask;; i = (i + 1) & mask) {
+			final int key = keys[i];
+			if (key == value)
+				return true;
+			if (key == FREE)
+				return false;
+		}
+	}
+
+	/**
+	 * @param value
+	 *            value to add
+	 * @return true if the value was not on the set
+	 */
+	boolean add(int value) {
+		if (value == FREE) {
+			if (hasFree)
+				return false;
+			hasFree = true;
+			return true;
+		}
+		final int mask = keys.length - 1;
+		int i = hash(value) & mask;
+		for (;; i = (i + 1) & mask) {
+			final int key = keys[i];
+			if (key == value)
+				return false;
+			if (key == FREE)
+				break;
+		}
+		keys[i] = value;
+		if (++size * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * @param value
+	 *            value to remove
+	 * @return true if the value was on the set
+	 */
+	boolean remove(int value) {
+		if (value == FREE) {
+			final boolean had = hasFree;
+			hasFree = false;
+			return had;
+		}
+		final int mask = keys.length - 1;
+		int i = hash(value) & mask;
+		for (;; i = (i + 1) & mask) {
+			final int key = keys[i];
+			if (key == FREE)
+				return false;
+			if (key == value)
+				break;
+		}
+		// shift back the following values of the same probe sequence
+		int gap = i;
+		for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+			final int home = hash(keys[j]) & mask;
+			// move it unless its home slot is cyclically within (gap, j]
+			if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+				keys[gap] = keys[j];
+				gap = j;
+			}
+		}
+		keys[gap] = FREE;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return number of values on the set
+	 */
+	int size() {
+		return size + (hasFree ? 1 : 0);
+	}
+
+	/**
+	 * @return true if the set is empty
+	 */
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return new array with all values, in ascending order
+	 */
+	int[] toSortedArray() {
+		final int result[] = new int[size()];
+		int count = 0;
+		if (hasFree)
+			result[count++] = FREE;
+		for (int key : keys) {
+			if (key != FREE)
+				result[count++] = key;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Rebuild the hash table with a new size
+	 */
+	private void rehash(int length) {
+		final int old[] = keys;
+		keys = new int[length];
+		Arrays.fill(keys, FREE);
+		final int mask = length - 1;
+		for (int key : old) {
+			if (key != FREE) {
+				int i = hash(key) & mask;
+				while (keys[i] != FREE)
+					i = (i + 1) & mask;
+				keys[i] = key;
+			}
+		}
+	}
+
+	/**
+	 * @param expected
+	 *            expected number of values
+	 * @return hash table length (power of two, at most 75% full)
+	 */
+	static int tableSize(int expected) {
+		int length = 8;
+		while (length * 3 < expected * 4 + 4)
+			length <<= 1;
+		return length;
+	}
+
+	/**
+	 * Spread the bits of a value (consecutive UIDs are very common)
+	 */
+	static int hash(int value) {
+		final int h = value * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
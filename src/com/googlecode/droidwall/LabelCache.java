@@ -0,0 +1,270 @@
+/**
+ * Application label cache.
+ * Labels are stored on their own compact binary file, instead of the rules
+ * preferences.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+/**
+ * Bounded cache of application labels per package name. Changes are only
+ * kept in memory until {@link #flush(Context)} is called, so a batch of
+ * changes is written at once. The cache is discarded when the locale changes
+ * (on load, or while it is loaded).
+ */
+final class LabelCache {
+	/** File signature */
+	private static final int MAGIC = 0x44574c43;
+	/** File format version */
+	private static final int VERSION = 1;
+	/** Cache file name (on the application files directory) */
+	private static final String FILE_NAME = "labels.bin";
+	/** Maximum number of cached labels (least recently used are evicted) */
+	private static final int MAX_ENTRIES = 2048;
+	/** Prefix of the legacy label entries on the rules preferences */
+	private static final String LEGACY_PREFIX = "cache.label.";
+
+	/** loaded cache (null if not loaded yet) */
+	private static LabelCache instance;
+
+	/** labels per package name, in access order */
+	private final LinkedHashMap<String, String> labels = new LinkedHashMap<String, String>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	/** indicates if the cache has changes not written yet */
+	private boolean dirty;
+	/** locale of the labels */
+	private String locale = Locale.getDefault().toString();
+
+	private LabelCache() {
+	}
+
+	/**
+	 * Get the label cache, loading it from its file if necessary.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return label cache
+	 */
+	static synchronized LabelCache get(Context ctx) {
+		if (instance == null) {
+			instance = new LabelCache();
+			instance.load(ctx);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 * @return cached label, or null if not cached
+	 */
+	synchronized String get(String packageName) {
+		checkLocale();
+		return labels.get(packageName);
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 * @param label
+	 *            application label
+	 */
+	synchronized void put(String packageName, String label) {
+		checkLocale();
+		if (!label.equals(labels.put(packageName, label))) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * @param packageName
+	 *            package name
+	 */
+	synchronized void remove(String packageName) {
+		if (labels.remove(packageName) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Evict the labels of all packages that are not installed anymore
+	 *
+	 * @param installed
+	 *            installed package names
+	 */
+	synchronized void retain(Collection<String> installed) {
+		for (Iterator<String> it = labels.keySet().iterator(); it.hasNext();) {
+			if (!installed.contains(it.next())) {
+				it.remove();
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Discard all labels if the locale has changed since they were cached
+	 */
+	private void checkLocale() {
+		final String current = Locale.getDefault().toString();
+		if (!current.equals(locale)) {
+			labels.clear();
+			locale = current;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Write the pending changes (if any) to the cache file
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	synchronized void flush(Context ctx) {
+		checkLocale();
+		if (!dirty) {
+			return;
+		}
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		final File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 8192));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(locale);
+			out.writeInt(labels.size());
+			for (Map.Entry<String, String> entry : labels.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.close();
+			out = null;
+			if (tmp.renameTo(file)) {
+				dirty = false;
+			} else {
+				Log.e("DroidWall", "Could not save the label cache");
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not save the label cache: " + ex);
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Load the cache from its file. On the first run, the labels are
+	 * migrated from the rules preferences (and removed from there).
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void load(Context ctx) {
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		if (!file.exists()) {
+			migrate(ctx);
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.d("DroidWall", "Ignoring outdated label cache");
+				return;
+			}
+			if (!Locale.getDefault().toString().equals(in.readUTF())) {
+				// all labels must be resolved again
+				Log.d("DroidWall", "Locale changed, ignoring the label cache");
+				dirty = true;
+				return;
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				labels.put(in.readUTF(), in.readUTF());
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not load the label cache: " + ex);
+			labels.clear();
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Move the labels cached on the rules preferences by older versions to
+	 * this cache
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void migrate(Context ctx) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(Api.PREFS_NAME, 0);
+		final Editor edit = prefs.edit();
+		int count = 0;
+		for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			final String key = entry.getKey();
+			if (key.startsWith(LEGACY_PREFIX)) {
+				if (entry.getValue() instanceof String && ((String) entry.getValue()).length() > 0) {
+					labels.put(key.substring(LEGACY_PREFIX.length()), (String) entry.getValue());
+				}
+				edit.remove(key);
+				count++;
+			}
+		}
+		if (count > 0) {
+			Log.d("DroidWall", "Moving " + count + " cached labels out of the preferences");
+			dirty = true;
+			flush(ctx);
+			edit.commit();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ * Background application label resolver.
+ * Labels that are not cached are resolved by a small pool of worker threads,
+ * so the application list can be displayed before all of them are known.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Resolves the pending labels of the application catalog (packages inspected
+ * without a cached label are displayed by their package name meanwhile).
+ * Resolved labels are gathered and patched on the application table in
+ * batches (at most one table copy per {@link #PATCH_INTERVAL}) by the worker
+ * threads, then reported to the listener on the main thread. The label cache
+ * and the catalog are saved once, when the whole batch is done.
+ */
+final class LabelResolver {
+	/** Maximum number of worker threads (getApplicationLabel() is I/O bound) */
+	private static final int MAX_THREADS = 4;
+	/** Minimum interval between two patches of the application table (ms) */
+	private static final long PATCH_INTERVAL = 100;
+
+	/** main thread handler */
+	private static Handler handler;
+	/** current listener (null if none) */
+	private static Listener listener;
+	/** true while a batch is running */
+	private static boolean running;
+	/** resolved labels not patched yet, per package name */
+	private static HashMap<String, String> unpatched = new HashMap<String, String>();
+	/** UIDs of the labels not patched yet */
+	private static IntSet unpatchedUids = new IntSet();
+	/** time of the last patch (uptime) */
+	private static long lastPatch;
+
+	private LabelResolver() {
+	}
+
+	/**
+	 * Listener notified on the main thread
+	 */
+	interface Listener {
+		/**
+		 * The names of some applications have changed
+		 *
+		 * @param uids
+		 *            linux user ids of the applications
+		 */
+		void labelsResolved(IntSet uids);
+	}
+
+	/**
+	 * Set the listener notified when labels are resolved
+	 *
+	 * @param l
+	 *            listener, or null to remove it
+	 */
+	static synchronized void setListener(Listener l) {
+		listener = l;
+	}
+
+	/**
+	 * Start resolving the pending labels on the background (nothing is done if
+	 * there are no pending labels or if a batch is already running)
+	 *
+	 * @param ctx
+	 *            context (mandatory)
+	 */
+	static synchronized void start(Context ctx) {
+		if (running) {
+			return;
+		}
+		final Context appctx = ctx.getApplicationContext();
+		final AppCatalog catalog = AppCatalog.get(appctx);
+		final List<AppCatalog.Entry> pending = catalog.pending();
+		if (pending.isEmpty()) {
+			return;
+		}
+		if (handler == null) {
+			handler = new Handler(Looper.getMainLooper());
+		}
+		running = true;
+		final long start = System.currentTimeMillis();
+		final int threads = Math.max(1, Math.min(MAX_THREADS, Math.min(pending.size(), Runtime.getRuntime()
+				.availableProcessors() + 1)));
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final AtomicInteger remaining = new AtomicInteger(pending.size());
+		final PackageManager pkgmanager = appctx.getPackageManager();
+		for (final AppCatalog.Entry entry : pending) {
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						resolve(appctx, pkgmanager, catalog, entry.packageName);
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							finish(appctx, catalog, pending.size(), start);
+						}
+					}
+				}
+			});
+		}
+		// worker threads exit once the queue is empty
+		pool.shutdown();
+	}
+
+	/**
+	 * Resolve a single label (executed by the worker threads)
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param pkgmanager
+	 *            package manager
+	 * @param catalog
+	 *            application catalog
+	 * @param packageName
+	 *            package name
+	 */
+	private static void resolve(Context ctx, PackageManager pkgmanager, AppCatalog catalog,
+			String packageName) {
+		final String label;
+		try {
+			final ApplicationInfo apinfo = pkgmanager.getApplicationInfo(packageName, 0);
+			label = pkgmanager.getApplicationLabel(apinfo).toString();
+		} catch (PackageManager.NameNotFoundException ex) {
+			// removed meanwhile (the package broadcast takes care of it)
+			return;
+		} catch (RuntimeException ex) {
+			Log.e("DroidWall", "Could not resolve the label of " + packageName + ": " + ex);
+			return;
+		}
+		final int uid = catalog.setLabel(ctx, packageName, label);
+		if (uid == -1) {
+			return;
+		}
+		final HashMap<String, String> labels;
+		final IntSet uids;
+		synchronized (LabelResolver.class) {
+			unpatched.put(packageName, label);
+			unpatchedUids.add(uid);
+			final long now = SystemClock.uptimeMillis();
+			if (now - lastPatch < PATCH_INTERVAL) {
+				// patched with the next label (or when the batch is done)
+				return;
+			}
+			lastPatch = now;
+			labels = unpatched;
+			uids = unpatchedUids;
+			unpatched = new HashMap<String, String>();
+			unpatchedUids = new IntSet();
+		}
+		patch(labels, uids);
+	}
+
+	/**
+	 * Patch the application table with some resolved labels, and notify the
+	 * listener on the main thread
+	 *
+	 * @param labels
+	 *            resolved labels per package name
+	 * @param uids
+	 *            UIDs of the labels
+	 */
+	private static void patch(HashMap<String, String> labels, final IntSet uids) {
+		Api.labelsResolved(labels);
+		handler.post(new Runnable() {
+			public void run() {
+				final Listener l;
+				synchronized (LabelResolver.class) {
+					l = listener;
+				}
+				if (l != null) {
+					l.labelsResolved(uids);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Patch the remaining labels and save them (executed by the last worker
+	 * thread)
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param catalog
+	 *            application catalog
+	 * @param count
+	 *            number of labels on this batch
+	 * @param start
+	 *            batch start time
+	 */
+	private static void finish(Context ctx, AppCatalog catalog, int count, long start) {
+		final HashMap<String, String> labels;
+		final IntSet uids;
+		synchronized (LabelResolver.class) {
+			labels = unpatched;
+			uids = unpatchedUids;
+			unpatched = new HashMap<String, String>();
+			unpatchedUids = new IntSet();
+		}
+		if (!labels.isEmpty()) {
+			patch(labels, uids);
+		}
+		LabelCache.get(ctx).flush(ctx);
+		catalog.save(ctx);
+		Log.d("DroidWall", count + " labels resolved in " + (System.currentTimeMillis() - start) + "ms");
+		synchronized (LabelResolver.class) {
+			running = false;
+		}
+	}
+}
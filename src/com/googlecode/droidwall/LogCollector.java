@@ -0,0 +1,697 @@
+/**
+ * Background collector of blocked packet records.
+ * The kernel log (or the NFLOG group) is followed as root, and the
+ * "[DROIDWALL]" records are stored on the persistent log ring.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Thread that collects the blocked packets as root and appends their records
+ * to the {@link LogRing}, counting them on the {@link BlockStats}. Every root
+ * command goes through the persistent root shell. When the rules log through
+ * NFLOG, the packets are received from the NFLOG group (see
+ * {@link NflogReader}) by a tcpdump started in the background, which writes
+ * to a FIFO read by this thread. If the receiver keeps failing, NFLOG is
+ * disabled and the rules are applied again with the LOG target. Otherwise the
+ * kernel log is followed the same way by "dmesg -w", skipping the lines up to
+ * the kernel timestamp of the last collected record. If dmesg cannot follow,
+ * or the kernel log has no timestamps, it is polled instead: only the records
+ * added since the previous snapshot are collected, the polls are spaced out
+ * while nothing new is logged, and a poll is postponed while another script is
+ * running. The kernel log itself is never consumed or cleared. Records are
+ * counted at their kernel timestamp (records of unknown time are counted when
+ * collected, except those that may predate the first collection). The
+ * collector gives up if it keeps failing (E.g.: root access denied).
+ */
+final class LogCollector extends Thread {
+	/** Interval between two kernel log polls */
+	private static final long POLL_INTERVAL = 15000;
+	/** Longest interval between two polls, while nothing new is logged */
+	private static final long MAX_POLL_INTERVAL = 120000;
+	/** Delay of a poll postponed by another script */
+	private static final long BUSY_DELAY = 2000;
+	/** Minimum interval between two anchor saves while following */
+	private static final long ANCHOR_INTERVAL = 10000;
+	/** Delay before restarting a dead stream */
+	private static final long RESTART_DELAY = 30000;
+	/** A stream that dies before this time (ms) counts as a failure */
+	private static final long MIN_LIFETIME = 5000;
+	/** Consecutive failures before giving up */
+	private static final int MAX_FAILURES = 3;
+	/** Number of lines identifying the end of the last snapshot */
+	private static final int ANCHOR_LINES = 4;
+	/** Kernel log snapshot file (on the cache directory) */
+	private static final String SNAPSHOT_FILE = "log.snapshot";
+	/** Last lines of the previous snapshot (on the files directory) */
+	private static final String ANCHOR_FILE = "log.anchor";
+	/** FIFO written by the receiver (on the cache directory) */
+	private static final String FIFO = "receiver.fifo";
+
+	/** running collector (null if none) */
+	private static LogCollector current;
+
+	/** application context */
+	private final Context ctx;
+	/** blocked packet statistics */
+	private final BlockStats stats;
+	/** counts the collected records on the statistics */
+	private final LogParser parser;
+	/** serializes the kernel log polls (collector thread and catch-up) */
+	private final Object pollLock = new Object();
+	/** last lines of the previous kernel log snapshot (null if none) */
+	private byte anchor[][];
+	/** time of the record being counted */
+	private long now;
+	/** records are never counted before this time (0 if nothing collected yet) */
+	private long counted;
+	/** PID of the receiver (0 if not running) */
+	private int receiver;
+	/** true while the kernel log is followed (no polls needed) */
+	private boolean streaming;
+	/** true if the kernel log could not be followed */
+	private boolean pollOnly;
+	/** true when the collector has been stopped */
+	private volatile boolean stopped;
+
+	private LogCollector(Context ctx) {
+		super("DroidWall log collector");
+		this.ctx = ctx;
+		this.stats = BlockStats.get(ctx);
+		// the anchor is saved each time records are collected
+		this.counted = new File(ctx.getFilesDir(), ANCHOR_FILE).lastModified();
+		this.parser = new LogParser(new LogParser.Sink() {
+			public void onPacket(int uid, int dst, int port, int proto, int itf) {
+				stats.add(LogCollector.this.ctx, now, uid, dst, port, itf);
+			}
+		});
+		setDaemon(true);
+	}
+
+	/**
+	 * Start or stop the collector
+	 *
+	 * @param ctx
+	 *            context
+	 * @param active
+	 *            true if blocked packets are being logged
+	 */
+	static synchronized void setActive(Context ctx, boolean active) {
+		if (active) {
+			if (current == null) {
+				current = new LogCollector(ctx.getApplicationContext());
+				current.start();
+			}
+		} else if (current != null) {
+			current.terminate();
+			current = null;
+		}
+	}
+
+	/**
+	 * @return true if the collector is running
+	 */
+	static synchronized boolean isRunning() {
+		return current != null;
+	}
+
+	/**
+	 * Collect the records logged since the last poll right now (nothing is
+	 * done if the collector is not running or is following the log). This
+	 * requires root access and must not be called from the main thread.
+	 */
+	static void catchUp() {
+		final LogCollector collector;
+		synchronized (LogCollector.class) {
+			collector = current;
+		}
+		if (collector == null) {
+			return;
+		}
+		try {
+			if (!Toolchain.get(collector.ctx).nflog()) {
+				// a poll does nothing while the kernel log is followed
+				collector.poll(LogRing.get(collector.ctx));
+			}
+		} catch (IOException ex) {
+			Log.d("DroidWall", "Could not poll the kernel log: " + ex);
+		}
+	}
+
+	/**
+	 * Called by the collector thread when it gives up
+	 */
+	private static synchronized void finished(LogCollector collector) {
+		if (current == collector) {
+			current = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		int failures = 0;
+		long interval = POLL_INTERVAL;
+		try {
+			final LogRing ring = LogRing.get(ctx);
+			while (!stopped) {
+				boolean ok = false;
+				boolean busy = false;
+				boolean nflog = false;
+				boolean follow = false;
+				long delay = interval;
+				try {
+					// the same choice made when the rules were compiled
+					final Toolchain tools = Toolchain.get(ctx);
+					nflog = tools.nflog();
+					follow = (nflog || (!pollOnly && tools.has(Toolchain.CAP_DMESG_FOLLOW)));
+					if (follow) {
+						final long started = System.currentTimeMillis();
+						if (nflog) {
+							followNflog(ring, tools);
+						} else {
+							followKernelLog(ring, tools);
+						}
+						ok = (System.currentTimeMillis() - started >= MIN_LIFETIME);
+						delay = RESTART_DELAY;
+					} else if (Api.isScriptBusy()) {
+						// let the other script run first: the records wait on
+						// the kernel log
+						busy = true;
+						delay = BUSY_DELAY;
+					} else {
+						final int records = poll(ring);
+						ok = (records != -1);
+						// space out the polls while nothing new is logged
+						interval = (records > 0 ? POLL_INTERVAL : Math.min(interval * 2, MAX_POLL_INTERVAL));
+						delay = interval;
+					}
+				} catch (IOException ex) {
+					Log.d("DroidWall", "Log collector failed: " + ex);
+				} finally {
+					stopReceiver();
+				}
+				if (stopped) {
+					break;
+				}
+				if (!busy) {
+					failures = (ok ? 0 : failures + 1);
+				}
+				if (follow && !nflog && (pollOnly || failures >= MAX_FAILURES)) {
+					Log.w("DroidWall", "Could not follow the kernel log, polling it");
+					pollOnly = true;
+					failures = 0;
+					delay = 0;
+				} else if (failures >= MAX_FAILURES && nflog) {
+					// log to the kernel log instead, and collect it from there
+					Log.w("DroidWall", "NFLOG receiver is not working, using the LOG target");
+					Toolchain.disableNflog(ctx);
+					FirewallExecutor.apply(ctx, false, null);
+					failures = 0;
+					delay = 0;
+				} else if (failures >= MAX_FAILURES) {
+					Log.w("DroidWall", "Log collector is not working, giving up");
+					break;
+				}
+				synchronized (this) {
+					if (!stopped && delay > 0)
+						wait(delay);
+				}
+			}
+		} catch (InterruptedException ex) {
+		} catch (IOException ex) {
+			Log.w("DroidWall", "Log ring not available: " + ex);
+		} finally {
+			stats.flush(ctx);
+			finished(this);
+		}
+	}
+
+	/**
+	 * Collect the kernel log records added since the previous snapshot. The
+	 * first poll also collects the records that were already on the kernel
+	 * log (unless they have been collected before).
+	 *
+	 * @param ring
+	 *            destination of the records
+	 * @return number of new records (0 while the kernel log is followed), or
+	 *         -1 if the kernel log could not be read
+	 * @throws IOException
+	 *             on error
+	 */
+	private int poll(LogRing ring) throws IOException {
+		synchronized (pollLock) {
+			if (streaming) {
+				return 0;
+			}
+			final File file = new File(ctx.getCacheDir(), SNAPSHOT_FILE);
+			try {
+				final int code = Api.dumpKernelLog(ctx, file, new StringBuilder());
+				if (code == 1) {
+					// no blocked packets on the kernel log
+					counted = Math.max(counted, System.currentTimeMillis());
+					return 0;
+				} else if (code != 0) {
+					return -1;
+				}
+				final byte b[] = readFile(file);
+				if (anchor == null) {
+					anchor = loadAnchor();
+				}
+				// line boundaries: line i is [starts[i], ends[i])
+				final int starts[] = new int[count(b) + 1];
+				final int ends[] = new int[starts.length];
+				int lines = 0;
+				int start = 0;
+				for (int i = 0; i <= b.length; i++) {
+					if (i == b.length || b[i] == '\n') {
+						int end = i;
+						if (end > start && b[end - 1] == '\r')
+							end--;
+						if (end > start) {
+							starts[lines] = start;
+							ends[lines++] = end;
+						}
+						start = i + 1;
+					}
+				}
+				final long now = System.currentTimeMillis();
+				final int first = skip(b, starts, ends, lines);
+				for (int i = first; i < lines; i++) {
+					record(ring, b, starts[i], ends[i], time(b, starts[i], ends[i], now));
+				}
+				if (first < lines) {
+					final int n = Math.min(lines, ANCHOR_LINES);
+					final byte last[][] = new byte[n][];
+					for (int i = 0; i < n; i++) {
+						final int line = lines - n + i;
+						last[i] = new byte[ends[line] - starts[line]];
+						System.arraycopy(b, starts[line], last[i], 0, last[i].length);
+					}
+					saveAnchor(last);
+				}
+				// everything logged until now has been collected
+				counted = Math.max(counted, now);
+				return lines - first;
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Find the lines already collected by the previous snapshot: the last
+	 * occurrence of the anchor lines (or of the last one, if the oldest ones
+	 * have already left the kernel log)
+	 *
+	 * @return index of the first new line
+	 */
+	private int skip(byte b[], int starts[], int ends[], int lines) {
+		final byte a[][] = anchor;
+		if (a == null || a.length == 0) {
+			return 0;
+		}
+		for (int i = lines - 1; i >= a.length - 1; i--) {
+			boolean match = true;
+			for (int j = 0; j < a.length && match; j++) {
+				final int line = i - a.length + 1 + j;
+				match = equals(b, starts[line], ends[line], a[j]);
+			}
+			if (match)
+				return i + 1;
+		}
+		final byte last[] = a[a.length - 1];
+		for (int i = lines - 1; i >= 0; i--) {
+			if (equals(b, starts[i], ends[i], last))
+				return i + 1;
+		}
+		// the kernel log has been cleared or has wrapped: everything is new
+		return 0;
+	}
+
+	/**
+	 * Follow the NFLOG group until the receiver stops
+	 *
+	 * @param ring
+	 *            destination of the records
+	 * @param tools
+	 *            probed toolchain
+	 * @throws IOException
+	 *             on error
+	 */
+	private void followNflog(final LogRing ring, Toolchain tools) throws IOException {
+		// tcpdump opens the FIFO only after the capture has started, so a
+		// receiver that is still alive after a second is waiting for us
+		final File fifo = startReceiver(tools.header(), tools.tcpdump + " -i nflog:" + Api.NFLOG_GROUP
+				+ " -U -n -s 512 -w \"" + new File(ctx.getCacheDir(), FIFO).getAbsolutePath()
+				+ "\" </dev/null >/dev/null 2>/dev/null");
+		if (fifo == null) {
+			return;
+		}
+		final InputStream in = new FileInputStream(fifo);
+		try {
+			new NflogReader(new NflogReader.Receiver() {
+				public void onRecord(byte b[], int off, int len) {
+					record(ring, b, off, off + len, System.currentTimeMillis());
+				}
+			}).read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Follow the kernel log until dmesg stops. dmesg prints the whole kernel
+	 * log first: the lines up to the kernel timestamp of the last collected
+	 * record are skipped.
+	 *
+	 * @param ring
+	 *            destination of the records
+	 * @param tools
+	 *            probed toolchain
+	 * @throws IOException
+	 *             on error (E.g.: the kernel log has no timestamps)
+	 */
+	private void followKernelLog(LogRing ring, Toolchain tools) throws IOException {
+		synchronized (pollLock) {
+			// no polls from now on (a poll may still be running)
+			streaming = true;
+		}
+		try {
+			if (anchor == null) {
+				anchor = loadAnchor();
+			}
+			final byte a[][] = anchor;
+			// the anchor of a previous boot has no meaning on this kernel log
+			final long boot = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+			final boolean thisBoot = (new File(ctx.getFilesDir(), ANCHOR_FILE).lastModified() >= boot);
+			long cursor = -1;
+			if (thisBoot && a != null && a.length > 0) {
+				cursor = LogParser.kernelTime(a[a.length - 1], 0, a[a.length - 1].length);
+			}
+			final File fifo = startReceiver(tools.header(), "dmesg -w </dev/null >\""
+					+ new File(ctx.getCacheDir(), FIFO).getAbsolutePath() + "\" 2>/dev/null");
+			if (fifo == null) {
+				return;
+			}
+			final InputStream in = new FileInputStream(fifo);
+			// last records, saved as the anchor (in case the log is polled later)
+			final byte last[][] = new byte[ANCHOR_LINES][];
+			int kept = 0;
+			boolean changed = false;
+			long saved = System.currentTimeMillis();
+			try {
+				final byte b[] = new byte[4096];
+				// bytes of the current (incomplete) line at the start of the buffer
+				int len = 0;
+				// true while skipping the rest of a line that did not fit
+				boolean skipping = false;
+				int n;
+				while ((n = in.read(b, len, b.length - len)) != -1) {
+					final int end = len + n;
+					int start = 0;
+					for (int i = len; i < end; i++) {
+						if (b[i] != '\n') {
+							continue;
+						}
+						final long ts = LogParser.kernelTime(b, start, i);
+						if (ts == -1 && !skipping && i > start) {
+							pollOnly = true;
+							throw new IOException("The kernel log has no timestamps");
+						}
+						if (!skipping && ts > cursor && LogParser.indexOfMarker(b, start, i) != -1) {
+							final long now = System.currentTimeMillis();
+							record(ring, b, start, i, time(b, start, i, now));
+							cursor = ts;
+							System.arraycopy(last, 1, last, 0, last.length - 1);
+							last[last.length - 1] = new byte[i - start];
+							System.arraycopy(b, start, last[last.length - 1], 0, i - start);
+							kept = Math.min(kept + 1, last.length);
+							changed = true;
+							if (now - saved >= ANCHOR_INTERVAL) {
+								saveAnchor(tail(last, kept));
+								changed = false;
+								saved = now;
+							}
+						}
+						skipping = false;
+						start = i + 1;
+					}
+					len = end - start;
+					if (start > 0) {
+						System.arraycopy(b, start, b, 0, len);
+					} else if (len == b.length) {
+						skipping = true;
+						len = 0;
+					}
+				}
+			} finally {
+				in.close();
+				if (changed)
+					saveAnchor(tail(last, kept));
+			}
+		} finally {
+			synchronized (pollLock) {
+				streaming = false;
+			}
+		}
+	}
+
+	/**
+	 * Start a receiver writing to the FIFO in the background
+	 *
+	 * @param header
+	 *            script header
+	 * @param command
+	 *            receiver command (with its redirections)
+	 * @return the FIFO, or null if the collector has been stopped
+	 * @throws IOException
+	 *             if the receiver could not be started
+	 */
+	private File startReceiver(String header, String command) throws IOException {
+		final File fifo = new File(ctx.getCacheDir(), FIFO);
+		final String path = fifo.getAbsolutePath();
+		final StringBuilder res = new StringBuilder();
+		final int code = Api.runScriptAsRoot(ctx, header + "rm -f \"" + path + "\"\n" + "mkfifo \"" + path
+				+ "\" 2>/dev/null || $BUSYBOX mkfifo \"" + path + "\" 2>/dev/null || mknod \"" + path
+				+ "\" p 2>/dev/null || exit 2\n" + "chmod 644 \"" + path + "\"\n" + command + " &\n" + "PID=$!\n"
+				+ "sleep 1\n" + "kill -0 $PID 2>/dev/null || exit 3\n" + "echo PID=$PID\n", res);
+		final int i = res.indexOf("PID=");
+		if (code != 0 || i == -1) {
+			throw new IOException("Could not start the receiver (exit code " + code + "): " + res);
+		}
+		final int pid;
+		try {
+			pid = Integer.parseInt(res.substring(i + 4).trim());
+		} catch (NumberFormatException ex) {
+			throw new IOException("Could not start the receiver: " + res);
+		}
+		synchronized (this) {
+			receiver = pid;
+			if (stopped) {
+				return null;
+			}
+		}
+		return fifo;
+	}
+
+	/**
+	 * Get the time to count a kernel log line at: its kernel timestamp on the
+	 * wall clock, kept between the last counted record and now (the kernel
+	 * clock may stop while the device sleeps)
+	 *
+	 * @return time of the line, now if it has no timestamp, or -1 if it has
+	 *         none and may predate the first collection
+	 */
+	private long time(byte b[], int start, int end, long now) {
+		final long ts = LogParser.kernelTime(b, start, end);
+		if (ts == -1) {
+			return (counted > 0 ? now : -1);
+		}
+		final long boot = now - SystemClock.elapsedRealtime();
+		counted = Math.min(now, Math.max(counted, boot + ts / 1000));
+		return counted;
+	}
+
+	/**
+	 * Store a message if it is a blocked packet record (only the part
+	 * starting at the log prefix is kept), and count it on the statistics
+	 *
+	 * @param time
+	 *            time to count the record at (-1 to only store it)
+	 */
+	private void record(LogRing ring, byte b[], int start, int end, long time) {
+		final int i = LogParser.indexOfMarker(b, start, end);
+		if (i != -1) {
+			if (b[end - 1] == '\r')
+				end--;
+			ring.append(b, i, end - i);
+			if (time != -1) {
+				now = time;
+				parser.parseLine(b, i, end);
+			}
+		}
+	}
+
+	/**
+	 * @return anchor lines saved by the previous poll (null if none)
+	 */
+	private byte[][] loadAnchor() {
+		try {
+			final byte b[] = readFile(new File(ctx.getFilesDir(), ANCHOR_FILE));
+			final byte lines[][] = new byte[count(b)][];
+			int start = 0;
+			for (int i = 0, n = 0; i < b.length; i++) {
+				if (b[i] == '\n') {
+					lines[n] = new byte[i - start];
+					System.arraycopy(b, start, lines[n++], 0, i - start);
+					start = i + 1;
+				}
+			}
+			return lines;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Keep the anchor lines (also saved, so a restarted collector does not
+	 * collect the same records again)
+	 */
+	private void saveAnchor(byte lines[][]) {
+		anchor = lines;
+		try {
+			final OutputStream out = new FileOutputStream(new File(ctx.getFilesDir(), ANCHOR_FILE));
+			try {
+				for (byte line[] : lines) {
+					out.write(line);
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			Log.d("DroidWall", "Could not save the log anchor: " + ex);
+		}
+	}
+
+	/**
+	 * @return new array with the last lines
+	 */
+	private static byte[][] tail(byte lines[][], int count) {
+		final byte result[][] = new byte[count][];
+		System.arraycopy(lines, lines.length - count, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * @return whole contents of a file
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte b[] = new byte[(int) file.length()];
+			int len = 0;
+			int n;
+			while (len < b.length && (n = in.read(b, len, b.length - len)) != -1) {
+				len += n;
+			}
+			if (len < b.length) {
+				final byte part[] = new byte[len];
+				System.arraycopy(b, 0, part, 0, len);
+				return part;
+			}
+			return b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return number of new line characters
+	 */
+	private static int count(byte b[]) {
+		int n = 0;
+		for (byte c : b) {
+			if (c == '\n')
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if the bytes between start and end are equal to the value
+	 */
+	private static boolean equals(byte b[], int start, int end, byte value[]) {
+		if (end - start != value.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if (b[start + i] != value[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop collecting (a poll that is running is not interrupted, so the
+	 * root shell is never killed in the middle of a script)
+	 */
+	private void terminate() {
+		stopped = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		stopReceiver();
+	}
+
+	/**
+	 * Kill the receiver (if any), ending the FIFO stream
+	 */
+	private void stopReceiver() {
+		final int pid;
+		synchronized (this) {
+			pid = receiver;
+			receiver = 0;
+		}
+		if (pid == 0) {
+			return;
+		}
+		final String path = new File(ctx.getCacheDir(), FIFO).getAbsolutePath();
+		try {
+			// opening the FIFO (without blocking) also releases a reader that
+			// is still waiting for the receiver to open it
+			Api.runScriptAsRoot(ctx, "kill " + pid + " 2>/dev/null\n" + ": 1<>\"" + path + "\" 2>/dev/null\n"
+					+ "rm -f \"" + path + "\"\n" + "exit 0\n", new StringBuilder());
+		} catch (IOException ex) {
+			Log.d("DroidWall", "Could not stop the receiver: " + ex);
+		}
+	}
+}
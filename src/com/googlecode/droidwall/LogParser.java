@@ -0,0 +1,407 @@
+/**
+ * Streaming parser of the blocked packet log.
+ * Kernel log lines are parsed directly from a byte buffer, without creating
+ * strings, and each packet is handed to a sink as primitive values.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parser of "[DROIDWALL]" kernel log lines (written by the LOG target). Only
+ * the UID, DST, DPT, PROTO and OUT fields are extracted; lines are read into a
+ * fixed buffer and no object is created per line.
+ * Not thread-safe.
+ */
+final class LogParser {
+	/** Interface class: unknown or not listed */
+	static final int ITF_OTHER = 0;
+	/** Interface class: wifi (see Api.ITFS_WIFI) */
+	static final int ITF_WIFI = 1;
+	/** Interface class: 2G/3G (see Api.ITFS_3G) */
+	static final int ITF_3G = 2;
+
+	/** Log prefix of the blocked packets */
+	private static final byte MARKER[] = bytes("[DROIDWALL]");
+	private static final byte UID[] = bytes("UID=");
+	private static final byte DST[] = bytes("DST=");
+	private static final byte DPT[] = bytes("DPT=");
+	private static final byte PROTO[] = bytes("PROTO=");
+	private static final byte OUT[] = bytes("OUT=");
+	private static final byte TCP[] = bytes("TCP");
+	private static final byte UDP[] = bytes("UDP");
+	private static final byte ICMP[] = bytes("ICMP");
+	/** wifi interface prefixes */
+	private static final byte WIFI[][] = prefixes(Api.ITFS_WIFI);
+	/** 2G/3G interface prefixes */
+	private static final byte MOBILE[][] = prefixes(Api.ITFS_3G);
+
+	/**
+	 * Receives the parsed packets
+	 */
+	interface Sink {
+		/**
+		 * Called for each blocked packet
+		 *
+		 * @param uid
+		 *            linux user id (Api.SPECIAL_UID_KERNEL if none)
+		 * @param dst
+		 *            IPv4 destination address (0 if unknown)
+		 * @param port
+		 *            destination port (-1 if none)
+		 * @param proto
+		 *            IP protocol number (-1 if unknown)
+		 * @param itf
+		 *            output interface class (ITF_*)
+		 */
+		void onPacket(int uid, int dst, int port, int proto, int itf);
+	}
+
+	/** packet receiver */
+	private final Sink sink;
+	/** line buffer (longer lines are discarded) */
+	private final byte buf[] = new byte[4096];
+
+	/**
+	 * @param sink
+	 *            packet receiver
+	 */
+	LogParser(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Parse a whole stream (the stream is not closed)
+	 *
+	 * @param in
+	 *            kernel log lines
+	 * @return number of packets found
+	 * @throws IOException
+	 *             on read errors
+	 */
+	int parse(InputStream in) throws IOException {
+		final byte b[] = buf;
+		int count = 0;
+		// bytes of the current (incomplete) line at the start of the buffer
+		int len = 0;
+		// true while skipping the rest of a line that did not fit
+		boolean skipping = false;
+		int n;
+		while ((n = in.read(b, len, b.length - len)) != -1) {
+			final int end = len + n;
+			int start = 0;
+			for (int i = len; i < end; i++) {
+				if (b[i] == '\n') {
+					if (!skipping)
+						count += parseLine(b, start, i);
+					skipping = false;
+					start = i + 1;
+				}
+			}
+			len = end - start;
+			if (start > 0) {
+				System.arraycopy(b, start, b, 0, len);
+			} else if (len == b.length) {
+				skipping = true;
+				len = 0;
+			}
+		}
+		if (len > 0 && !skipping)
+			count += parseLine(b, 0, len);
+		return count;
+	}
+
+	/**
+	 * Parse the log lines of a buffer
+	 *
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            first line start
+	 * @param end
+	 *            end of the lines (exclusive)
+	 * @return number of packets found
+	 */
+	int parse(byte b[], int start, int end) {
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			if (b[i] == '\n') {
+				count += parseLine(b, start, i);
+				start = i + 1;
+			}
+		}
+		if (start < end)
+			count += parseLine(b, start, end);
+		return count;
+	}
+
+	/**
+	 * Parse a single log line
+	 *
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            line start
+	 * @param end
+	 *            line end (exclusive, without the line terminator)
+	 * @return 1 if the line is a blocked packet, 0 otherwise
+	 */
+	int parseLine(byte b[], int start, int end) {
+		int i = indexOfMarker(b, start, end);
+		if (i == -1) {
+			return 0;
+		}
+		int uid = Api.SPECIAL_UID_KERNEL;
+		int dst = 0;
+		int port = -1;
+		int proto = -1;
+		int itf = ITF_OTHER;
+		i += MARKER.length;
+		while (i < end) {
+			while (i < end && b[i] <= ' ')
+				i++;
+			final int t = i;
+			while (i < end && b[i] > ' ')
+				i++;
+			// the token is [t, i)
+			if (startsWith(b, t, i, UID)) {
+				final int value = parseInt(b, t + UID.length, i);
+				if (value != -1)
+					uid = value;
+			} else if (startsWith(b, t, i, DST)) {
+				dst = parseAddress(b, t + DST.length, i);
+			} else if (startsWith(b, t, i, DPT)) {
+				port = parseInt(b, t + DPT.length, i);
+			} else if (startsWith(b, t, i, PROTO)) {
+				final int v = t + PROTO.length;
+				if (equals(b, v, i, TCP)) {
+					proto = 6;
+				} else if (equals(b, v, i, UDP)) {
+					proto = 17;
+				} else if (equals(b, v, i, ICMP)) {
+					proto = 1;
+				} else {
+					proto = parseInt(b, v, i);
+				}
+			} else if (startsWith(b, t, i, OUT)) {
+				itf = interfaceClass(b, t + OUT.length, i);
+			}
+		}
+		sink.onPacket(uid, dst, port, proto, itf);
+		return 1;
+	}
+
+	/**
+	 * @param ip
+	 *            IPv4 address
+	 * @return dotted representation of the address
+	 */
+	static String formatAddress(int ip) {
+		return new StringBuilder(15).append(ip >>> 24).append('.').append((ip >>> 16) & 0xff).append('.')
+				.append((ip >>> 8) & 0xff).append('.').append(ip & 0xff).toString();
+	}
+
+	/**
+	 * @return class of the interface name between start and end (ITF_*)
+	 */
+	private static int interfaceClass(byte b[], int start, int end) {
+		for (byte prefix[] : WIFI) {
+			if (startsWith(b, start, end, prefix))
+				return ITF_WIFI;
+		}
+		for (byte prefix[] : MOBILE) {
+			if (startsWith(b, start, end, prefix))
+				return ITF_3G;
+		}
+		return ITF_OTHER;
+	}
+
+	/**
+	 * @return decimal value between start and end, or -1 if invalid
+	 */
+	private static int parseInt(byte b[], int start, int end) {
+		if (start == end || end - start > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			final int digit = b[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @return IPv4 address between start and end, or 0 if invalid (E.g.: an
+	 *         IPv6 address)
+	 */
+	private static int parseAddress(byte b[], int start, int end) {
+		int ip = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = start; i < end; i++) {
+			final byte c = b[i];
+			if (c == '.') {
+				if (digits == 0 || ++dots > 3)
+					return 0;
+				ip = (ip << 8) | octet;
+				octet = 0;
+				digits = 0;
+			} else if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255)
+					return 0;
+			} else {
+				return 0;
+			}
+		}
+		if (dots != 3 || digits == 0) {
+			return 0;
+		}
+		return (ip << 8) | octet;
+	}
+
+	/**
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            line start
+	 * @param end
+	 *            line end (exclusive)
+	 * @return position of the "[DROIDWALL]" log prefix on the line, or -1
+	 */
+	static int indexOfMarker(byte b[], int start, int end) {
+		return indexOf(b, start, end, MARKER);
+	}
+
+	/**
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            line start
+	 * @param end
+	 *            line end (exclusive)
+	 * @return kernel timestamp of the line (E.g.: "[ 1234.567890]", after
+	 *         the optional log level), in microseconds since the boot, or -1
+	 *         if it has none
+	 */
+	static long kernelTime(byte b[], int start, int end) {
+		int i = start;
+		if (i < end && b[i] == '<') {
+			// log level
+			while (i < end && b[i] != '>')
+				i++;
+			i++;
+		}
+		if (i >= end || b[i] != '[') {
+			return -1;
+		}
+		i++;
+		while (i < end && b[i] == ' ')
+			i++;
+		long seconds = 0;
+		int digits = 0;
+		for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+			if (++digits > 12)
+				return -1;
+			seconds = seconds * 10 + (b[i] - '0');
+		}
+		if (digits == 0 || i >= end || b[i] != '.') {
+			return -1;
+		}
+		i++;
+		long micros = 0;
+		digits = 0;
+		for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+			// finer digits are ignored
+			if (++digits <= 6)
+				micros = micros * 10 + (b[i] - '0');
+		}
+		if (digits == 0 || i >= end || b[i] != ']') {
+			return -1;
+		}
+		for (; digits < 6; digits++) {
+			micros *= 10;
+		}
+		return seconds * 1000000 + micros;
+	}
+
+	/**
+	 * @return position of the pattern between start and end, or -1
+	 */
+	private static int indexOf(byte b[], int start, int end, byte pattern[]) {
+		final int max = end - pattern.length;
+		for (int i = start; i <= max; i++) {
+			if (b[i] == pattern[0] && startsWith(b, i, end, pattern))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the bytes between start and end begin with the prefix
+	 */
+	private static boolean startsWith(byte b[], int start, int end, byte prefix[]) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int j = 0; j < prefix.length; j++) {
+			if (b[start + j] != prefix[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the bytes between start and end are equal to the value
+	 */
+	private static boolean equals(byte b[], int start, int end, byte value[]) {
+		return end - start == value.length && startsWith(b, start, end, value);
+	}
+
+	/**
+	 * @return ASCII bytes of a string
+	 */
+	private static byte[] bytes(String s) {
+		final byte b[] = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * @param itfs
+	 *            iptables interface patterns (E.g.: "wlan+")
+	 * @return interface name prefixes
+	 */
+	private static byte[][] prefixes(String itfs[]) {
+		final byte result[][] = new byte[itfs.length][];
+		for (int i = 0; i < itfs.length; i++) {
+			result[i] = bytes(itfs[i].endsWith("+") ? itfs[i].substring(0, itfs[i].length() - 1) : itfs[i]);
+		}
+		return result;
+	}
+}
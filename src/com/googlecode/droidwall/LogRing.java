@@ -0,0 +1,186 @@
+/**
+ * Persistent ring buffer of blocked packet records.
+ * Records collected from the kernel log are kept on a fixed-size memory
+ * mapped file, so they survive the kernel log wrapping and are read locally.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+
+/**
+ * Ring buffer of log records ("[DROIDWALL] ..." lines, each one terminated by
+ * a new line) on a memory mapped file. The file has a fixed size: when it is
+ * full, the oldest records are overwritten. The header keeps the total number
+ * of bytes ever written ("end") and the position of the last clear ("start"),
+ * so the valid data is always the last min(end - start, capacity) bytes.
+ * All methods are thread-safe.
+ */
+final class LogRing {
+	/** Ring file name (on the application files directory) */
+	private static final String FILE = "log.ring";
+	/** File magic number ("DWRL") */
+	private static final int MAGIC = 0x4457524c;
+	/** Current file format version */
+	private static final int VERSION = 1;
+	/** Header size: magic, version, capacity, (reserved), end, start */
+	private static final int HEADER = 32;
+	/** Position of "end" on the header */
+	private static final int END = 16;
+	/** Position of "start" on the header */
+	private static final int START = 24;
+	/** Data capacity in bytes */
+	private static final int CAPACITY = 256 * 1024;
+
+	/** opened ring (null if not opened yet) */
+	private static LogRing instance;
+
+	/** mapped file (header + data) */
+	private final MappedByteBuffer map;
+	/** total number of bytes written */
+	private long end;
+	/** value of "end" when the ring was last cleared */
+	private long start;
+
+	private LogRing(MappedByteBuffer map) {
+		this.map = map;
+		if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(8) == CAPACITY) {
+			end = map.getLong(END);
+			start = map.getLong(START);
+		}
+		if (start < 0 || end < start) {
+			// not initialized (or damaged): start empty
+			end = start = 0;
+		}
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putInt(8, CAPACITY);
+		map.putLong(END, end);
+		map.putLong(START, start);
+	}
+
+	/**
+	 * Get the log ring, opening (or creating) its file if necessary.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return log ring
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	static synchronized LogRing get(Context ctx) throws IOException {
+		if (instance == null) {
+			final File file = new File(ctx.getFilesDir(), FILE);
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() != HEADER + CAPACITY) {
+					raf.setLength(HEADER + CAPACITY);
+				}
+				// the mapping stays valid after the file is closed
+				instance = new LogRing(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + CAPACITY));
+			} finally {
+				raf.close();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Append a record (a new line is added)
+	 *
+	 * @param b
+	 *            buffer
+	 * @param off
+	 *            record start
+	 * @param len
+	 *            record length (without the line terminator)
+	 */
+	synchronized void append(byte b[], int off, int len) {
+		if (len + 1 > CAPACITY) {
+			return;
+		}
+		write(end, b, off, len);
+		map.put(HEADER + (int) ((end + len) % CAPACITY), (byte) '\n');
+		// data is written before the header, so a record is never half-valid
+		end += len + 1;
+		map.putLong(END, end);
+	}
+
+	/**
+	 * Remove all records
+	 */
+	synchronized void clear() {
+		start = end;
+		map.putLong(START, start);
+	}
+
+	/**
+	 * @return true if there are no records
+	 */
+	synchronized boolean isEmpty() {
+		return end == start;
+	}
+
+	/**
+	 * @return copy of all records, oldest first (only complete lines)
+	 */
+	synchronized byte[] read() {
+		final long from = Math.max(start, end - CAPACITY);
+		final byte data[] = new byte[(int) (end - from)];
+		final int pos = (int) (from % CAPACITY);
+		final int first = Math.min(data.length, CAPACITY - pos);
+		map.position(HEADER + pos);
+		map.get(data, 0, first);
+		if (first < data.length) {
+			map.position(HEADER);
+			map.get(data, first, data.length - first);
+		}
+		if (from == start) {
+			return data;
+		}
+		// the oldest record has been partially overwritten: skip it
+		int skip = 0;
+		while (skip < data.length && data[skip] != '\n')
+			skip++;
+		final byte result[] = new byte[Math.max(0, data.length - skip - 1)];
+		System.arraycopy(data, data.length - result.length, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Write bytes to the data area, wrapping around its end
+	 */
+	private void write(long at, byte b[], int off, int len) {
+		final int pos = (int) (at % CAPACITY);
+		final int first = Math.min(len, CAPACITY - pos);
+		map.position(HEADER + pos);
+		map.put(b, off, first);
+		if (first < len) {
+			map.position(HEADER);
+			map.put(b, off + first, len - first);
+		}
+	}
+}
@@ -23,8 +23,8 @@
 
 package com.googlecode.droidwall;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -36,6 +36,8 @@ import android.content.res.Resources;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -43,23 +45,21 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.View.OnClickListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
-import android.widget.ListAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 
-import com.googlecode.droidwall.Api.DroidApp;
-
 /**
  * Main application activity. This is the screen displayed when you open the
  * application
  */
 public class MainActivity extends Activity implements OnCheckedChangeListener,
-		OnClickListener {
+		OnClickListener, LabelResolver.Listener {
 
 	// Menu options
 	private static final int MENU_DISABLE = 0;
@@ -71,9 +71,20 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 	private static final int MENU_SHOWRULES = 6;
 	private static final int MENU_CLEARLOG = 7;
 	private static final int MENU_SETPWD = 8;
+	private static final int MENU_TOGGLEFASTPATH = 9;
 
 	/** progress dialog instance */
 	private ListView listview;
+	/** application table being displayed */
+	private AppTable apps;
+	/** selection being edited */
+	private SelectionEdit selection;
+	/** rows being displayed (filtered and sorted) */
+	private int rows[] = new int[0];
+	/** list adapter (null until the applications are displayed) */
+	private BaseAdapter adapter;
+	/** current selection filter (AppIndex.FILTER_*) */
+	private int filter = AppIndex.FILTER_ALL;
 
 	/** Called when the activity is first created. */
 	@Override
@@ -82,15 +93,48 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 		checkPreferences();
 		setContentView(R.layout.main);
 		this.findViewById(R.id.label_mode).setOnClickListener(this);
+		this.findViewById(R.id.label_filter).setOnClickListener(this);
+		((EditText) this.findViewById(R.id.filter_text))
+				.addTextChangedListener(new TextWatcher() {
+					public void onTextChanged(CharSequence s, int start,
+							int before, int count) {
+					}
+
+					public void beforeTextChanged(CharSequence s, int start,
+							int count, int after) {
+					}
+
+					public void afterTextChanged(Editable s) {
+						applyFilter();
+					}
+				});
 		Api.assertBinaries(this, true);
 	}
 
 	@Override
 	protected void onStart() {
 		super.onStart();
-		// Force re-loading the application list
-		Log.d("DroidWall", "onStart() - Forcing APP list reload!");
-		Api.applications = null;
+		// The application list is displayed from the catalog, which is kept
+		// up-to-date by the package broadcasts. A full reconciliation only
+		// runs on the background once in a while.
+		if (!AppCatalog.get(this).needsReconcile()) {
+			return;
+		}
+		final Handler handler = new Handler() {
+			public void handleMessage(Message msg) {
+				if (listview != null && listview.getAdapter() != null) {
+					Log.d("DroidWall", "Application list changed - reloading");
+					showApplications();
+				}
+			}
+		};
+		new Thread() {
+			public void run() {
+				if (Api.reconcileApps(MainActivity.this)) {
+					handler.sendEmptyMessage(0);
+				}
+			}
+		}.start();
 	}
 
 	@Override
@@ -100,6 +144,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 			this.listview = (ListView) this.findViewById(R.id.listview);
 		}
 		refreshHeader();
+		reportRulesProblem();
+		LabelResolver.setListener(this);
 		final String pwd = getSharedPreferences(Api.PREFS_NAME, 0).getString(
 				Api.PREF_PASSWORD, "");
 		if (pwd.length() == 0) {
@@ -114,9 +160,19 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 	@Override
 	protected void onPause() {
 		super.onPause();
+		LabelResolver.setListener(null);
 		this.listview.setAdapter(null);
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (isFinishing()) {
+			// leaving without saving: the changes are not kept for later
+			Api.discardSelection();
+		}
+	}
+
 	/**
 	 * Check if the stored preferences are OK
 	 */
@@ -124,10 +180,6 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 		final SharedPreferences prefs = getSharedPreferences(Api.PREFS_NAME, 0);
 		final Editor editor = prefs.edit();
 		boolean changed = false;
-		if (prefs.getString(Api.PREF_MODE, "").length() == 0) {
-			editor.putString(Api.PREF_MODE, Api.MODE_WHITELIST);
-			changed = true;
-		}
 		/* delete the old preference names */
 		if (prefs.contains("AllowedUids")) {
 			editor.remove("AllowedUids");
@@ -141,16 +193,29 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 			editor.commit();
 	}
 
+	/**
+	 * Tell the user if the saved rules could not be read
+	 */
+	private void reportRulesProblem() {
+		switch (RuleStore.get(this).takeLoadProblem(this)) {
+		case RuleStore.PROBLEM_RESTORED:
+			Api.alert(this, getString(R.string.rules_restored));
+			break;
+		case RuleStore.PROBLEM_LOST:
+			Api.alert(this, getString(R.string.rules_lost));
+			break;
+		}
+	}
+
 	/**
 	 * Refresh informative header
 	 */
 	private void refreshHeader() {
-		final SharedPreferences prefs = getSharedPreferences(Api.PREFS_NAME, 0);
-		final String mode = prefs.getString(Api.PREF_MODE, Api.MODE_WHITELIST);
+		final boolean whitelist = RuleStore.get(this).isWhitelist();
 		final TextView labelmode = (TextView) this
 				.findViewById(R.id.label_mode);
 		final Resources res = getResources();
-		int resid = (mode.equals(Api.MODE_WHITELIST) ? R.string.mode_whitelist
+		int resid = (whitelist ? R.string.mode_whitelist
 				: R.string.mode_blacklist);
 		labelmode.setText(res.getString(R.string.mode_header,
 				res.getString(resid)));
@@ -171,17 +236,39 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 						new DialogInterface.OnClickListener() {
 							public void onClick(DialogInterface dialog,
 									int which) {
-								final String mode = (which == 0 ? Api.MODE_WHITELIST
-										: Api.MODE_BLACKLIST);
-								final Editor editor = getSharedPreferences(
-										Api.PREFS_NAME, 0).edit();
-								editor.putString(Api.PREF_MODE, mode);
-								editor.commit();
+								RuleStore.get(MainActivity.this).setWhitelist(
+										MainActivity.this, which == 0);
 								refreshHeader();
 							}
 						}).setTitle("Select mode:").show();
 	}
 
+	/**
+	 * Displays a dialog box to select which applications are listed
+	 */
+	private void selectFilter() {
+		final Resources res = getResources();
+		new AlertDialog.Builder(this)
+				.setItems(
+						new String[] { res.getString(R.string.filter_all),
+								res.getString(R.string.filter_selected),
+								res.getString(R.string.filter_wifi),
+								res.getString(R.string.filter_3g) },
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								filter = which;
+								final int labels[] = { R.string.filter_all,
+										R.string.filter_selected,
+										R.string.filter_wifi,
+										R.string.filter_3g };
+								((TextView) findViewById(R.id.label_filter))
+										.setText(labels[which]);
+								applyFilter();
+							}
+						}).setTitle("Show:").show();
+	}
+
 	/**
 	 * Set a new password lock
 	 * 
@@ -231,13 +318,11 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 	 * Toggle iptables log enabled/disabled
 	 */
 	private void toggleLogEnabled() {
-		final SharedPreferences prefs = getSharedPreferences(Api.PREFS_NAME, 0);
-		final boolean enabled = !prefs.getBoolean(Api.PREF_LOGENABLED, false);
-		final Editor editor = prefs.edit();
-		editor.putBoolean(Api.PREF_LOGENABLED, enabled);
-		editor.commit();
+		final RuleStore store = RuleStore.get(this);
+		final boolean enabled = !store.isLogEnabled();
+		store.setLogEnabled(this, enabled);
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			FirewallExecutor.apply(this, true, null);
 		}
 		Toast.makeText(
 				MainActivity.this,
@@ -245,12 +330,33 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 				Toast.LENGTH_SHORT).show();
 	}
 
+	/**
+	 * Toggle connection verdict caching (fast path) enabled/disabled
+	 */
+	private void toggleFastPathEnabled() {
+		final RuleStore store = RuleStore.get(this);
+		final boolean enabled = !store.isFastPathEnabled();
+		store.setFastPathEnabled(this, enabled);
+		if (Api.isEnabled(this)) {
+			FirewallExecutor.apply(this, true, null);
+		}
+		final int msg;
+		if (!enabled) {
+			msg = R.string.fastpath_was_disabled;
+		} else if (Api.isFastPathAvailable(this)) {
+			msg = R.string.fastpath_was_enabled;
+		} else {
+			msg = R.string.fastpath_unavailable;
+		}
+		Toast.makeText(MainActivity.this, msg, Toast.LENGTH_SHORT).show();
+	}
+
 	/**
 	 * If the applications are cached, just show them, otherwise load and show
 	 */
 	private void showOrLoadApplications() {
 		final Resources res = getResources();
-		if (Api.applications == null) {
+		if (Api.cachedApps() == null) {
 			// The applications are not cached.. so lets display the progress
 			// dialog
 			final ProgressDialog progress = ProgressDialog.show(this,
@@ -281,22 +387,24 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 	 * Show the list of applications
 	 */
 	private void showApplications() {
-		final DroidApp[] apps = Api.getApps(this);
-		// Sort applications - selected first, then alphabetically
-		Arrays.sort(apps, new Comparator<DroidApp>() {
-			public int compare(DroidApp o1, DroidApp o2) {
-				if ((o1.selected_wifi | o1.selected_3g) == (o2.selected_wifi | o2.selected_3g)) {
-					return o1.names[0].compareTo(o2.names[0]);
-				}
-				if (o1.selected_wifi || o1.selected_3g)
-					return -1;
-				return 1;
-			}
-		});
+		this.apps = Api.getApps(this);
+		this.selection = Api.selection(this);
+		// selected first, then alphabetically
+		this.rows = query();
 		final LayoutInflater inflater = getLayoutInflater();
-		final ListAdapter adapter = new ArrayAdapter<DroidApp>(this,
-				R.layout.listitem, R.id.itemtext, apps) {
-			@Override
+		this.adapter = new BaseAdapter() {
+			public int getCount() {
+				return rows.length;
+			}
+
+			public Object getItem(int position) {
+				return apps.label(rows[position]);
+			}
+
+			public long getItemId(int position) {
+				return apps.uid(rows[position]);
+			}
+
 			public View getView(int position, View convertView, ViewGroup parent) {
 				ListEntry entry;
 				if (convertView == null) {
@@ -311,6 +419,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 					entry.text = (TextView) convertView
 							.findViewById(R.id.itemtext);
 					convertView.setTag(entry);
+					entry.box_wifi.setTag(entry);
+					entry.box_3g.setTag(entry);
 					entry.box_wifi
 							.setOnCheckedChangeListener(MainActivity.this);
 					entry.box_3g.setOnCheckedChangeListener(MainActivity.this);
@@ -318,20 +428,42 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 					// Convert an existing view
 					entry = (ListEntry) convertView.getTag();
 				}
-				final DroidApp app = apps[position];
-				entry.text.setText(app.toString());
-				final CheckBox box_wifi = entry.box_wifi;
-				box_wifi.setTag(app);
-				box_wifi.setChecked(app.selected_wifi);
-				final CheckBox box_3g = entry.box_3g;
-				box_3g.setTag(app);
-				box_3g.setChecked(app.selected_3g);
+				// the row index must be set before changing the check boxes
+				// (names may have been replaced, but the rows are the same)
+				final AppTable current = apps;
+				final int index = rows[position];
+				final int uid = current.uid(index);
+				entry.index = index;
+				entry.text.setText(current.label(index));
+				entry.box_wifi.setChecked(selection.isSelectedWifi(uid));
+				entry.box_3g.setChecked(selection.isSelected3g(uid));
 				return convertView;
 			}
 		};
 		this.listview.setAdapter(adapter);
 	}
 
+	/**
+	 * Filter the displayed applications again (the search text or the
+	 * selection filter has changed)
+	 */
+	private void applyFilter() {
+		if (adapter == null) {
+			return;
+		}
+		this.rows = query();
+		adapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * @return rows matching the search text and the selection filter
+	 */
+	private int[] query() {
+		final EditText text = (EditText) findViewById(R.id.filter_text);
+		return AppIndex.of(apps).query(text.getText().toString(), filter,
+				selection, true);
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		menu.add(0, MENU_DISABLE, 0, R.string.fw_enabled).setIcon(
@@ -352,6 +484,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 				android.R.drawable.ic_menu_close_clear_cancel);
 		menu.add(0, MENU_SETPWD, 0, R.string.setpwd).setIcon(
 				android.R.drawable.ic_lock_lock);
+		menu.add(0, MENU_TOGGLEFASTPATH, 0, R.string.fastpath_disabled)
+				.setIcon(android.R.drawable.button_onoff_indicator_off);
 
 		return true;
 	}
@@ -371,8 +505,7 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 			item_apply.setTitle(R.string.saverules);
 		}
 		final MenuItem item_log = menu.getItem(MENU_TOGGLELOG);
-		final boolean logenabled = getSharedPreferences(Api.PREFS_NAME, 0)
-				.getBoolean(Api.PREF_LOGENABLED, false);
+		final boolean logenabled = RuleStore.get(this).isLogEnabled();
 		if (logenabled) {
 			item_log.setIcon(android.R.drawable.button_onoff_indicator_on);
 			item_log.setTitle(R.string.log_enabled);
@@ -380,6 +513,16 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 			item_log.setIcon(android.R.drawable.button_onoff_indicator_off);
 			item_log.setTitle(R.string.log_disabled);
 		}
+		final MenuItem item_fastpath = menu.getItem(MENU_TOGGLEFASTPATH);
+		final boolean fastpath = RuleStore.get(this).isFastPathEnabled();
+		if (fastpath) {
+			item_fastpath.setIcon(android.R.drawable.button_onoff_indicator_on);
+			item_fastpath.setTitle(R.string.fastpath_enabled);
+		} else {
+			item_fastpath
+					.setIcon(android.R.drawable.button_onoff_indicator_off);
+			item_fastpath.setTitle(R.string.fastpath_disabled);
+		}
 		return super.onPrepareOptionsMenu(menu);
 	}
 
@@ -414,6 +557,9 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 		case MENU_CLEARLOG:
 			clearLog();
 			return true;
+		case MENU_TOGGLEFASTPATH:
+			toggleFastPathEnabled();
+			return true;
 		}
 		return false;
 	}
@@ -451,150 +597,202 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 	 * Show iptable rules on a dialog
 	 */
 	private void showRules() {
-		final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this,
-				res.getString(R.string.working),
-				res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-				try {
-					progress.dismiss();
-				} catch (Exception ex) {
+		final ProgressTracker progress = new ProgressTracker(R.string.please_wait);
+		progress.future = FirewallExecutor.submit(new Callable<Void>() {
+			public Void call() {
+				if (Api.hasRootAccess(MainActivity.this, true)) {
+					Api.showIptablesRules(MainActivity.this);
 				}
-				if (!Api.hasRootAccess(MainActivity.this, true))
-					return;
-				Api.showIptablesRules(MainActivity.this);
+				return null;
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}, null, progress);
 	}
 
 	/**
 	 * Show logs on a dialog
 	 */
 	private void showLog() {
-		final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this,
-				res.getString(R.string.working),
-				res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-				try {
-					progress.dismiss();
-				} catch (Exception ex) {
-				}
+		final ProgressTracker progress = new ProgressTracker(R.string.please_wait);
+		progress.future = FirewallExecutor.submit(new Callable<Void>() {
+			public Void call() {
 				Api.showLog(MainActivity.this);
+				return null;
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}, null, progress);
 	}
 
 	/**
 	 * Clear logs
 	 */
 	private void clearLog() {
-		final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this,
-				res.getString(R.string.working),
-				res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-				try {
-					progress.dismiss();
-				} catch (Exception ex) {
-				}
-				if (!Api.hasRootAccess(MainActivity.this, true))
-					return;
-				if (Api.clearLog(MainActivity.this)) {
+		final ProgressTracker progress = new ProgressTracker(R.string.please_wait);
+		progress.future = FirewallExecutor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return Api.clearLog(MainActivity.this);
+			}
+		}, new FirewallExecutor.Callback<Boolean>() {
+			public void onResult(Boolean cleared) {
+				if (Boolean.TRUE.equals(cleared)) {
 					Toast.makeText(MainActivity.this, R.string.log_cleared,
 							Toast.LENGTH_SHORT).show();
 				}
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}, progress);
 	}
 
 	/**
 	 * Apply or save iptable rules, showing a visual indication
 	 */
 	private void applyOrSaveRules() {
-		final Resources res = getResources();
 		final boolean enabled = Api.isEnabled(this);
-		final ProgressDialog progress = ProgressDialog.show(this, res
-				.getString(R.string.working), res
-				.getString(enabled ? R.string.applying_rules
-						: R.string.saving_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-				try {
-					progress.dismiss();
-				} catch (Exception ex) {
-				}
-				if (enabled) {
-					Log.d("DroidWall", "Applying rules.");
-					if (Api.hasRootAccess(MainActivity.this, true)
-							&& Api.applyIptablesRules(MainActivity.this, true)) {
-						Toast.makeText(MainActivity.this,
-								R.string.rules_applied, Toast.LENGTH_SHORT)
-								.show();
-					} else {
-						Log.d("DroidWall", "Failed - Disabling firewall.");
-						Api.setEnabled(MainActivity.this, false);
+		Api.saveRules(this);
+		if (!enabled) {
+			Log.d("DroidWall", "Saving rules.");
+			Toast.makeText(MainActivity.this, R.string.rules_saved,
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Log.d("DroidWall", "Applying rules.");
+		final ProgressTracker progress = new ProgressTracker(
+				R.string.applying_rules);
+		progress.future = FirewallExecutor.apply(this, true,
+				new FirewallExecutor.Callback<Boolean>() {
+					public void onResult(Boolean applied) {
+						if (Boolean.TRUE.equals(applied)) {
+							Toast.makeText(MainActivity.this,
+									R.string.rules_applied, Toast.LENGTH_SHORT)
+									.show();
+						} else {
+							Log.d("DroidWall", "Failed - Disabling firewall.");
+							Api.setEnabled(MainActivity.this, false);
+							refreshHeader();
+						}
 					}
-				} else {
-					Log.d("DroidWall", "Saving rules.");
-					Api.saveRules(MainActivity.this);
-					Toast.makeText(MainActivity.this, R.string.rules_saved,
-							Toast.LENGTH_SHORT).show();
-				}
-			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+				}, progress);
 	}
 
 	/**
 	 * Purge iptable rules, showing a visual indication
 	 */
 	private void purgeRules() {
-		final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this,
-				res.getString(R.string.working),
-				res.getString(R.string.deleting_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
+		final ProgressTracker progress = new ProgressTracker(
+				R.string.deleting_rules);
+		progress.future = FirewallExecutor.purge(this, true,
+				new FirewallExecutor.Callback<Boolean>() {
+					public void onResult(Boolean purged) {
+						if (Boolean.TRUE.equals(purged)) {
+							Toast.makeText(MainActivity.this,
+									R.string.rules_deleted, Toast.LENGTH_SHORT)
+									.show();
+						}
+					}
+				}, progress);
+	}
+
+	/**
+	 * Cancelable progress dialog that follows the stages of a background
+	 * firewall operation, and is dismissed when the operation finishes.
+	 */
+	private final class ProgressTracker implements
+			FirewallExecutor.ProgressListener, DialogInterface.OnCancelListener {
+		private final ProgressDialog dialog;
+		/** operation being tracked (cancelled with the dialog, if still possible) */
+		private Future<?> future;
+
+		/**
+		 * Show the progress dialog
+		 * 
+		 * @param msgid
+		 *            initial message
+		 */
+		private ProgressTracker(int msgid) {
+			final Resources res = getResources();
+			dialog = ProgressDialog.show(MainActivity.this,
+					res.getString(R.string.working), res.getString(msgid),
+					true, true, this);
+		}
+
+		public void onStage(int stage) {
+			int msgid;
+			switch (stage) {
+			case Api.STAGE_PROBE:
+				msgid = R.string.stage_probe;
+				break;
+			case Api.STAGE_COMPILE:
+				msgid = R.string.stage_compile;
+				break;
+			case Api.STAGE_EXEC:
+				msgid = R.string.stage_exec;
+				break;
+			case Api.STAGE_VERIFY:
+				msgid = R.string.stage_verify;
+				break;
+			default:
 				try {
-					progress.dismiss();
+					dialog.dismiss();
 				} catch (Exception ex) {
 				}
-				if (!Api.hasRootAccess(MainActivity.this, true))
-					return;
-				if (Api.purgeIptables(MainActivity.this, true)) {
-					Toast.makeText(MainActivity.this, R.string.rules_deleted,
-							Toast.LENGTH_SHORT).show();
-				}
+				return;
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+			dialog.setMessage(getResources().getString(msgid));
+		}
+
+		public void onCancel(DialogInterface d) {
+			if (future != null) {
+				// a running apply or purge finishes on the background
+				FirewallExecutor.cancel(future);
+			}
+		}
 	}
 
 	/**
 	 * Called an application is check/unchecked
 	 */
 	public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-		final DroidApp app = (DroidApp) buttonView.getTag();
-		if (app != null) {
+		final ListEntry entry = (ListEntry) buttonView.getTag();
+		if (entry != null && entry.index != -1 && apps != null) {
+			final int uid = apps.uid(entry.index);
 			switch (buttonView.getId()) {
 			case R.id.itemcheck_wifi:
-				app.selected_wifi = isChecked;
+				selection.setSelectedWifi(uid, isChecked);
 				break;
 			case R.id.itemcheck_3g:
-				app.selected_3g = isChecked;
+				selection.setSelected3g(uid, isChecked);
 				break;
 			}
 		}
 	}
 
+	/**
+	 * Update the visible rows of the applications whose labels have just been
+	 * resolved (the list is not rebuilt)
+	 */
+	public void labelsResolved(IntSet uids) {
+		final ListView list = this.listview;
+		if (list == null || list.getAdapter() == null) {
+			return;
+		}
+		final AppTable current = Api.cachedApps();
+		if (!apps.hasSameRows(current)) {
+			// rows have been added or removed
+			showApplications();
+			return;
+		}
+		// same rows, at the same indexes: just use the new names
+		apps = current;
+		for (int i = 0; i < list.getChildCount(); i++) {
+			final Object tag = list.getChildAt(i).getTag();
+			if (tag instanceof ListEntry) {
+				final ListEntry entry = (ListEntry) tag;
+				if (entry.index != -1 && uids.contains(apps.uid(entry.index))) {
+					entry.text.setText(apps.label(entry.index));
+				}
+			}
+		}
+	}
+
 	private static class ListEntry {
+		private int index = -1;
 		private CheckBox box_wifi;
 		private CheckBox box_3g;
 		private TextView text;
@@ -605,6 +803,9 @@ public class MainActivity extends Activity implements OnCheckedChangeListener,
 		case R.id.label_mode:
 			selectMode();
 			break;
+		case R.id.label_filter:
+			selectFilter();
+			break;
 		}
 	}
 }
@@ -0,0 +1,300 @@
+/**
+ * Reader of the blocked packets logged through NFLOG.
+ * The packets are received from the kernel in batches, as binary records
+ * (a pcap stream of the NFLOG group written by tcpdump), instead of being
+ * formatted by the kernel log.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parser of a pcap stream with the NFLOG link type. Each packet is converted
+ * to the same record written by the LOG target ("[DROIDWALL] OUT=... DST=...
+ * PROTO=... DPT=... UID=..."), built on a reusable byte buffer.
+ * Not thread-safe.
+ */
+final class NflogReader {
+	/** pcap link type of NFLOG captures */
+	private static final int LINKTYPE_NFLOG = 239;
+	/** pcap magic numbers (microsecond and nanosecond timestamps) */
+	private static final int PCAP_MAGIC = 0xa1b2c3d4;
+	private static final int PCAP_MAGIC_NS = 0xa1b23c4d;
+	/** Largest packet record accepted (larger ones are skipped) */
+	private static final int MAX_RECORD = 64 * 1024;
+	/** NFLOG attributes */
+	private static final int NFULA_IFINDEX_OUTDEV = 5;
+	private static final int NFULA_PAYLOAD = 9;
+	private static final int NFULA_UID = 11;
+	/** Record fields */
+	private static final byte PREFIX[] = bytes("[DROIDWALL]");
+	private static final byte OUT[] = bytes(" OUT=");
+	private static final byte DST[] = bytes(" DST=");
+	private static final byte PROTO[] = bytes(" PROTO=");
+	private static final byte DPT[] = bytes(" DPT=");
+	private static final byte UID[] = bytes(" UID=");
+	private static final byte TCP[] = bytes("TCP");
+	private static final byte UDP[] = bytes("UDP");
+	private static final byte ICMP[] = bytes("ICMP");
+
+	/**
+	 * Receives the converted records
+	 */
+	interface Receiver {
+		/**
+		 * Called for each logged packet
+		 *
+		 * @param b
+		 *            buffer
+		 * @param off
+		 *            record start
+		 * @param len
+		 *            record length (without a line terminator)
+		 */
+		void onRecord(byte b[], int off, int len);
+	}
+
+	/** record receiver */
+	private final Receiver receiver;
+	/** packet buffer */
+	private final byte packet[] = new byte[2048];
+	/** record buffer */
+	private final byte line[] = new byte[256];
+	/** interface names by index (as bytes) */
+	private final IntMap<byte[]> interfaces = new IntMap<byte[]>();
+	/** true if the stream is little-endian */
+	private boolean little;
+
+	/**
+	 * @param receiver
+	 *            record receiver
+	 */
+	NflogReader(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Read the stream until it ends
+	 *
+	 * @param is
+	 *            pcap stream
+	 * @throws IOException
+	 *             on read errors, or if the stream is not a NFLOG capture
+	 */
+	void read(InputStream is) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(is, 8192));
+		final byte header[] = new byte[24];
+		in.readFully(header);
+		final int magic = getInt(header, 0, false);
+		little = (Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_MAGIC_NS);
+		if (!little && magic != PCAP_MAGIC && magic != PCAP_MAGIC_NS) {
+			throw new IOException("Not a pcap stream");
+		}
+		if (getInt(header, 20, little) != LINKTYPE_NFLOG) {
+			throw new IOException("Not a NFLOG capture");
+		}
+		try {
+			while (true) {
+				in.readFully(header, 0, 16);
+				final int length = getInt(header, 8, little);
+				if (length < 0 || length > MAX_RECORD) {
+					throw new IOException("Invalid packet record length: " + length);
+				}
+				final int kept = Math.min(length, packet.length);
+				in.readFully(packet, 0, kept);
+				if (kept < length) {
+					in.skipBytes(length - kept);
+				}
+				convert(kept);
+			}
+		} catch (EOFException ex) {
+			// end of the stream
+		}
+	}
+
+	/**
+	 * Convert a NFLOG packet (pseudo-header plus attributes) to a record
+	 *
+	 * @param length
+	 *            packet length on the buffer
+	 */
+	private void convert(int length) {
+		final byte b[] = packet;
+		int uid = -1;
+		int outdev = -1;
+		int payload = -1;
+		int payloadLength = 0;
+		// 4 bytes of pseudo-header (family, version, group), then the
+		// attributes: length and type in host order, values in network order
+		int pos = 4;
+		while (pos + 4 <= length) {
+			final int tlvLength = getShort(b, pos, little);
+			final int type = getShort(b, pos + 2, little) & 0x7fff;
+			if (tlvLength < 4 || pos + tlvLength > length) {
+				break;
+			}
+			final int value = pos + 4;
+			if (type == NFULA_UID && tlvLength >= 8) {
+				uid = getInt(b, value, false);
+			} else if (type == NFULA_IFINDEX_OUTDEV && tlvLength >= 8) {
+				outdev = getInt(b, value, false);
+			} else if (type == NFULA_PAYLOAD) {
+				payload = value;
+				payloadLength = tlvLength - 4;
+			}
+			pos += (tlvLength + 3) & ~3;
+		}
+		int n = append(0, PREFIX);
+		if (outdev > 0) {
+			final byte name[] = interfaceName(outdev);
+			if (name != null) {
+				n = append(n, OUT);
+				n = append(n, name);
+			}
+		}
+		if (payload != -1 && payloadLength >= 20 && (b[payload] & 0xf0) == 0x40) {
+			// IPv4 header
+			final int ihl = (b[payload] & 0x0f) * 4;
+			final int proto = b[payload + 9] & 0xff;
+			n = append(n, DST);
+			for (int i = 0; i < 4; i++) {
+				if (i > 0)
+					line[n++] = '.';
+				n = appendInt(n, b[payload + 16 + i] & 0xff);
+			}
+			n = append(n, PROTO);
+			if (proto == 6) {
+				n = append(n, TCP);
+			} else if (proto == 17) {
+				n = append(n, UDP);
+			} else if (proto == 1) {
+				n = append(n, ICMP);
+			} else {
+				n = appendInt(n, proto);
+			}
+			if ((proto == 6 || proto == 17) && payloadLength >= ihl + 4) {
+				n = append(n, DPT);
+				n = appendInt(n, getShort(b, payload + ihl + 2, false));
+			}
+		}
+		if (uid != -1) {
+			n = append(n, UID);
+			n = appendInt(n, uid);
+		}
+		receiver.onRecord(line, 0, n);
+	}
+
+	/**
+	 * @param index
+	 *            interface index
+	 * @return interface name, or null if not found
+	 */
+	private byte[] interfaceName(int index) {
+		byte name[] = interfaces.get(index);
+		if (name == null) {
+			// a new interface: read the indexes again
+			final File dirs[] = new File("/sys/class/net").listFiles();
+			if (dirs != null) {
+				for (File dir : dirs) {
+					try {
+						final BufferedReader r = new BufferedReader(new FileReader(new File(dir, "ifindex")), 32);
+						try {
+							interfaces.put(Integer.parseInt(r.readLine().trim()), bytes(dir.getName()));
+						} finally {
+							r.close();
+						}
+					} catch (Exception ex) {
+					}
+				}
+			}
+			name = interfaces.get(index);
+			if (name == null) {
+				// not found: do not look for it again
+				name = new byte[0];
+				interfaces.put(index, name);
+			}
+		}
+		return (name.length != 0 ? name : null);
+	}
+
+	/**
+	 * Append bytes to the record
+	 *
+	 * @return new record length
+	 */
+	private int append(int n, byte value[]) {
+		final int len = Math.min(value.length, line.length - n);
+		System.arraycopy(value, 0, line, n, len);
+		return n + len;
+	}
+
+	/**
+	 * Append a non-negative decimal value to the record
+	 *
+	 * @return new record length
+	 */
+	private int appendInt(int n, int value) {
+		int digits = 1;
+		for (int v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		if (n + digits > line.length) {
+			return n;
+		}
+		for (int i = n + digits - 1; i >= n; i--) {
+			line[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return n + digits;
+	}
+
+	private static int getShort(byte b[], int pos, boolean little) {
+		if (little) {
+			return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+		}
+		return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+	}
+
+	private static int getInt(byte b[], int pos, boolean little) {
+		if (little) {
+			return getShort(b, pos, true) | (getShort(b, pos + 2, true) << 16);
+		}
+		return (getShort(b, pos, false) << 16) | getShort(b, pos + 2, false);
+	}
+
+	/**
+	 * @return ASCII bytes of a string
+	 */
+	private static byte[] bytes(String s) {
+		final byte b[] = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,402 @@
+/**
+ * Compiled firewall rules for the nftables backend.
+ * The selected UIDs are kept on kernel hash sets (one per interface class),
+ * so each packet is matched with a single set lookup, and changing the
+ * selection only updates the set elements.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled nftables rule set. Everything is kept on the "inet droidwall"
+ * table, which is replaced atomically by a single "nft -f" transaction.
+ * The table also carries an empty "sig_*" chain named after the rule
+ * structure (everything but the set elements), so a later apply can detect
+ * that only the selected UIDs changed, and just add and delete the changed
+ * set elements.
+ */
+final class NftRuleSet {
+	/** Table holding all the firewall rules */
+	static final String TABLE = "inet droidwall";
+	/** Exit code of the listing script when the rule structure has changed */
+	static final int EXIT_STRUCTURE_CHANGED = 2;
+	/** Here-document delimiter used to feed nft */
+	private static final String EOF_MARK = "DROIDWALL_EOF";
+
+	/** true if working on white-list mode */
+	private final boolean whitelist;
+	/** true if blocked packets should be logged */
+	private final boolean logenabled;
+	/** NFLOG group of the logged packets (-1 for the kernel log) */
+	private final int logGroup;
+	/** interface classes, in evaluation order */
+	private final ArrayList<Interfaces> classes = new ArrayList<Interfaces>(2);
+
+	/**
+	 * Creates a new empty rule set
+	 *
+	 * @param whitelist
+	 *            true if working on white-list mode
+	 * @param logenabled
+	 *            true if blocked packets should be logged
+	 * @param logGroup
+	 *            NFLOG group of the logged packets (-1 for the kernel log)
+	 */
+	NftRuleSet(boolean whitelist, boolean logenabled, int logGroup) {
+		this.whitelist = whitelist;
+		this.logenabled = logenabled;
+		this.logGroup = logGroup;
+	}
+
+	/**
+	 * Add an interface class (E.g.: wifi)
+	 *
+	 * @param name
+	 *            class name, used for the chain and set names
+	 * @param itfs
+	 *            interface names (iptables wildcards are accepted)
+	 * @param uids
+	 *            sorted unique UIDs selected on this class
+	 * @param any
+	 *            true if "any application" is selected
+	 * @param kernel
+	 *            true if the kernel is selected
+	 */
+	void add(String name, String itfs[], int uids[], boolean any, boolean kernel) {
+		classes.add(new Interfaces(name, itfs, uids, any, kernel));
+	}
+
+	/**
+	 * Render the script that atomically replaces the whole table. Any
+	 * reference to the iptables chains is removed from the OUTPUT chain, since
+	 * both backends must never be active at the same time.
+	 *
+	 * @return shell script (requires the generic script header)
+	 */
+	String toScript() {
+		final StringBuilder script = new StringBuilder();
+		script.append("while $IPTABLES -D OUTPUT -j droidwall >/dev/null 2>/dev/null ; do : ; done\n");
+		script.append("$NFT -f - <<'").append(EOF_MARK).append("' || exit\n");
+		// make sure that the table exists, so it can be deleted
+		script.append("table ").append(TABLE).append('\n');
+		script.append("delete table ").append(TABLE).append('\n');
+		script.append("table ").append(TABLE).append(" {\n");
+		for (Interfaces c : classes) {
+			script.append("\tset ").append(c.set()).append(" {\n");
+			script.append("\t\ttype uid\n");
+			if (c.uids.length > 0) {
+				script.append("\t\telements = { ");
+				appendElements(script, c.uids);
+				script.append(" }\n");
+			}
+			script.append("\t}\n");
+		}
+		script.append(structure());
+		script.append("}\n");
+		script.append(EOF_MARK).append('\n');
+		return script.toString();
+	}
+
+	/**
+	 * Render the script that lists the installed UID sets (see
+	 * {@link #parseSets(String)}), provided that the installed table has the
+	 * same structure. The script exits with {@link #EXIT_STRUCTURE_CHANGED}
+	 * if a full replace is required.
+	 *
+	 * @return shell script (requires the generic script header)
+	 */
+	String toListScript() {
+		final StringBuilder script = new StringBuilder();
+		script.append("$NFT list chain ").append(TABLE).append(' ').append(signature())
+				.append(" >/dev/null 2>/dev/null || exit ").append(EXIT_STRUCTURE_CHANGED).append('\n');
+		for (Interfaces c : classes) {
+			// fully numeric, so UIDs are not printed as user names
+			script.append("$NFT -nnn list set ").append(TABLE).append(' ').append(c.set()).append(" || exit\n");
+		}
+		return script.toString();
+	}
+
+	/**
+	 * Parse the output of the listing script
+	 *
+	 * @param listing
+	 *            output of {@link #toListScript()}
+	 * @return sorted UIDs per set name, or null if the output could not be
+	 *         parsed
+	 */
+	static Map<String, int[]> parseSets(String listing) {
+		final HashMap<String, int[]> sets = new HashMap<String, int[]>();
+		String set = null;
+		StringBuilder elements = null;
+		boolean inElements = false;
+		for (String line : listing.split("\n")) {
+			line = line.trim();
+			if (inElements || line.startsWith("elements = {")) {
+				if (set == null) {
+					return null;
+				}
+				final int start = (inElements ? 0 : line.indexOf('{') + 1);
+				final int end = line.indexOf('}');
+				inElements = (end == -1);
+				elements.append(line, start, inElements ? line.length() : end).append(',');
+			} else if (line.startsWith("set ")) {
+				final String words[] = line.split(" ");
+				set = words[1];
+				elements = new StringBuilder();
+			} else if (line.equals("}") && set != null) {
+				final int uids[] = parseElements(elements.toString());
+				if (uids == null) {
+					return null;
+				}
+				sets.put(set, uids);
+				set = null;
+			}
+		}
+		return (set == null && !inElements ? sets : null);
+	}
+
+	/**
+	 * Render the script that adds and deletes only the changed set elements,
+	 * as a single transaction (the listing script must be run first)
+	 *
+	 * @param installed
+	 *            installed UIDs per set name (see {@link #parseSets(String)})
+	 * @return shell script (requires the generic script header), an empty
+	 *         string if the sets are up-to-date, or null if a set is missing
+	 */
+	String toDeltaScript(Map<String, int[]> installed) {
+		final StringBuilder changes = new StringBuilder();
+		for (Interfaces c : classes) {
+			final int current[] = installed.get(c.set());
+			if (current == null) {
+				return null;
+			}
+			appendChange(changes, "delete", c.set(), current, c.uids);
+			appendChange(changes, "add", c.set(), c.uids, current);
+		}
+		if (changes.length() == 0) {
+			return "";
+		}
+		return "$NFT -f - <<'" + EOF_MARK + "' || exit\n" + changes + EOF_MARK + "\n";
+	}
+
+	/**
+	 * Append an element command for the UIDs that are on a list but not on
+	 * another one (nothing if there are none)
+	 *
+	 * @param script
+	 *            script being built
+	 * @param command
+	 *            "add" or "delete"
+	 * @param set
+	 *            set name
+	 * @param uids
+	 *            sorted UIDs
+	 * @param except
+	 *            sorted UIDs to leave out
+	 */
+	private static void appendChange(StringBuilder script, String command, String set, int uids[], int except[]) {
+		final int changed[] = new int[uids.length];
+		int count = 0;
+		for (int uid : uids) {
+			if (Arrays.binarySearch(except, uid) < 0)
+				changed[count++] = uid;
+		}
+		if (count > 0) {
+			final int elements[] = new int[count];
+			System.arraycopy(changed, 0, elements, 0, count);
+			script.append(command).append(" element ").append(TABLE).append(' ').append(set).append(" { ");
+			appendElements(script, elements);
+			script.append(" }\n");
+		}
+	}
+
+	/**
+	 * @param elements
+	 *            comma-separated UIDs (empty items are ignored)
+	 * @return sorted UIDs, or null if an element is not a number
+	 */
+	private static int[] parseElements(String elements) {
+		final String items[] = elements.split(",");
+		final int uids[] = new int[items.length];
+		int count = 0;
+		for (String item : items) {
+			item = item.trim();
+			if (item.length() > 0) {
+				try {
+					uids[count++] = Integer.parseInt(item);
+				} catch (NumberFormatException ex) {
+					return null;
+				}
+			}
+		}
+		final int sorted[] = new int[count];
+		System.arraycopy(uids, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return shell script that checks if the table is hooked to the output
+	 *         path
+	 */
+	static String toVerifyScript() {
+		return "$NFT list chain " + TABLE + " output >/dev/null\n";
+	}
+
+	/**
+	 * @return shell script that removes the table (errors are ignored)
+	 */
+	static String toDeleteScript() {
+		return "$NFT delete table " + TABLE + " >/dev/null 2>/dev/null\n";
+	}
+
+	/**
+	 * @return number of set elements
+	 */
+	int size() {
+		int size = 0;
+		for (Interfaces c : classes) {
+			size += c.uids.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Render the table chains (everything but the sets)
+	 *
+	 * @return chains declaration
+	 */
+	private String structure() {
+		final StringBuilder chains = new StringBuilder();
+		chains.append("\tchain block {\n");
+		if (logenabled && logGroup >= 0) {
+			chains.append("\t\tlog group ").append(logGroup).append(" prefix \"[DROIDWALL]\" queue-threshold ")
+					.append(Api.NFLOG_THRESHOLD).append('\n');
+		} else if (logenabled) {
+			chains.append("\t\tlog prefix \"[DROIDWALL] \" flags skuid\n");
+		}
+		chains.append("\t\treject\n");
+		chains.append("\t}\n");
+		final String target = (whitelist ? "return" : "jump block");
+		for (Interfaces c : classes) {
+			chains.append("\tchain ").append(c.name).append(" {\n");
+			if (c.any) {
+				if (!whitelist) {
+					/* block any application on this interface */
+					chains.append("\t\tjump block\n");
+				}
+			} else {
+				chains.append("\t\tmeta skuid @").append(c.set()).append(' ').append(target).append('\n');
+				if (whitelist) {
+					if (c.kernel) {
+						// packets without an owner (kernel) do not match
+						chains.append("\t\tmeta skuid 0-999999999 jump block\n");
+					} else {
+						chains.append("\t\tjump block\n");
+					}
+				} else if (c.kernel) {
+					// block kernel packets on black-list
+					chains.append("\t\tmeta skuid 0-999999999 return\n");
+					chains.append("\t\tjump block\n");
+				}
+			}
+			chains.append("\t}\n");
+		}
+		chains.append("\tchain output {\n");
+		chains.append("\t\ttype filter hook output priority 0; policy accept;\n");
+		if (whitelist && logenabled) {
+			// Allow DNS lookups on white-list for a better logging
+			chains.append("\t\tudp dport 53 return\n");
+		}
+		for (Interfaces c : classes) {
+			for (String itf : c.itfs) {
+				chains.append("\t\toifname \"").append(itf.replace('+', '*')).append("\" jump ").append(c.name)
+						.append('\n');
+			}
+		}
+		chains.append("\t}\n");
+		chains.append("\tchain ").append(signature()).append(" {\n");
+		chains.append("\t}\n");
+		return chains.toString();
+	}
+
+	/**
+	 * @return name of the chain used to tag the rule structure
+	 */
+	private String signature() {
+		final StringBuilder structure = new StringBuilder();
+		structure.append(whitelist).append(logenabled).append(logGroup);
+		for (Interfaces c : classes) {
+			structure.append('|').append(c.name).append(c.any).append(c.kernel);
+			for (String itf : c.itfs) {
+				structure.append(',').append(itf);
+			}
+		}
+		return "sig_" + Integer.toHexString(structure.toString().hashCode());
+	}
+
+	/**
+	 * Append a comma-separated list of UIDs
+	 *
+	 * @param script
+	 *            script being built
+	 * @param uids
+	 *            UIDs
+	 */
+	private static void appendElements(StringBuilder script, int uids[]) {
+		for (int i = 0; i < uids.length; i++) {
+			if (i > 0)
+				script.append(", ");
+			script.append(uids[i]);
+		}
+	}
+
+	/**
+	 * Interface class (chain plus UID set)
+	 */
+	private static final class Interfaces {
+		private final String name;
+		private final String itfs[];
+		private final int uids[];
+		private final boolean any;
+		private final boolean kernel;
+
+		private Interfaces(String name, String itfs[], int uids[], boolean any, boolean kernel) {
+			this.name = name;
+			this.itfs = itfs;
+			this.uids = uids;
+			this.any = any;
+			this.kernel = kernel;
+		}
+
+		/**
+		 * @return name of the UID set
+		 */
+		private String set() {
+			return "uids_" + name;
+		}
+	}
+}
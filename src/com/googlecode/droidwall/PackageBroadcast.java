@@ -21,25 +21,63 @@
  */
 package com.googlecode.droidwall;
 
+import java.util.concurrent.Callable;
+
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 
 /**
- * Broadcast receiver responsible for removing rules that affect uninstalled
- * apps.
+ * Broadcast receiver responsible for keeping the application catalog
+ * up-to-date, and for removing rules that affect uninstalled apps. The
+ * packages are inspected on the firewall executor, never on the main thread.
  */
 public class PackageBroadcast extends BroadcastReceiver {
 
 	@Override
-	public void onReceive(Context context, Intent intent) {
-		if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
-			// Ignore application updates
-			final boolean replacing = intent.getBooleanExtra(
-					Intent.EXTRA_REPLACING, false);
+	public void onReceive(Context context, final Intent intent) {
+		final Context ctx = context.getApplicationContext();
+		FirewallExecutor.submit(new Callable<Void>() {
+			public Void call() {
+				handle(ctx, intent);
+				return null;
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Handle a package broadcast (executed on the background)
+	 * 
+	 * @param context
+	 *            application context
+	 * @param intent
+	 *            received intent
+	 */
+	private static void handle(Context context, Intent intent) {
+		final String action = intent.getAction();
+		final Uri data = intent.getData();
+		final String packageName = (data == null ? null : data
+				.getSchemeSpecificPart());
+		// Application updates are reported as removed + added + replaced
+		final boolean replacing = intent.getBooleanExtra(
+				Intent.EXTRA_REPLACING, false);
+		if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
 			if (!replacing) {
 				final int uid = intent.getIntExtra(Intent.EXTRA_UID, -123);
 				Api.applicationRemoved(context, uid);
+				if (packageName != null) {
+					Api.packageRemoved(context, packageName);
+				}
+			}
+		} else if (Intent.ACTION_PACKAGE_ADDED.equals(action)) {
+			if (!replacing && packageName != null) {
+				Api.packageChanged(context, packageName);
+			}
+		} else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)
+				|| Intent.ACTION_PACKAGE_CHANGED.equals(action)) {
+			if (packageName != null) {
+				Api.packageChanged(context, packageName);
 			}
 		}
 	}
@@ -0,0 +1,220 @@
+/**
+ * Long-lived root shell used to execute scripts without paying the "su"
+ * start-up cost on every operation.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import android.util.Log;
+
+/**
+ * Long-lived root shell. Scripts are written to the shell standard input and
+ * their output and exit code are delimited by a sentinel marker. The shell is
+ * started on demand and restarted automatically if it dies.
+ */
+final class RootShell {
+	/** Sentinel written after each script, followed by its exit code */
+	static final String MARKER = "__DROIDWALL_" + System.currentTimeMillis() + "__";
+
+	/** current shell process (null if not started) */
+	private static volatile Process shell;
+	/** shell standard input */
+	private static OutputStreamWriter stdin;
+	/** shell standard output */
+	private static BufferedReader stdout;
+
+	private RootShell() {
+	}
+
+	/**
+	 * Runs a script on the root shell (multiple commands separated by "\n").
+	 * Only one script runs at a time.
+	 *
+	 * @param script
+	 *            the script to be executed
+	 * @param out
+	 *            receives the script output (stdout + stderr)
+	 * @return the script exit code (-1 if the shell died while running it)
+	 * @throws IOException
+	 *             if the shell could not be started (the script has not been
+	 *             executed at all)
+	 */
+	static synchronized int run(String script, Api.ScriptOutput out) throws IOException {
+		if (!isAlive()) {
+			start();
+		}
+		try {
+			write(script);
+		} catch (IOException ex) {
+			// The shell has probably died since the last script: try again
+			Log.d("DroidWall", "Root shell is gone, restarting: " + ex);
+			kill();
+			start();
+			write(script);
+		}
+		// The sub-shell only starts once the whole script has been written,
+		// but from now on it may have been partially executed: never report
+		// it as "not executed", so the caller does not run it again
+		try {
+			return readResult(stdout, out);
+		} catch (IOException ex) {
+			out.append("\n" + ex.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Kill the current shell (if any). The next script will start a new one.
+	 * This may be called from any thread, even while a script is running.
+	 */
+	static void kill() {
+		final Process p = shell;
+		shell = null;
+		if (p != null) {
+			p.destroy();
+		}
+	}
+
+	/**
+	 * @return true if the shell is running
+	 */
+	private static boolean isAlive() {
+		final Process p = shell;
+		if (p == null) {
+			return false;
+		}
+		try {
+			p.exitValue();
+			return false;
+		} catch (IllegalThreadStateException ex) {
+			return true;
+		}
+	}
+
+	/**
+	 * Start a new shell and wait until it is ready
+	 *
+	 * @throws IOException
+	 *             if root access could not be acquired
+	 */
+	private static void start() throws IOException {
+		final Process p = Runtime.getRuntime().exec("su");
+		stdin = new OutputStreamWriter(p.getOutputStream());
+		stdout = new BufferedReader(new InputStreamReader(p.getInputStream()), 8192);
+		drain(p.getErrorStream());
+		shell = p;
+		// Make sure that the shell is really working before using it
+		final StringBuilder res = new StringBuilder();
+		write("exit 0");
+		if (readResult(stdout, new Api.ScriptOutput(res, null, -1)) != 0) {
+			kill();
+			throw new IOException("Could not start root shell: " + res);
+		}
+	}
+
+	/**
+	 * Write a script to the shell. The script runs on a sub-shell, so "exit"
+	 * only terminates the script itself.
+	 *
+	 * @param script
+	 *            script to be executed
+	 * @throws IOException
+	 *             on error
+	 */
+	private static void write(String script) throws IOException {
+		if (shell == null) {
+			throw new IOException("Root shell not running");
+		}
+		stdin.write("(\n");
+		stdin.write(script);
+		if (!script.endsWith("\n"))
+			stdin.write("\n");
+		stdin.write(") </dev/null 2>&1\n");
+		stdin.write("DROIDWALL_RC=$?\n");
+		stdin.write("echo \"\"\n");
+		stdin.write("echo " + MARKER + " $DROIDWALL_RC\n");
+		stdin.flush();
+	}
+
+	/**
+	 * Read the output of the last script, until the sentinel marker is found.
+	 * Each line is delivered as soon as the next one is read.
+	 *
+	 * @param r
+	 *            shell output
+	 * @param out
+	 *            receives the script output
+	 * @return the script exit code
+	 * @throws IOException
+	 *             if the shell dies before the script finishes
+	 */
+	static int readResult(BufferedReader r, Api.ScriptOutput out) throws IOException {
+		// The empty line echoed before the marker guarantees that it is
+		// always found on the start of a line
+		String previous = null;
+		String line;
+		while ((line = r.readLine()) != null) {
+			if (line.startsWith(MARKER)) {
+				if (previous != null && previous.length() > 0) {
+					out.line(previous);
+				}
+				try {
+					return Integer.parseInt(line.substring(MARKER.length()).trim());
+				} catch (NumberFormatException ex) {
+					return -1;
+				}
+			}
+			if (previous != null) {
+				out.line(previous);
+			}
+			previous = line;
+		}
+		kill();
+		throw new IOException("Root shell terminated unexpectedly");
+	}
+
+	/**
+	 * Consume a stream on the background, so the shell never blocks on it
+	 *
+	 * @param is
+	 *            stream to be consumed
+	 */
+	private static void drain(final InputStream is) {
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				final byte buf[] = new byte[512];
+				try {
+					while (is.read(buf) != -1) {
+					}
+				} catch (IOException ex) {
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+}
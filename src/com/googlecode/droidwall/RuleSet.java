@@ -0,0 +1,497 @@
+/**
+ * Compiled set of iptables rules, grouped per chain.
+ * The same rule set can be committed with a single "iptables-restore" call,
+ * through the legacy (one iptables call per rule) shell script, or as the
+ * delta against the rules currently installed in the kernel. None of them
+ * leaves a window where the chains are empty.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiled set of iptables rules, grouped per chain.
+ */
+final class RuleSet {
+	/** Exit code of the restore script when iptables-restore is missing */
+	static final int EXIT_NO_RESTORE = 127;
+	/** Here-document delimiter used to feed iptables-restore */
+	private static final String EOF_MARK = "DROIDWALL_EOF";
+	/** Suffix of the staging chains built by the legacy script */
+	private static final String STAGING_SUFFIX = "-new";
+
+	/** chain names, in creation order */
+	private final ArrayList<String> chains = new ArrayList<String>();
+	/** rules per chain name */
+	private final HashMap<String, ArrayList<Rule>> rules = new HashMap<String, ArrayList<Rule>>();
+	/** chain that must be referenced from the OUTPUT chain */
+	private final String mainChain;
+
+	/**
+	 * Creates a new empty rule set
+	 *
+	 * @param mainChain
+	 *            chain that will be jumped to from the OUTPUT chain
+	 */
+	RuleSet(String mainChain) {
+		this.mainChain = mainChain;
+	}
+
+	/**
+	 * Declare a chain owned by this rule set. Declared chains are created if
+	 * necessary and flushed before the rules are added.
+	 *
+	 * @param name
+	 *            chain name
+	 */
+	void chain(String name) {
+		if (!rules.containsKey(name)) {
+			chains.add(name);
+			rules.put(name, new ArrayList<Rule>());
+		}
+	}
+
+	/**
+	 * Append a rule to a chain
+	 *
+	 * @param chain
+	 *            chain name (must have been declared)
+	 * @param spec
+	 *            rule specification (E.g.: "-o wlan+ -j droidwall-wifi")
+	 */
+	void append(String chain, String spec) {
+		rules.get(chain).add(new Rule(spec, false, false, false));
+	}
+
+	/**
+	 * Append a per-UID rule to a chain. The relative order of per-UID rules
+	 * does not matter, so they are always placed on the head of the chain and
+	 * can be added or removed individually by {@link #toDeltaScript(HashMap)}.
+	 *
+	 * @param chain
+	 *            chain name (must have been declared)
+	 * @param spec
+	 *            rule specification (E.g.: "-m owner --uid-owner 10001 -j RETURN")
+	 */
+	void appendUid(String chain, String spec) {
+		rules.get(chain).add(new Rule(spec, false, true, false));
+	}
+
+	/**
+	 * Append a rule whose hexadecimal values (E.g.: connection marks) may
+	 * change between applies. {@link #toDeltaScript(HashMap)} replaces it in
+	 * place instead of requiring a full apply.
+	 *
+	 * @param chain
+	 *            chain name (must have been declared)
+	 * @param spec
+	 *            rule specification
+	 */
+	void appendReplaceable(String chain, String spec) {
+		rules.get(chain).add(new Rule(spec, false, false, true));
+	}
+
+	/**
+	 * Append a rule to a chain, ignoring errors when it cannot be created by
+	 * the legacy script (E.g.: LOG target not available)
+	 *
+	 * @param chain
+	 *            chain name (must have been declared)
+	 * @param spec
+	 *            rule specification
+	 */
+	void appendOptional(String chain, String spec) {
+		rules.get(chain).add(new Rule(spec, true, false, false));
+	}
+
+	/**
+	 * @return total number of rules in this set
+	 */
+	int size() {
+		int size = 0;
+		for (String chain : chains) {
+			size += rules.get(chain).size();
+		}
+		return size;
+	}
+
+	/**
+	 * Render this rule set as a script that commits all rules using a single
+	 * "iptables-restore --noflush" call. Declaring a chain on the payload
+	 * flushes it, and the whole table is replaced atomically on COMMIT.
+	 * The script exits with {@link #EXIT_NO_RESTORE} (command not found) if
+	 * $IPTABLES_RESTORE is not available.
+	 *
+	 * @return shell script (requires the generic script header)
+	 */
+	String toRestoreScript() {
+		final StringBuilder script = new StringBuilder();
+		appendStagingCleanup(script);
+		script.append("$IPTABLES_RESTORE --noflush <<'").append(EOF_MARK).append("' || exit\n");
+		script.append("*filter\n");
+		for (String chain : chains) {
+			script.append(':').append(chain).append(" - [0:0]\n");
+		}
+		for (String chain : chains) {
+			for (Rule rule : sorted(chain)) {
+				script.append("-A ").append(chain).append(' ').append(rule.spec).append('\n');
+			}
+		}
+		script.append("COMMIT\n");
+		script.append(EOF_MARK).append('\n');
+		appendOutputJump(script, 2);
+		return script.toString();
+	}
+
+	/**
+	 * Render this rule set as a legacy shell script, calling the iptables
+	 * binary once per rule. The rules are built on staging chains while the
+	 * installed ones keep enforcing; the OUTPUT jump is then switched to the
+	 * staging chains with a single rule replace, the old chains are dropped
+	 * and the staging chains are renamed back (references follow renames).
+	 *
+	 * @return shell script (requires the generic script header)
+	 */
+	String toScript() {
+		final StringBuilder script = new StringBuilder();
+		int code = 2;
+		script.append("$IPTABLES --version || exit 1\n");
+		appendStagingCleanup(script);
+		script.append("# Create the staging chains\n");
+		for (String chain : chains) {
+			script.append("$IPTABLES -N ").append(staging(chain)).append(" >/dev/null 2>/dev/null\n");
+			script.append("$IPTABLES -F ").append(staging(chain)).append(" || exit ").append(code++).append('\n');
+		}
+		for (String chain : chains) {
+			for (Rule rule : sorted(chain)) {
+				script.append("$IPTABLES -A ").append(staging(chain)).append(' ').append(toStaging(rule.spec));
+				script.append(rule.optional ? "\n" : " || exit\n");
+			}
+		}
+		script.append("# Switch the OUTPUT jump to the staging chains\n");
+		script.append("N=`$IPTABLES -L OUTPUT -n --line-numbers | while read num target rest ; do"
+				+ " [ \"$target\" = ").append(mainChain).append(" ] && echo $num && break ; done`\n");
+		script.append("if [ -n \"$N\" ] ; then\n");
+		script.append("	$IPTABLES -R OUTPUT $N -j ").append(staging(mainChain)).append(" || exit ").append(code++)
+				.append('\n');
+		script.append("else\n");
+		script.append("	$IPTABLES -A OUTPUT -j ").append(staging(mainChain)).append(" || exit ").append(code++)
+				.append('\n');
+		script.append("fi\n");
+		script.append("while $IPTABLES -D OUTPUT -j ").append(mainChain)
+				.append(" >/dev/null 2>/dev/null ; do : ; done\n");
+		script.append("# Drop the old chains and rename the staging ones\n");
+		for (String chain : chains) {
+			script.append("$IPTABLES -F ").append(chain).append(" >/dev/null 2>/dev/null\n");
+		}
+		for (String chain : chains) {
+			script.append("$IPTABLES -X ").append(chain).append(" >/dev/null 2>/dev/null\n");
+		}
+		for (String chain : chains) {
+			script.append("$IPTABLES -E ").append(staging(chain)).append(' ').append(chain).append(" || exit ")
+					.append(code++).append('\n');
+		}
+		return script.toString();
+	}
+
+	/**
+	 * Render the minimal set of commands needed to turn the currently
+	 * installed rules into this rule set. Only per-UID rules are added or
+	 * deleted, and replaceable rules are replaced in place; if anything else
+	 * differs (E.g.: mode or log changed, chains missing) a full apply is
+	 * required and null is returned.
+	 *
+	 * @param installed
+	 *            currently installed rules, as returned by
+	 *            {@link #parseInstalled(String)}
+	 * @return shell script (requires the generic script header), an empty
+	 *         string if nothing needs to be changed, or null if the rules
+	 *         must be fully re-applied
+	 */
+	String toDeltaScript(HashMap<String, ArrayList<String>> installed) {
+		final ArrayList<String> output = installed.get("OUTPUT");
+		if (output == null || !output.contains("-j " + mainChain)) {
+			return null;
+		}
+		if (output.contains("-j " + staging(mainChain))) {
+			// left by an interrupted apply: only a full apply cleans it up
+			return null;
+		}
+		final StringBuilder script = new StringBuilder();
+		// replaced after every per-UID change, so no connection is judged
+		// by the old per-UID rules under the new values
+		final StringBuilder replace = new StringBuilder();
+		for (String chain : chains) {
+			final ArrayList<String> current = installed.get(chain);
+			if (current == null) {
+				return null;
+			}
+			final ArrayList<Rule> fixed = new ArrayList<Rule>();
+			final ArrayList<Rule> uids = new ArrayList<Rule>();
+			for (Rule rule : rules.get(chain)) {
+				if (rule.unordered) {
+					uids.add(rule);
+				} else {
+					fixed.add(rule);
+				}
+			}
+			// the tail of the chain must match exactly (but replaceable rules)
+			final int head = current.size() - fixed.size();
+			if (head < 0) {
+				return null;
+			}
+			for (int i = 0; i < fixed.size(); i++) {
+				final Rule rule = fixed.get(i);
+				final String spec = normalize(rule.spec);
+				final String installedSpec = normalize(current.get(head + i));
+				if (spec.equals(installedSpec)) {
+					continue;
+				}
+				if (!rule.replaceable || !shape(spec).equals(shape(installedSpec))) {
+					return null;
+				}
+				// position once the chain head holds the new per-UID rules
+				replace.append("$IPTABLES -R ").append(chain).append(' ').append(uids.size() + i + 1).append(' ')
+						.append(rule.spec).append(" || exit\n");
+			}
+			// delete the per-UID rules that are no longer selected
+			for (int i = 0; i < head; i++) {
+				final String spec = current.get(i);
+				if (!removeSpec(uids, normalize(spec))) {
+					script.append("$IPTABLES -D ").append(chain).append(' ').append(spec).append(" || exit\n");
+				}
+			}
+			// and insert the new ones on the head of the chain
+			for (Rule rule : uids) {
+				script.append("$IPTABLES -I ").append(chain).append(" 1 ").append(rule.spec).append(" || exit\n");
+			}
+		}
+		return script.append(replace).toString();
+	}
+
+	/**
+	 * Parse the output of "iptables -S" into rule specifications per chain.
+	 * Only chains present on the listing are included on the result.
+	 *
+	 * @param listing
+	 *            output of "iptables -S"
+	 * @return rule specifications (without the "-A chain" prefix) per chain
+	 */
+	static HashMap<String, ArrayList<String>> parseInstalled(String listing) {
+		final HashMap<String, ArrayList<String>> installed = new HashMap<String, ArrayList<String>>();
+		final BufferedReader r = new BufferedReader(new StringReader(listing));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				line = line.trim();
+				if (!line.startsWith("-N ") && !line.startsWith("-P ") && !line.startsWith("-A ")) {
+					continue;
+				}
+				int end = line.indexOf(' ', 3);
+				final String chain = (end == -1 ? line.substring(3) : line.substring(3, end));
+				ArrayList<String> list = installed.get(chain);
+				if (list == null) {
+					list = new ArrayList<String>();
+					installed.put(chain, list);
+				}
+				if (line.startsWith("-A ") && end != -1) {
+					list.add(line.substring(end + 1));
+				}
+			}
+		} catch (IOException ex) {
+		}
+		return installed;
+	}
+
+	/**
+	 * Remove the first rule matching the given normalized specification
+	 *
+	 * @param list
+	 *            list of rules
+	 * @param spec
+	 *            normalized rule specification
+	 * @return true if a rule has been removed
+	 */
+	private static boolean removeSpec(ArrayList<Rule> list, String spec) {
+		for (int i = 0; i < list.size(); i++) {
+			if (normalize(list.get(i).spec).equals(spec)) {
+				list.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Normalize a rule specification, so that the rules we create can be
+	 * compared with the way iptables prints them back.
+	 *
+	 * @param spec
+	 *            rule specification
+	 * @return normalized specification
+	 */
+	private static String normalize(String spec) {
+		spec = spec.trim().replaceAll("\\s+", " ");
+		spec = spec.replace("-p udp -m udp ", "-p udp ").replace("-p tcp -m tcp ", "-p tcp ");
+		spec = spec.replace(" --reject-with icmp-port-unreachable", "");
+		spec = spec.replaceAll("--uid-owner (\\d+):(\\d+)", "--uid-owner $1-$2");
+		spec = spec.replace("-j CONNMARK --set-mark ", "-j CONNMARK --set-xmark ");
+		return spec;
+	}
+
+	/**
+	 * @param spec
+	 *            normalized rule specification
+	 * @return specification without its hexadecimal values
+	 */
+	private static String shape(String spec) {
+		return spec.replaceAll("0x[0-9a-fA-F]+", "0x");
+	}
+
+	/**
+	 * @param chain
+	 *            chain name
+	 * @return rules of the chain, per-UID rules first
+	 */
+	private ArrayList<Rule> sorted(String chain) {
+		final ArrayList<Rule> list = rules.get(chain);
+		final ArrayList<Rule> sorted = new ArrayList<Rule>(list.size());
+		for (Rule rule : list) {
+			if (rule.unordered)
+				sorted.add(rule);
+		}
+		for (Rule rule : list) {
+			if (!rule.unordered)
+				sorted.add(rule);
+		}
+		return sorted;
+	}
+
+	/**
+	 * @param chain
+	 *            chain name
+	 * @return name of the staging chain used while rebuilding the chain
+	 */
+	private static String staging(String chain) {
+		return chain + STAGING_SUFFIX;
+	}
+
+	/**
+	 * Make a rule jump to the staging chains instead of the installed ones
+	 *
+	 * @param spec
+	 *            rule specification
+	 * @return rule specification referencing the staging chains
+	 */
+	private String toStaging(String spec) {
+		final String tokens[] = spec.split(" ");
+		final StringBuilder result = new StringBuilder(spec.length() + 8);
+		for (int i = 0; i < tokens.length; i++) {
+			if (i > 0) {
+				result.append(' ');
+				if ((tokens[i - 1].equals("-j") || tokens[i - 1].equals("-g")) && rules.containsKey(tokens[i])) {
+					result.append(staging(tokens[i]));
+					continue;
+				}
+			}
+			result.append(tokens[i]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Append the commands that clean up after an interrupted legacy script.
+	 * If the OUTPUT jump was already switched to the staging chains, they
+	 * hold a complete rule set: the swap is finished, so they become the
+	 * installed chains. Any other staging chain left behind is then
+	 * unhooked and deleted, so it is never rebuilt while traffic goes
+	 * through it.
+	 *
+	 * @param script
+	 *            script being built
+	 */
+	private void appendStagingCleanup(StringBuilder script) {
+		final String staging = staging(mainChain);
+		script.append("# Finish a swap left half-done by an interrupted apply\n");
+		script.append("if $IPTABLES -L OUTPUT -n | $GREP -q \"^").append(staging).append(" \" ; then\n");
+		script.append("	while $IPTABLES -D OUTPUT -j ").append(mainChain)
+				.append(" >/dev/null 2>/dev/null ; do : ; done\n");
+		for (String chain : chains) {
+			script.append("	$IPTABLES -F ").append(chain).append(" >/dev/null 2>/dev/null\n");
+		}
+		for (String chain : chains) {
+			script.append("	$IPTABLES -X ").append(chain).append(" >/dev/null 2>/dev/null\n");
+		}
+		for (String chain : chains) {
+			script.append("	$IPTABLES -E ").append(staging(chain)).append(' ').append(chain)
+					.append(" >/dev/null 2>/dev/null\n");
+		}
+		script.append("fi\n");
+		script.append("# Remove the staging chains left behind\n");
+		script.append("while $IPTABLES -D OUTPUT -j ").append(staging).append(" >/dev/null 2>/dev/null ; do : ; done\n");
+		for (String chain : chains) {
+			script.append("$IPTABLES -F ").append(staging(chain)).append(" >/dev/null 2>/dev/null\n");
+		}
+		for (String chain : chains) {
+			script.append("$IPTABLES -X ").append(staging(chain)).append(" >/dev/null 2>/dev/null\n");
+		}
+	}
+
+	/**
+	 * Append the commands that add the main chain to the OUTPUT chain (if
+	 * necessary)
+	 *
+	 * @param script
+	 *            script being built
+	 * @param code
+	 *            exit code on error
+	 */
+	private void appendOutputJump(StringBuilder script, int code) {
+		script.append("# Add ").append(mainChain).append(" chain to OUTPUT chain if necessary\n");
+		script.append("$IPTABLES -L OUTPUT | $GREP -q ").append(mainChain).append(" || $IPTABLES -A OUTPUT -j ")
+				.append(mainChain).append(" || exit ").append(code).append('\n');
+	}
+
+	/**
+	 * Single rule entry
+	 */
+	private static final class Rule {
+		/** rule specification, without the "-A chain" prefix */
+		private final String spec;
+		/** if true, errors creating this rule are ignored by the legacy script */
+		private final boolean optional;
+		/** if true, this is a per-UID rule (position inside the chain does not matter) */
+		private final boolean unordered;
+		/** if true, the hexadecimal values may be replaced by the delta */
+		private final boolean replaceable;
+
+		private Rule(String spec, boolean optional, boolean unordered, boolean replaceable) {
+			this.spec = spec;
+			this.optional = optional;
+			this.unordered = unordered;
+			this.replaceable = replaceable;
+		}
+	}
+}
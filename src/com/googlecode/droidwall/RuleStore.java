@@ -0,0 +1,501 @@
+/**
+ * Persistent firewall rules.
+ * The selected UIDs and the rule flags are stored on a small versioned
+ * binary file, instead of pipe-separated preference strings.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+/**
+ * Saved firewall rules: the sorted UIDs selected per interface class, the
+ * rule flags and a generation counter (incremented on every change). The
+ * UID arrays are never modified once stored, so they can be shared with the
+ * callers.
+ */
+final class RuleStore {
+	/** File signature */
+	private static final int MAGIC = 0x44575253;
+	/** File format version */
+	private static final int VERSION = 1;
+	/** Rules file name (on the application files directory) */
+	private static final String FILE_NAME = "rules.bin";
+	/** Previous rules file, kept by each save */
+	private static final String BACKUP_NAME = FILE_NAME + ".bak";
+	/** Unreadable rules file, moved aside so that it is not overwritten */
+	private static final String DAMAGED_NAME = FILE_NAME + ".bad";
+	/** Flag: working on black-list mode */
+	private static final int FLAG_BLACKLIST = 1;
+	/** Flag: log blocked packets */
+	private static final int FLAG_LOG = 2;
+	/** Flag: cache connection verdicts (fast path) */
+	private static final int FLAG_FASTPATH = 4;
+	/** Empty UID list */
+	private static final int NONE[] = new int[0];
+	/** Load problem: the rules file was unreadable and its backup was used */
+	static final int PROBLEM_RESTORED = 1;
+	/** Load problem: the rules file and its backup were unreadable */
+	static final int PROBLEM_LOST = 2;
+
+	/** loaded rules (null if not loaded yet) */
+	private static RuleStore instance;
+
+	/** sorted UIDs selected for wifi */
+	private int uidsWifi[] = NONE;
+	/** sorted UIDs selected for 2G/3G */
+	private int uids3g[] = NONE;
+	/** rule flags (FLAG_*) */
+	private int flags;
+	/** rules generation */
+	private int generation;
+
+	private RuleStore() {
+	}
+
+	/**
+	 * Get the saved rules, loading them from their file if necessary.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return saved rules
+	 */
+	static synchronized RuleStore get(Context ctx) {
+		if (instance == null) {
+			instance = new RuleStore();
+			instance.load(ctx);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return sorted UIDs selected for wifi (must not be modified)
+	 */
+	synchronized int[] uidsWifi() {
+		return uidsWifi;
+	}
+
+	/**
+	 * @return sorted UIDs selected for 2G/3G (must not be modified)
+	 */
+	synchronized int[] uids3g() {
+		return uids3g;
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return true if the UID is selected for wifi
+	 */
+	synchronized boolean isSelectedWifi(int uid) {
+		return Arrays.binarySearch(uidsWifi, uid) >= 0;
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return true if the UID is selected for 2G/3G
+	 */
+	synchronized boolean isSelected3g(int uid) {
+		return Arrays.binarySearch(uids3g, uid) >= 0;
+	}
+
+	/**
+	 * @return true if working on white-list mode
+	 */
+	synchronized boolean isWhitelist() {
+		return (flags & FLAG_BLACKLIST) == 0;
+	}
+
+	/**
+	 * @return true if blocked packets should be logged
+	 */
+	synchronized boolean isLogEnabled() {
+		return (flags & FLAG_LOG) != 0;
+	}
+
+	/**
+	 * @return true if connection verdicts should be cached (fast path)
+	 */
+	synchronized boolean isFastPathEnabled() {
+		return (flags & FLAG_FASTPATH) != 0;
+	}
+
+	/**
+	 * @return rules generation (changes every time the rules are saved)
+	 */
+	synchronized int generation() {
+		return generation;
+	}
+
+	/**
+	 * Get the problem found when the rules file was loaded, and forget it (so
+	 * it is reported only once). The problem is kept on the preferences, as
+	 * the rules may have been loaded by another component (E.g.: on boot).
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return PROBLEM_* constant, or 0 if the rules were loaded normally
+	 */
+	synchronized int takeLoadProblem(Context ctx) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(Api.PREFS_NAME, 0);
+		final int problem = prefs.getInt(Api.PREF_RULES_PROBLEM, 0);
+		if (problem != 0) {
+			prefs.edit().remove(Api.PREF_RULES_PROBLEM).commit();
+		}
+		return problem;
+	}
+
+	/**
+	 * Save a new selection
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param wifi
+	 *            UIDs selected for wifi (any order)
+	 * @param g3
+	 *            UIDs selected for 2G/3G (any order)
+	 */
+	synchronized void setSelection(Context ctx, int wifi[], int g3[]) {
+		final int newWifi[] = sortedUnique(wifi);
+		final int new3g[] = sortedUnique(g3);
+		if (Arrays.equals(newWifi, uidsWifi) && Arrays.equals(new3g, uids3g)) {
+			return;
+		}
+		uidsWifi = newWifi;
+		uids3g = new3g;
+		save(ctx);
+	}
+
+	/**
+	 * Remove a UID from the selection (E.g.: its application has been
+	 * uninstalled)
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param uid
+	 *            linux user id
+	 * @return true if the UID was selected
+	 */
+	synchronized boolean removeUid(Context ctx, int uid) {
+		final int newWifi[] = remove(uidsWifi, uid);
+		final int new3g[] = remove(uids3g, uid);
+		if (newWifi == uidsWifi && new3g == uids3g) {
+			return false;
+		}
+		uidsWifi = newWifi;
+		uids3g = new3g;
+		save(ctx);
+		return true;
+	}
+
+	/**
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param whitelist
+	 *            true for white-list mode, false for black-list
+	 */
+	synchronized void setWhitelist(Context ctx, boolean whitelist) {
+		setFlag(ctx, FLAG_BLACKLIST, !whitelist);
+	}
+
+	/**
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param enabled
+	 *            true if blocked packets should be logged
+	 */
+	synchronized void setLogEnabled(Context ctx, boolean enabled) {
+		setFlag(ctx, FLAG_LOG, enabled);
+	}
+
+	/**
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param enabled
+	 *            true if connection verdicts should be cached
+	 */
+	synchronized void setFastPathEnabled(Context ctx, boolean enabled) {
+		setFlag(ctx, FLAG_FASTPATH, enabled);
+	}
+
+	/**
+	 * Set or clear a flag, saving the rules if it has changed
+	 */
+	private void setFlag(Context ctx, int flag, boolean set) {
+		final int newflags = (set ? flags | flag : flags & ~flag);
+		if (newflags != flags) {
+			flags = newflags;
+			save(ctx);
+		}
+	}
+
+	/**
+	 * Save the rules to their file, starting a new generation. The previous
+	 * file is kept as a backup.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void save(Context ctx) {
+		generation++;
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		final File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(generation);
+			out.writeInt(flags);
+			writeUids(out, uidsWifi);
+			writeUids(out, uids3g);
+			out.close();
+			out = null;
+			// replace the old file only when the new one is complete
+			if (file.exists()) {
+				final File backup = new File(ctx.getFilesDir(), BACKUP_NAME);
+				backup.delete();
+				file.renameTo(backup);
+			}
+			if (!tmp.renameTo(file)) {
+				Log.e("DroidWall", "Could not save the rules");
+			}
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not save the rules: " + ex);
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Load the rules from their file. On the first run, the rules are
+	 * migrated from the preferences (and removed from there). An unreadable
+	 * file is moved aside and replaced by its backup (or by empty rules), and
+	 * the problem is kept for {@link #takeLoadProblem(Context)}.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void load(Context ctx) {
+		final File file = new File(ctx.getFilesDir(), FILE_NAME);
+		final File backup = new File(ctx.getFilesDir(), BACKUP_NAME);
+		if (!file.exists()) {
+			// a save interrupted between its two renames leaves only the backup
+			if (!backup.exists() || !read(backup)) {
+				migrate(ctx);
+			}
+			return;
+		}
+		if (read(file)) {
+			return;
+		}
+		final File damaged = new File(ctx.getFilesDir(), DAMAGED_NAME);
+		damaged.delete();
+		if (!file.renameTo(damaged)) {
+			Log.e("DroidWall", "Could not move the unreadable rules file aside");
+		}
+		final int problem;
+		if (backup.exists() && read(backup)) {
+			Log.w("DroidWall", "Rules restored from the backup file");
+			problem = PROBLEM_RESTORED;
+		} else {
+			problem = PROBLEM_LOST;
+			// the lost generation is unknown: start from an unlikely one
+			generation = (int) (System.currentTimeMillis() / 1000);
+		}
+		ctx.getSharedPreferences(Api.PREFS_NAME, 0).edit().putInt(Api.PREF_RULES_PROBLEM, problem).commit();
+		// save right away under a new generation, so connection verdicts
+		// cached for the unreadable rules are never taken as current ones
+		generation++;
+		save(ctx);
+	}
+
+	/**
+	 * Read a rules file. The rules are only changed if the whole file could
+	 * be read.
+	 *
+	 * @param file
+	 *            rules file
+	 * @return true if the rules were read
+	 */
+	private boolean read(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.e("DroidWall", "Unknown rules file format: " + file.getName());
+				return false;
+			}
+			final int newGeneration = in.readInt();
+			final int newFlags = in.readInt();
+			final int newWifi[] = readUids(in);
+			final int new3g[] = readUids(in);
+			generation = newGeneration;
+			flags = newFlags;
+			uidsWifi = newWifi;
+			uids3g = new3g;
+			return true;
+		} catch (IOException ex) {
+			Log.e("DroidWall", "Could not load the rules from " + file.getName() + ": " + ex);
+			return false;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException ex) {
+				}
+		}
+	}
+
+	/**
+	 * Move the rules saved on the preferences by older versions to this store
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	private void migrate(Context ctx) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(Api.PREFS_NAME, 0);
+		uidsWifi = sortedUnique(parseUids(prefs.getString(Api.PREF_WIFI_UIDS, "")));
+		uids3g = sortedUnique(parseUids(prefs.getString(Api.PREF_3G_UIDS, "")));
+		if (Api.MODE_BLACKLIST.equals(prefs.getString(Api.PREF_MODE, Api.MODE_WHITELIST)))
+			flags |= FLAG_BLACKLIST;
+		if (prefs.getBoolean(Api.PREF_LOGENABLED, false))
+			flags |= FLAG_LOG;
+		if (prefs.getBoolean(Api.PREF_FASTPATH, false))
+			flags |= FLAG_FASTPATH;
+		save(ctx);
+		if (new File(ctx.getFilesDir(), FILE_NAME).exists()) {
+			Log.d("DroidWall", "Rules moved out of the preferences");
+			final Editor edit = prefs.edit();
+			edit.remove(Api.PREF_WIFI_UIDS);
+			edit.remove(Api.PREF_3G_UIDS);
+			edit.remove(Api.PREF_MODE);
+			edit.remove(Api.PREF_LOGENABLED);
+			edit.remove(Api.PREF_FASTPATH);
+			edit.commit();
+		}
+	}
+
+	/**
+	 * Parse a pipe-separated list of UIDs (legacy format)
+	 *
+	 * @param saved
+	 *            saved list
+	 * @return UIDs (invalid ones are ignored)
+	 */
+	private static int[] parseUids(String saved) {
+		final StringTokenizer tok = new StringTokenizer(saved, "|");
+		final int uids[] = new int[tok.countTokens()];
+		int count = 0;
+		while (tok.hasMoreTokens()) {
+			try {
+				uids[count] = Integer.parseInt(tok.nextToken());
+				count++;
+			} catch (NumberFormatException ex) {
+			}
+		}
+		return (count == uids.length ? uids : copyOf(uids, count));
+	}
+
+	/**
+	 * @param uids
+	 *            UIDs (any order, may be modified)
+	 * @return sorted UIDs without duplicates
+	 */
+	private static int[] sortedUnique(int uids[]) {
+		if (uids.length == 0) {
+			return NONE;
+		}
+		final int sorted[] = copyOf(uids, uids.length);
+		Arrays.sort(sorted);
+		int count = 1;
+		for (int i = 1; i < sorted.length; i++) {
+			if (sorted[i] != sorted[count - 1])
+				sorted[count++] = sorted[i];
+		}
+		return (count == sorted.length ? sorted : copyOf(sorted, count));
+	}
+
+	/**
+	 * @param uids
+	 *            sorted UIDs
+	 * @param uid
+	 *            UID to be removed
+	 * @return new array without the UID, or the same array if it was not
+	 *         there
+	 */
+	private static int[] remove(int uids[], int uid) {
+		final int index = Arrays.binarySearch(uids, uid);
+		if (index < 0) {
+			return uids;
+		}
+		final int result[] = new int[uids.length - 1];
+		System.arraycopy(uids, 0, result, 0, index);
+		System.arraycopy(uids, index + 1, result, index, result.length - index);
+		return result;
+	}
+
+	/**
+	 * Arrays.copyOf() is not available on this API level
+	 */
+	private static int[] copyOf(int uids[], int length) {
+		final int copy[] = new int[length];
+		System.arraycopy(uids, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static void writeUids(DataOutputStream out, int uids[]) throws IOException {
+		out.writeInt(uids.length);
+		for (int uid : uids) {
+			out.writeInt(uid);
+		}
+	}
+
+	private static int[] readUids(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0 || length > 1 << 20) {
+			throw new IOException("Invalid UID count: " + length);
+		}
+		final int uids[] = new int[length];
+		for (int i = 0; i < length; i++) {
+			uids[i] = in.readInt();
+		}
+		return uids;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Pending selection changes.
+ * Check boxes change this buffer only; the rule store is updated when the
+ * whole selection is committed.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import android.content.Context;
+
+/**
+ * Selection being edited on the main screen, per UID (so it survives any
+ * rebuild of the application table). It starts as a copy of the saved
+ * selection, and {@link #commit(Context, AppTable)} saves it as a single unit.
+ * All methods are thread-safe.
+ */
+final class SelectionEdit {
+	/** UIDs selected for wifi */
+	private final IntSet wifi;
+	/** UIDs selected for 2G/3G */
+	private final IntSet g3;
+
+	/**
+	 * Start editing the saved selection
+	 *
+	 * @param store
+	 *            saved rules
+	 */
+	SelectionEdit(RuleStore store) {
+		wifi = IntSet.of(store.uidsWifi());
+		g3 = IntSet.of(store.uids3g());
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return true if the UID is selected for wifi
+	 */
+	synchronized boolean isSelectedWifi(int uid) {
+		return wifi.contains(uid);
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @return true if the UID is selected for 2G/3G
+	 */
+	synchronized boolean isSelected3g(int uid) {
+		return g3.contains(uid);
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @param selected
+	 *            true if the UID is selected for wifi
+	 */
+	synchronized void setSelectedWifi(int uid, boolean selected) {
+		if (selected) {
+			wifi.add(uid);
+		} else {
+			wifi.remove(uid);
+		}
+	}
+
+	/**
+	 * @param uid
+	 *            linux user id
+	 * @param selected
+	 *            true if the UID is selected for 2G/3G
+	 */
+	synchronized void setSelected3g(int uid, boolean selected) {
+		if (selected) {
+			g3.add(uid);
+		} else {
+			g3.remove(uid);
+		}
+	}
+
+	/**
+	 * Remove an UID from the selection (its application has been removed)
+	 *
+	 * @param uid
+	 *            linux user id
+	 */
+	synchronized void remove(int uid) {
+		wifi.remove(uid);
+		g3.remove(uid);
+	}
+
+	/**
+	 * Save the selection. Only UIDs that are on the application table are
+	 * saved.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param apps
+	 *            current application table
+	 */
+	synchronized void commit(Context ctx, AppTable apps) {
+		RuleStore.get(ctx).setSelection(ctx, filter(wifi, apps), filter(g3, apps));
+	}
+
+	/**
+	 * @param uids
+	 *            selected UIDs
+	 * @param apps
+	 *            application table
+	 * @return selected UIDs that are on the table
+	 */
+	private static int[] filter(IntSet uids, AppTable apps) {
+		final int all[] = uids.toSortedArray();
+		int count = 0;
+		for (int uid : all) {
+			if (apps.indexOf(uid) != -1)
+				all[count++] = uid;
+		}
+		final int result[] = new int[count];
+		System.arraycopy(all, 0, result, 0, count);
+		return result;
+	}
+}
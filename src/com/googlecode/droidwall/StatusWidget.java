@@ -59,22 +59,24 @@ public class StatusWidget extends AppWidgetProvider {
         		Toast.makeText(context, "Cannot disable firewall - password defined!", Toast.LENGTH_SHORT).show();
         		return;
     		}
+            final Context ctx = context.getApplicationContext();
+            final boolean enable = enabled;
+            final FirewallExecutor.Callback<Boolean> callback = new FirewallExecutor.Callback<Boolean>() {
+                public void onResult(Boolean result) {
+                    if (!Boolean.TRUE.equals(result)) {
+                        Toast.makeText(ctx, enable ? "Error enabling firewall!" : "Error disabling firewall!",
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    Toast.makeText(ctx, enable ? "Firewall enabled!" : "Firewall disabled!", Toast.LENGTH_SHORT).show();
+                    Api.setEnabled(ctx, enable);
+                }
+            };
             if (enabled) {
-            	if (Api.applySavedIptablesRules(context, false)) {
-            		Toast.makeText(context, "Firewall enabled!", Toast.LENGTH_SHORT).show();
-            	} else {
-            		Toast.makeText(context, "Error enabling firewall!", Toast.LENGTH_SHORT).show();
-            		return;
-            	}
+            	FirewallExecutor.apply(ctx, false, callback);
             } else {
-            	if (Api.purgeIptables(context, false)) {
-            		Toast.makeText(context, "Firewall disabled!", Toast.LENGTH_SHORT).show();
-            	} else {
-            		Toast.makeText(context, "Error disabling firewall!", Toast.LENGTH_SHORT).show();
-            		return;
-            	}
+            	FirewallExecutor.purge(ctx, false, callback);
             }
-            Api.setEnabled(context, enabled);
         }
 	}
     @Override
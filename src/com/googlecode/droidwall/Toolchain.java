@@ -0,0 +1,534 @@
+/**
+ * Toolchain and kernel capability probe.
+ * The binaries used by the firewall scripts and the features supported by
+ * the kernel are probed once, and the results are cached until the binaries
+ * change.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Resolved tool paths and kernel capabilities. The probe results are stored
+ * on a dedicated preferences file, tagged with {@link #VERSION} and the
+ * platform build. The tool part is also tagged with a fingerprint (size and
+ * modification time) of every candidate binary, so it is probed again as soon
+ * as any of them changes.
+ */
+final class Toolchain {
+	/** Cache version (increment when the probe script or the format changes) */
+	private static final int VERSION = 8;
+	/** Preferences file used to store the probe results */
+	private static final String PREFS_NAME = "DroidWallToolchain";
+	/** Chain created temporarily to probe the supported matches and targets */
+	private static final String PROBE_CHAIN = "droidwall-probe";
+
+	/** Capability: "owner" match (--uid-owner) */
+	static final int CAP_OWNER = 1;
+	/** Capability: LOG target with the --log-uid option */
+	static final int CAP_LOG_UID = 2;
+	/** Capability: iptables "-w" (wait for the xtables lock) */
+	static final int CAP_WAIT = 4;
+	/** Capability: iptables-restore */
+	static final int CAP_RESTORE = 8;
+	/** Capability: nftables (the "inet droidwall" table may exist) */
+	static final int CAP_NFT = 32;
+	/** Capability: UID ranges on the "owner" match (--uid-owner a-b) */
+	static final int CAP_UID_RANGE = 64;
+	/** Capability: nftables UID sets ("meta skuid @set") */
+	static final int CAP_NFT_UID = 128;
+	/** Capability: connmark match and CONNMARK target */
+	static final int CAP_CONNMARK = 256;
+	/** Capability: NFLOG target */
+	static final int CAP_NFLOG = 512;
+	/** Capability: dmesg can follow the kernel log (dmesg -w) */
+	static final int CAP_DMESG_FOLLOW = 1024;
+
+	/** Probe lock (kept apart from the class lock, which only guards fast lookups) */
+	private static final Object PROBE_LOCK = new Object();
+	/** probed toolchain (null if not probed yet) */
+	private static Toolchain instance;
+
+	/** iptables binary (including the "-w" flag when supported) */
+	final String iptables;
+	/** iptables-restore binary (null if not available) */
+	final String restore;
+	/** busybox binary (empty if not found) */
+	final String busybox;
+	/** grep command (null if not found) */
+	final String grep;
+	/** echo command */
+	final String echo;
+	/** nft binary (null if not available) */
+	final String nft;
+	/** tcpdump binary able to capture NFLOG groups (null if not available) */
+	final String tcpdump;
+	/** supported capabilities (CAP_* flags) */
+	final int caps;
+	/** true if the NFLOG receiver has been found not to work */
+	private final boolean nflogBroken;
+	/** binaries fingerprint at the time of the probe */
+	private final String fingerprint;
+
+	Toolchain(SharedPreferences prefs, String fingerprint) {
+		this.iptables = prefs.getString("iptables", "iptables");
+		this.restore = prefs.getString("restore", null);
+		this.busybox = prefs.getString("busybox", "");
+		this.grep = prefs.getString("grep", null);
+		this.echo = prefs.getString("echo", "echo");
+		this.nft = prefs.getString("nft", null);
+		this.tcpdump = prefs.getString("tcpdump", null);
+		this.caps = prefs.getInt("caps", 0);
+		this.nflogBroken = prefs.getBoolean("nflog_broken", false);
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @param cap
+	 *            capability (one of the CAP_* flags)
+	 * @return true if the capability is supported
+	 */
+	boolean has(int cap) {
+		return (caps & cap) != 0;
+	}
+
+	/**
+	 * @return true if blocked packets can be logged through NFLOG (both the
+	 *         target and a working receiver are available)
+	 */
+	boolean nflog() {
+		return has(CAP_NFLOG) && tcpdump != null && !nflogBroken;
+	}
+
+	/**
+	 * Create the generic shell script header, defining the tool variables
+	 * ($IPTABLES, $IPTABLES_RESTORE, $BUSYBOX, $GREP, $ECHO and $NFT) with the
+	 * resolved paths.
+	 *
+	 * @return script header
+	 */
+	String header() {
+		final StringBuilder header = new StringBuilder();
+		header.append("IPTABLES=\"").append(iptables).append("\"\n");
+		header.append("IPTABLES_RESTORE=\"").append(restore == null ? "iptables-restore" : restore).append("\"\n");
+		header.append("BUSYBOX=\"").append(busybox).append("\"\n");
+		header.append("ECHO=\"").append(echo).append("\"\n");
+		if (nft != null) {
+			header.append("NFT=\"").append(nft).append("\"\n");
+		}
+		if (grep == null) {
+			// Grep is absolutely required
+			header.append("$ECHO The grep command is required. DroidWall will not work.\n");
+			header.append("exit 1\n");
+		} else {
+			header.append("GREP=\"").append(grep).append("\"\n");
+		}
+		return header.toString();
+	}
+
+	/**
+	 * Get the probed toolchain, probing it if necessary. This requires root
+	 * access and must not be called from the main thread.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return probed toolchain
+	 * @throws IOException
+	 *             if the toolchain could not be probed
+	 */
+	static Toolchain get(Context ctx) throws IOException {
+		synchronized (PROBE_LOCK) {
+			final String fingerprint = fingerprint(ctx);
+			if (instance != null && instance.fingerprint.equals(fingerprint)) {
+				return instance;
+			}
+			final SharedPreferences prefs = prefs(ctx);
+			if (!fingerprint.equals(prefs.getString("fingerprint", null))) {
+				probe(ctx, prefs, fingerprint);
+			}
+			instance = new Toolchain(prefs, fingerprint);
+			return instance;
+		}
+	}
+
+	/**
+	 * Get the capabilities found by the last probe, without probing (so it
+	 * may be called from the main thread)
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return supported capabilities (CAP_* flags), or -1 if the toolchain
+	 *         has never been probed
+	 */
+	static int probedCaps(Context ctx) {
+		final SharedPreferences prefs = prefs(ctx);
+		return (prefs.contains("caps") ? prefs.getInt("caps", 0) : -1);
+	}
+
+	/**
+	 * Discard the probe results, forcing a new probe on the next call to
+	 * {@link #get(Context)}. This is called when a cached tool is found to be
+	 * missing.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	static void invalidate(Context ctx) {
+		synchronized (PROBE_LOCK) {
+			Log.d("DroidWall", "Toolchain cache invalidated");
+			instance = null;
+			prefs(ctx).edit().remove("fingerprint").commit();
+		}
+	}
+
+	/**
+	 * Stop logging through NFLOG, because the receiver does not work. This
+	 * lasts until the binaries change (E.g.: another tcpdump is installed).
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 */
+	static void disableNflog(Context ctx) {
+		synchronized (PROBE_LOCK) {
+			Log.w("DroidWall", "NFLOG receiver disabled");
+			instance = null;
+			prefs(ctx).edit().putBoolean("nflog_broken", true).commit();
+		}
+	}
+
+	/**
+	 * Check if this is an ARMv6 device (the result is cached)
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return true if this is ARMv6
+	 */
+	static synchronized boolean isARMv6(Context ctx) {
+		final SharedPreferences prefs = prefs(ctx);
+		if (prefs.contains("armv6")) {
+			return prefs.getBoolean("armv6", false);
+		}
+		boolean armv6 = false;
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new FileReader("/proc/cpuinfo"));
+			for (String line = r.readLine(); line != null; line = r.readLine()) {
+				if (line.startsWith("Processor") && line.contains("ARMv6")) {
+					armv6 = true;
+					break;
+				} else if (line.startsWith("CPU architecture") && (line.contains("6TE") || line.contains("5TE"))) {
+					armv6 = true;
+					break;
+				}
+			}
+		} catch (Exception ex) {
+		} finally {
+			if (r != null)
+				try {
+					r.close();
+				} catch (Exception ex) {
+				}
+		}
+		prefs.edit().putBoolean("armv6", armv6).commit();
+		return armv6;
+	}
+
+	/**
+	 * Get the UID of a system user (the result is cached)
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param name
+	 *            user name (E.g.: "dhcp")
+	 * @return user UID, or -1 if the user does not exist
+	 */
+	static synchronized int systemUid(Context ctx, String name) {
+		final SharedPreferences prefs = prefs(ctx);
+		final String key = "uid." + name;
+		if (prefs.contains(key)) {
+			return prefs.getInt(key, -1);
+		}
+		final int uid = android.os.Process.getUidForName(name);
+		prefs.edit().putInt(key, uid).commit();
+		return uid;
+	}
+
+	/**
+	 * Get the preferences used to store the probe results, discarding them if
+	 * they have been created by another version or platform build.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return probe results storage
+	 */
+	private static synchronized SharedPreferences prefs(Context ctx) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		final String platform = VERSION + ":" + Build.FINGERPRINT;
+		if (!platform.equals(prefs.getString("platform", null))) {
+			prefs.edit().clear().putString("platform", platform).commit();
+		}
+		return prefs;
+	}
+
+	/**
+	 * Compute the fingerprint of every candidate binary
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return binaries fingerprint
+	 */
+	private static String fingerprint(Context ctx) {
+		final File dir = ctx.getCacheDir();
+		final File files[] = { new File(dir, "iptables_g1"), new File(dir, "iptables_n1"),
+				new File(dir, "busybox_g1"), new File("/system/bin/iptables"), new File("/system/xbin/iptables"),
+				new File("/system/bin/iptables-restore"), new File("/system/xbin/iptables-restore"),
+				new File("/system/bin/busybox"), new File("/system/xbin/busybox"), new File("/system/bin/nft"),
+				new File("/system/xbin/nft"), new File("/system/bin/tcpdump"), new File("/system/xbin/tcpdump"), };
+		final StringBuilder fingerprint = new StringBuilder();
+		for (File file : files) {
+			if (file.exists()) {
+				fingerprint.append(file.length()).append('@').append(file.lastModified());
+			}
+			fingerprint.append('|');
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Run the probe script and store its results
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param prefs
+	 *            probe results storage
+	 * @param fingerprint
+	 *            binaries fingerprint
+	 * @throws IOException
+	 *             if the probe script could not be executed
+	 */
+	private static void probe(Context ctx, SharedPreferences prefs, String fingerprint) throws IOException {
+		final long start = System.currentTimeMillis();
+		final StringBuilder res = new StringBuilder();
+		final int code = Api.runScriptAsRoot(ctx, probeScript(ctx), res);
+		if (code != 0) {
+			throw new IOException("Could not probe the iptables toolchain (exit code " + code + "): " + res);
+		}
+		String iptables = "iptables";
+		String restore = null;
+		String busybox = "";
+		String grep = null;
+		String echo = "echo";
+		String nft = null;
+		String tcpdump = null;
+		int caps = 0;
+		final BufferedReader r = new BufferedReader(new StringReader(res.toString()));
+		String line;
+		while ((line = r.readLine()) != null) {
+			final int sep = line.indexOf('=');
+			if (sep == -1) {
+				continue;
+			}
+			final String key = line.substring(0, sep);
+			final String value = line.substring(sep + 1).trim();
+			if (key.equals("IPTABLES")) {
+				iptables = value;
+			} else if (key.equals("RESTORE")) {
+				restore = value;
+			} else if (key.equals("BUSYBOX")) {
+				busybox = value;
+			} else if (key.equals("GREP")) {
+				grep = (value.length() == 0 ? null : value);
+			} else if (key.equals("ECHO")) {
+				echo = value;
+			} else if (key.equals("NFT")) {
+				nft = value;
+			} else if (key.equals("TCPDUMP")) {
+				tcpdump = value;
+			} else if (key.equals("CAP")) {
+				if (value.equals("owner")) {
+					caps |= CAP_OWNER;
+				} else if (value.equals("log_uid")) {
+					caps |= CAP_LOG_UID;
+				} else if (value.equals("wait")) {
+					caps |= CAP_WAIT;
+				} else if (value.equals("uid_range")) {
+					caps |= CAP_UID_RANGE;
+				} else if (value.equals("nft_uid")) {
+					caps |= CAP_NFT_UID;
+				} else if (value.equals("connmark")) {
+					caps |= CAP_CONNMARK;
+				} else if (value.equals("nflog")) {
+					caps |= CAP_NFLOG;
+				} else if (value.equals("dmesg_follow")) {
+					caps |= CAP_DMESG_FOLLOW;
+				}
+			}
+		}
+		if (restore != null) {
+			caps |= CAP_RESTORE;
+		}
+		if (nft != null) {
+			caps |= CAP_NFT;
+		}
+		if ((caps & CAP_WAIT) != 0) {
+			iptables += " -w";
+		}
+		final Editor edit = prefs.edit();
+		edit.putString("iptables", iptables);
+		edit.putString("restore", restore);
+		edit.putString("busybox", busybox);
+		edit.putString("grep", grep);
+		edit.putString("echo", echo);
+		edit.putString("nft", nft);
+		edit.putString("tcpdump", tcpdump);
+		edit.putInt("caps", caps);
+		edit.putBoolean("nflog_broken", false);
+		edit.putString("fingerprint", fingerprint);
+		edit.commit();
+		Log.d("DroidWall", "Toolchain probed in " + (System.currentTimeMillis() - start) + "ms: " + iptables
+				+ " (caps " + caps + ")");
+	}
+
+	/**
+	 * Create the probe script. It prints one "KEY=value" line per resolved
+	 * tool and one "CAP=name" line per supported capability.
+	 *
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return probe script
+	 */
+	private static String probeScript(Context ctx) {
+		final String dir = ctx.getCacheDir().getAbsolutePath();
+		final String myiptables = dir + (isARMv6(ctx) ? "/iptables_g1" : "/iptables_n1");
+		final StringBuilder script = new StringBuilder();
+		script.append("# Find busybox\n");
+		appendFind(script, "BUSYBOX", "--help", dir + "/busybox_g1", "busybox", "/system/xbin/busybox",
+				"/system/bin/busybox");
+		script.append("GREP=grep\n");
+		script.append("ECHO=echo\n");
+		script.append("if [ \"$BUSYBOX\" = \"" + dir + "/busybox_g1\" ] ; then\n");
+		script.append("	GREP=\"$BUSYBOX grep\"\n");
+		script.append("	ECHO=\"$BUSYBOX echo\"\n");
+		script.append("fi\n");
+		script.append("# Find grep\n");
+		script.append("if ! $ECHO 1 | $GREP -q 1 >/dev/null 2>/dev/null ; then\n");
+		script.append("	GREP=\n");
+		script.append("	if [ -n \"$BUSYBOX\" ] && $ECHO 1 | $BUSYBOX grep -q 1 >/dev/null 2>/dev/null ; then\n");
+		script.append("		GREP=\"$BUSYBOX grep\"\n");
+		script.append("	fi\n");
+		script.append("fi\n");
+		script.append("echo GREP=$GREP\n");
+		script.append("echo ECHO=$ECHO\n");
+		script.append("# Find iptables\n");
+		script.append("IPTABLES=iptables\n");
+		script.append("if " + myiptables + " --version >/dev/null 2>/dev/null ; then\n");
+		script.append("	IPTABLES=" + myiptables + "\n");
+		script.append("fi\n");
+		script.append("echo IPTABLES=$IPTABLES\n");
+		script.append("# Probe the supported matches and targets\n");
+		script.append("$IPTABLES -w -L OUTPUT -n >/dev/null 2>/dev/null && echo CAP=wait\n");
+		script.append("$IPTABLES -N " + PROBE_CHAIN + " >/dev/null 2>/dev/null\n");
+		script.append("$IPTABLES -F " + PROBE_CHAIN + " >/dev/null 2>/dev/null\n");
+		script.append("$IPTABLES -A " + PROBE_CHAIN
+				+ " -m owner --uid-owner 0 -j RETURN >/dev/null 2>/dev/null && echo CAP=owner\n");
+		script.append("$IPTABLES -A " + PROBE_CHAIN
+				+ " -m owner --uid-owner 0-1 -j RETURN >/dev/null 2>/dev/null && echo CAP=uid_range\n");
+		script.append("$IPTABLES -A " + PROBE_CHAIN
+				+ " -j LOG --log-prefix \"[DROIDWALL] \" --log-uid >/dev/null 2>/dev/null && echo CAP=log_uid\n");
+		script.append("$IPTABLES -A " + PROBE_CHAIN
+				+ " -m connmark --mark 0x1/0x1 -j RETURN >/dev/null 2>/dev/null && $IPTABLES -A " + PROBE_CHAIN
+				+ " -j CONNMARK --set-mark 0x1/0x1 >/dev/null 2>/dev/null && echo CAP=connmark\n");
+		script.append("$IPTABLES -A " + PROBE_CHAIN + " -j NFLOG --nflog-group " + Api.NFLOG_GROUP
+				+ " --nflog-prefix \"[DROIDWALL]\" --nflog-threshold " + Api.NFLOG_THRESHOLD
+				+ " >/dev/null 2>/dev/null && echo CAP=nflog\n");
+		script.append("$IPTABLES -F " + PROBE_CHAIN + " >/dev/null 2>/dev/null\n");
+		script.append("$IPTABLES -X " + PROBE_CHAIN + " >/dev/null 2>/dev/null\n");
+		script.append("# Find the optional tools\n");
+		appendFind(script, "RESTORE", "--noflush", "iptables-restore", "/system/bin/iptables-restore",
+				"/system/xbin/iptables-restore");
+		appendFind(script, "NFT", "list tables", "nft", "/system/bin/nft", "/system/xbin/nft");
+		script.append("if [ -n \"$NFT\" ] ; then\n");
+		script.append("	$NFT -f - >/dev/null 2>/dev/null <<'DROIDWALL_EOF' && echo CAP=nft_uid\n");
+		script.append("table inet " + PROBE_CHAIN + " {\n");
+		script.append("	set uids {\n");
+		script.append("		type uid\n");
+		script.append("	}\n");
+		script.append("	chain output {\n");
+		script.append("		meta skuid @uids return\n");
+		script.append("	}\n");
+		script.append("}\n");
+		script.append("delete table inet " + PROBE_CHAIN + "\n");
+		script.append("DROIDWALL_EOF\n");
+		script.append("fi\n");
+		script.append("# Find a tcpdump able to capture NFLOG groups (the NFLOG receiver)\n");
+		script.append("for c in tcpdump /system/xbin/tcpdump /system/bin/tcpdump ; do\n");
+		script.append("	if $c -D 2>/dev/null | $GREP -q nflog ; then\n");
+		script.append("		echo TCPDUMP=$c\n");
+		script.append("		break\n");
+		script.append("	fi\n");
+		script.append("done\n");
+		script.append("# Check if dmesg can follow the kernel log (it is still waiting after a second)\n");
+		script.append("dmesg -w </dev/null >/dev/null 2>/dev/null &\n");
+		script.append("PID=$!\n");
+		script.append("sleep 1\n");
+		script.append("kill $PID 2>/dev/null && echo CAP=dmesg_follow\n");
+		script.append("exit 0\n");
+		return script.toString();
+	}
+
+	/**
+	 * Append the commands that look for the first working candidate of a
+	 * tool, printing "VAR=path" when found.
+	 *
+	 * @param script
+	 *            script being built
+	 * @param var
+	 *            shell variable (and output key)
+	 * @param args
+	 *            arguments used to test a candidate
+	 * @param candidates
+	 *            candidate binaries, in order of preference
+	 */
+	private static void appendFind(StringBuilder script, String var, String args, String... candidates) {
+		script.append(var).append("=\n");
+		script.append("for c in");
+		for (String candidate : candidates) {
+			script.append(' ').append(candidate);
+		}
+		script.append(" ; do\n");
+		script.append("	if $c ").append(args).append(" </dev/null >/dev/null 2>/dev/null ; then\n");
+		script.append("		").append(var).append("=$c\n");
+		script.append("		echo ").append(var).append("=$c\n");
+		script.append("		break\n");
+		script.append("	fi\n");
+		script.append("done\n");
+	}
+}
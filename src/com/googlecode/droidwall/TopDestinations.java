@@ -0,0 +1,160 @@
+/**
+ * Bounded tracking of the most blocked destinations.
+ * Uses the "space-saving" algorithm, so the memory used per application is
+ * fixed no matter how many distinct destinations it tries to reach.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Space-saving top-K counter of IPv4 destinations (optionally rolled up to a
+ * CIDR prefix). It keeps a fixed number of counters: when all of them are
+ * used, a new destination replaces the smallest counter and inherits its
+ * count (recorded as the error of the new counter). Every destination
+ * blocked more than total / capacity times is guaranteed to be tracked, and
+ * the counters always add up to the total.
+ * Not thread-safe.
+ */
+final class TopDestinations {
+	/** prefix mask applied to the addresses */
+	private final int mask;
+	/** prefix length (32 for whole addresses) */
+	private final int prefix;
+	/** tracked destinations */
+	private final int dsts[];
+	/** estimated count of each destination (never below the real count) */
+	private final int counts[];
+	/** maximum over-estimation of each count */
+	private final int errors[];
+	/** number of counters in use */
+	private int size;
+	/** total number of packets */
+	private int total;
+
+	/**
+	 * @param capacity
+	 *            number of counters
+	 * @param prefix
+	 *            CIDR prefix length the addresses are rolled up to (32 for
+	 *            none)
+	 */
+	TopDestinations(int capacity, int prefix) {
+		this.prefix = prefix;
+		this.mask = (prefix == 0 ? 0 : -1 << (32 - prefix));
+		dsts = new int[capacity];
+		counts = new int[capacity];
+		errors = new int[capacity];
+	}
+
+	/**
+	 * Count a packet
+	 *
+	 * @param dst
+	 *            IPv4 destination address
+	 */
+	void add(int dst) {
+		dst &= mask;
+		total++;
+		int min = 0;
+		for (int i = 0; i < size; i++) {
+			if (dsts[i] == dst) {
+				counts[i]++;
+				return;
+			}
+			if (counts[i] < counts[min])
+				min = i;
+		}
+		if (size < dsts.length) {
+			dsts[size] = dst;
+			counts[size] = 1;
+			errors[size] = 0;
+			size++;
+			return;
+		}
+		// replace the smallest counter
+		dsts[min] = dst;
+		errors[min] = counts[min];
+		counts[min]++;
+	}
+
+	/**
+	 * @return total number of packets
+	 */
+	int total() {
+		return total;
+	}
+
+	/**
+	 * @return true if some destinations have been evicted (the counts are
+	 *         estimates)
+	 */
+	boolean isApproximate() {
+		for (int i = 0; i < size; i++) {
+			if (errors[i] != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Describe the top destinations, plus an "other" bucket for the rest
+	 *
+	 * @param res
+	 *            destination buffer
+	 * @param k
+	 *            maximum number of destinations to describe
+	 */
+	void appendTo(StringBuilder res, int k) {
+		// partial selection sort of the positions, highest count first
+		final int order[] = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		final int shown = Math.min(k, size);
+		int sum = 0;
+		for (int i = 0; i < shown; i++) {
+			int max = i;
+			for (int j = i + 1; j < size; j++) {
+				if (counts[order[j]] > counts[order[max]])
+					max = j;
+			}
+			final int pos = order[max];
+			order[max] = order[i];
+			order[i] = pos;
+			if (i > 0) {
+				res.append(", ");
+			}
+			if (errors[pos] != 0) {
+				res.append('~');
+			}
+			res.append(counts[pos]).append(" packets for ").append(LogParser.formatAddress(dsts[pos]));
+			if (prefix < 32) {
+				res.append('/').append(prefix);
+			}
+			sum += counts[pos];
+		}
+		if (total > sum) {
+			if (shown > 0) {
+				res.append(", ");
+			}
+			res.append(total - sum).append(" packets for other destinations");
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Unit tests of the persistent application catalog.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.test.mock.MockPackageManager;
+
+/**
+ * Tests the reconciliation of the catalog with the installed packages and its
+ * file format.
+ */
+public class AppCatalogTest extends StoreTestCase {
+	/** installed packages */
+	private final ArrayList<ApplicationInfo> installed = new ArrayList<ApplicationInfo>();
+	/** packages with the Internet permission */
+	private final HashSet<String> internet = new HashSet<String>();
+	/** context with the fake package manager */
+	private Context pmctx;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		installed.clear();
+		internet.clear();
+		install("com.example.browser", 10001, true);
+		install("com.example.clock", 10002, false);
+		install("com.example.mail", 10001, true);
+		final PackageManager pkgmanager = new MockPackageManager() {
+			@Override
+			public List<ApplicationInfo> getInstalledApplications(int flags) {
+				return new ArrayList<ApplicationInfo>(installed);
+			}
+
+			@Override
+			public ApplicationInfo getApplicationInfo(String packageName, int flags) throws NameNotFoundException {
+				for (ApplicationInfo apinfo : installed) {
+					if (apinfo.packageName.equals(packageName))
+						return apinfo;
+				}
+				throw new NameNotFoundException();
+			}
+
+			@Override
+			public int checkPermission(String permName, String pkgName) {
+				if (Manifest.permission.INTERNET.equals(permName) && internet.contains(pkgName))
+					return PERMISSION_GRANTED;
+				return PERMISSION_DENIED;
+			}
+
+			@Override
+			public CharSequence getApplicationLabel(ApplicationInfo info) {
+				return "Label of " + info.packageName;
+			}
+		};
+		pmctx = new ContextWrapper(ctx) {
+			@Override
+			public PackageManager getPackageManager() {
+				return pkgmanager;
+			}
+
+			@Override
+			public Context getApplicationContext() {
+				return this;
+			}
+		};
+	}
+
+	/**
+	 * Add an installed package
+	 *
+	 * @param packageName
+	 *            package name
+	 * @param uid
+	 *            linux user id
+	 * @param granted
+	 *            true if it has the Internet permission
+	 */
+	private void install(String packageName, int uid, boolean granted) {
+		final ApplicationInfo apinfo = new ApplicationInfo();
+		apinfo.packageName = packageName;
+		apinfo.uid = uid;
+		installed.add(apinfo);
+		if (granted)
+			internet.add(packageName);
+	}
+
+	public void testReconcile() {
+		final AppCatalog catalog = AppCatalog.get(pmctx);
+		assertTrue(catalog.isEmpty());
+		assertTrue(catalog.reconcile(pmctx));
+		assertEquals(3, catalog.entries().size());
+		assertEquals(2, catalog.entries(10001).size());
+		assertEquals(10002, catalog.uid("com.example.clock"));
+		assertEquals(-1, catalog.uid("com.example.unknown"));
+		// labels are left pending on a reconciliation
+		assertEquals(2, catalog.pending().size());
+		assertEquals("com.example.browser", catalog.entries().get(0).name());
+		// nothing changed
+		assertFalse(catalog.reconcile(pmctx));
+		installed.remove(1);
+		assertTrue(catalog.reconcile(pmctx));
+		assertEquals(-1, catalog.uid("com.example.clock"));
+		assertEquals(2, catalog.entries().size());
+	}
+
+	public void testUpdateAndRemove() {
+		final AppCatalog catalog = AppCatalog.get(pmctx);
+		catalog.reconcile(pmctx);
+		install("com.example.game", 10003, true);
+		catalog.update(pmctx, "com.example.game");
+		assertEquals(10003, catalog.uid("com.example.game"));
+		// a single package is resolved right away
+		assertEquals("Label of com.example.game", catalog.entries(10003).get(0).label);
+		assertEquals("Label of com.example.game", LabelCache.get(pmctx).get("com.example.game"));
+		catalog.remove(pmctx, "com.example.game");
+		assertEquals(-1, catalog.uid("com.example.game"));
+		assertNull(LabelCache.get(pmctx).get("com.example.game"));
+		// a package sharing an UID joins its entries
+		install("com.example.calendar", 10001, false);
+		catalog.update(pmctx, "com.example.calendar");
+		assertEquals(3, catalog.entries(10001).size());
+		assertFalse(catalog.entries(10001).get(2).internet);
+		// updating a package that is not installed anymore removes it
+		installed.remove(0);
+		catalog.update(pmctx, "com.example.browser");
+		assertEquals(-1, catalog.uid("com.example.browser"));
+		assertEquals(2, catalog.entries(10001).size());
+	}
+
+	public void testRoundTrip() throws Exception {
+		AppCatalog catalog = AppCatalog.get(pmctx);
+		catalog.reconcile(pmctx);
+		assertEquals(10001, catalog.setLabel(pmctx, "com.example.browser", "Browser"));
+		// packages without the Internet permission have no label
+		assertEquals(-1, catalog.setLabel(pmctx, "com.example.clock", "Clock"));
+		catalog.save(pmctx);
+		reload(AppCatalog.class);
+		catalog = AppCatalog.get(pmctx);
+		assertFalse(catalog.needsReconcile());
+		final List<AppCatalog.Entry> entries = catalog.entries();
+		assertEquals(3, entries.size());
+		assertEquals("com.example.browser", entries.get(0).packageName);
+		assertEquals("Browser", entries.get(0).label);
+		assertTrue(entries.get(0).internet);
+		assertEquals("com.example.clock", entries.get(1).packageName);
+		assertEquals(10002, entries.get(1).uid);
+		assertFalse(entries.get(1).internet);
+		assertNull(entries.get(1).label);
+		// pending labels stay pending
+		assertNull(entries.get(2).label);
+		assertEquals(1, catalog.pending().size());
+		// the loaded catalog is up-to-date
+		assertFalse(catalog.reconcile(pmctx));
+	}
+
+	public void testLocaleChange() throws Exception {
+		AppCatalog catalog = AppCatalog.get(pmctx);
+		catalog.reconcile(pmctx);
+		catalog.setLabel(pmctx, "com.example.browser", "Browser");
+		catalog.save(pmctx);
+		final Locale locale = Locale.getDefault();
+		try {
+			Locale.setDefault(locale.equals(Locale.FRENCH) ? Locale.GERMAN : Locale.FRENCH);
+			// labels of the loaded catalog are resolved again
+			assertTrue(catalog.needsReconcile());
+			assertTrue(catalog.reconcile(pmctx));
+			assertEquals(2, catalog.pending().size());
+			assertFalse(catalog.needsReconcile());
+			catalog.setLabel(pmctx, "com.example.browser", "Navigateur");
+			catalog.save(pmctx);
+			reload(AppCatalog.class);
+			assertEquals("Navigateur", AppCatalog.get(pmctx).entries().get(0).label);
+		} finally {
+			Locale.setDefault(locale);
+		}
+		// so are the labels of a file saved on another locale
+		reload(AppCatalog.class);
+		catalog = AppCatalog.get(pmctx);
+		assertNull(catalog.entries().get(0).label);
+		assertEquals(2, catalog.pending().size());
+	}
+
+	public void testTruncatedFile() throws Exception {
+		AppCatalog.get(pmctx).reconcile(pmctx);
+		AppCatalog.get(pmctx).save(pmctx);
+		truncate("apps.bin", file("apps.bin").length() - 3);
+		reload(AppCatalog.class);
+		assertTrue(AppCatalog.get(pmctx).isEmpty());
+	}
+
+	public void testOtherVersion() throws Exception {
+		AppCatalog.get(pmctx).reconcile(pmctx);
+		AppCatalog.get(pmctx).save(pmctx);
+		patch("apps.bin", 4, -1);
+		reload(AppCatalog.class);
+		assertTrue(AppCatalog.get(pmctx).isEmpty());
+		patch("apps.bin", 0, 0);
+		reload(AppCatalog.class);
+		assertTrue(AppCatalog.get(pmctx).isEmpty());
+	}
+}
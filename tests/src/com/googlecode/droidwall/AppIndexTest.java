@@ -0,0 +1,98 @@
+/**
+ * Unit tests of the application search index.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Tests the sorting, search and filters of the application index.
+ */
+public class AppIndexTest extends StoreTestCase {
+	/** indexed table */
+	private AppTable apps;
+	/** selection of the queries */
+	private SelectionEdit selection;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		apps = new AppTable.Builder().add(10002, "com.example.clock", "Clock")
+				.add(10001, "com.example.browser", "browser").add(10003, "com.example.mail", "Mail")
+				.add(10004, "org.example.calc", "Calculator").build();
+		selection = new SelectionEdit(RuleStore.get(ctx));
+	}
+
+	/**
+	 * Run a query
+	 *
+	 * @param query
+	 *            query text
+	 * @param filter
+	 *            selection filter
+	 * @param selectedFirst
+	 *            true to list the selected applications first
+	 * @return UIDs of the matching rows, comma separated
+	 */
+	private String query(String query, int filter, boolean selectedFirst) {
+		final StringBuilder res = new StringBuilder();
+		for (int row : AppIndex.of(apps).query(query, filter, selection, selectedFirst)) {
+			if (res.length() > 0)
+				res.append(',');
+			res.append(apps.uid(row));
+		}
+		return res.toString();
+	}
+
+	public void testSorted() {
+		// sorted by name, ignoring the case
+		assertEquals("10001,10004,10002,10003", query("", AppIndex.FILTER_ALL, false));
+		assertSame(AppIndex.of(apps), AppIndex.of(apps));
+		assertSame(apps, AppIndex.of(apps).table());
+	}
+
+	public void testQuery() {
+		assertEquals("10004", query(" CALC ", AppIndex.FILTER_ALL, false));
+		assertEquals("10004", query("org.", AppIndex.FILTER_ALL, false));
+		assertEquals("10003", query("10003", AppIndex.FILTER_ALL, false));
+		assertEquals("10003", query("mail", AppIndex.FILTER_ALL, false));
+		assertEquals("", query("unknown", AppIndex.FILTER_ALL, false));
+	}
+
+	public void testRefine() {
+		assertEquals("10001,10004,10002,10003", query("c", AppIndex.FILTER_ALL, false));
+		assertEquals("10002", query("cl", AppIndex.FILTER_ALL, false));
+		assertEquals("10002", query("clo", AppIndex.FILTER_ALL, false));
+		// not a refinement: all rows are scanned again
+		assertEquals("10004", query("cal", AppIndex.FILTER_ALL, false));
+		assertEquals("10001,10004,10002,10003", query("", AppIndex.FILTER_ALL, false));
+		assertEquals("10001", query("brow", AppIndex.FILTER_ALL, false));
+	}
+
+	public void testFilters() {
+		selection.setSelectedWifi(10003, true);
+		selection.setSelected3g(10002, true);
+		assertEquals("10002,10003", query("", AppIndex.FILTER_SELECTED, false));
+		assertEquals("10003", query("", AppIndex.FILTER_WIFI, false));
+		assertEquals("10002", query("", AppIndex.FILTER_3G, false));
+		assertEquals("", query("browser", AppIndex.FILTER_SELECTED, false));
+		assertEquals("10002,10003,10001,10004", query("", AppIndex.FILTER_ALL, true));
+		assertEquals("10001,10004", query("r", AppIndex.FILTER_ALL, true));
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Unit tests of the compact application table.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the rows, indexes and name patches of the application table.
+ */
+public class AppTableTest extends TestCase {
+	/**
+	 * @return table with two applications sharing an UID, one more
+	 *         application and a special UID without package
+	 */
+	private static AppTable table() {
+		return new AppTable.Builder().add(10001, "com.example.browser", "Browser")
+				.add(10002, "com.example.clock", "Clock").add(10001, "com.example.mail", "Mail")
+				.add(0, null, "Root").build();
+	}
+
+	public void testRows() {
+		final AppTable apps = table();
+		assertEquals(3, apps.size());
+		assertEquals(0, apps.indexOf(10001));
+		assertEquals(1, apps.indexOf(10002));
+		assertEquals(2, apps.indexOf(0));
+		assertEquals(-1, apps.indexOf(10003));
+		assertEquals(2, apps.nameCount(0));
+		assertEquals("Mail", apps.name(0, 1));
+		assertEquals("10001: Browser, Mail\n", apps.label(0));
+		// special UIDs are not shown
+		assertEquals("Root\n", apps.label(2));
+	}
+
+	public void testPackages() {
+		final AppTable apps = table();
+		assertEquals(3, apps.packageCount());
+		assertEquals(10001, apps.uidOf("com.example.mail"));
+		assertEquals(10002, apps.uidOf("com.example.clock"));
+		assertEquals(-1, apps.uidOf("com.example.unknown"));
+		assertEquals("com.example.mail", apps.packageName(2));
+		assertEquals(10001, apps.packageUid(2));
+	}
+
+	public void testManyRows() {
+		final AppTable.Builder builder = new AppTable.Builder();
+		for (int uid = 10000; uid < 10200; uid++) {
+			builder.add(uid, "com.example.app" + uid, "App");
+		}
+		assertTrue(builder.contains(10199));
+		assertFalse(builder.contains(10200));
+		final AppTable apps = builder.build();
+		assertEquals(200, apps.size());
+		for (int uid = 10000; uid < 10200; uid++) {
+			assertEquals(uid - 10000, apps.indexOf(uid));
+			assertEquals(uid, apps.uidOf("com.example.app" + uid));
+		}
+		assertEquals(-1, apps.indexOf(10200));
+	}
+
+	public void testWithNames() {
+		final AppTable apps = table();
+		assertSame(apps, apps.withNames(0, new String[] { "Browser", "Mail" }));
+		final AppTable patched = apps.withNames(0, new String[] { "Browser", "Email" });
+		assertNotSame(apps, patched);
+		assertTrue(patched.hasSameRows(apps));
+		assertTrue(patched.version() > apps.version());
+		assertEquals("10001: Browser, Email\n", patched.label(0));
+		assertEquals("Clock", patched.name(1, 0));
+		// tables are immutable
+		assertEquals("10001: Browser, Mail\n", apps.label(0));
+		assertFalse(table().hasSameRows(apps));
+	}
+
+	public void testWithPackageNames() {
+		final AppTable apps = table();
+		final HashMap<String, String> names = new HashMap<String, String>();
+		names.put("com.example.mail", "Email");
+		names.put("com.example.clock", "Alarm");
+		names.put("com.example.unknown", "Unknown");
+		final AppTable patched = apps.withPackageNames(names);
+		assertEquals("10001: Browser, Email\n", patched.label(0));
+		assertEquals("Alarm", patched.name(1, 0));
+		assertEquals(apps.version() + 1, patched.version());
+		assertSame(patched, patched.withPackageNames(names));
+		names.clear();
+		names.put("com.example.unknown", "Unknown");
+		assertSame(apps, apps.withPackageNames(names));
+	}
+
+	public void testPoolCompacted() throws Exception {
+		AppTable apps = table();
+		final HashMap<String, String> names = new HashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			names.put("com.example.mail", "Mail " + i);
+			names.put("com.example.clock", "Mail " + i);
+			apps = apps.withPackageNames(names);
+		}
+		assertEquals("10001: Browser, Mail 99\n", apps.label(0));
+		assertEquals("Mail 99", apps.name(1, 0));
+		// Browser, Mail 99 and Root
+		final Field pool = AppTable.class.getDeclaredField("pool");
+		pool.setAccessible(true);
+		assertEquals(3, ((String[]) pool.get(apps)).length);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Unit tests of the blocked packet statistics.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Tests the statistics queries, the roll up of the time bucket tiers, the
+ * downsampling of full buckets and the file format.
+ */
+public class BlockStatsTest extends StoreTestCase {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	/** start of a day some weeks ago (the saves use the real time) */
+	private final long base = (System.currentTimeMillis() / DAY - 60) * DAY;
+
+	public void testQuery() {
+		final BlockStats stats = BlockStats.get(ctx);
+		stats.add(ctx, base, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		stats.add(ctx, base + 1, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		stats.add(ctx, base + 2, 10001, 0x01020304, 443, LogParser.ITF_3G);
+		stats.add(ctx, base + 3, 10002, 0x01020304, -1, LogParser.ITF_OTHER);
+		BlockStats.Counts counts = stats.query(10001, BlockStats.ANY_ITF, base);
+		assertEquals(3, counts.total());
+		assertEquals(2, counts.size());
+		// highest count first
+		assertEquals(2, counts.count(0));
+		assertEquals(0x08080808, counts.dst(0));
+		assertEquals(53, counts.port(0));
+		assertEquals(LogParser.ITF_WIFI, counts.itf(0));
+		counts = stats.query(10001, LogParser.ITF_3G, base);
+		assertEquals(1, counts.total());
+		assertEquals(443, counts.port(0));
+		assertEquals(-1, stats.query(10002, BlockStats.ANY_ITF, base).port(0));
+		assertEquals(0, stats.query(10003, BlockStats.ANY_ITF, base).total());
+		// only the buckets that end after the start time
+		assertEquals(0, stats.query(10001, BlockStats.ANY_ITF, base + MINUTE).total());
+	}
+
+	public void testUids() {
+		final BlockStats stats = BlockStats.get(ctx);
+		stats.add(ctx, base, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		stats.add(ctx, base + MINUTE, 10002, 0, -1, LogParser.ITF_OTHER);
+		stats.add(ctx, base + 2 * MINUTE, 10002, 0, -1, LogParser.ITF_OTHER);
+		assertTrue(Arrays.equals(new int[] { 10001, 10002 }, stats.uids(base).toSortedArray()));
+		// only the buckets that end after the start time
+		assertTrue(Arrays.equals(new int[] { 10002 }, stats.uids(base + MINUTE).toSortedArray()));
+		assertTrue(stats.uids(base + 3 * MINUTE).isEmpty());
+	}
+
+	public void testTiers() {
+		final BlockStats stats = BlockStats.get(ctx);
+		for (int i = 0; i < 3; i++) {
+			stats.add(ctx, base + i * MINUTE, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		}
+		// minute buckets older than two hours are rolled up into an hour
+		stats.add(ctx, base + 3 * HOUR, 10002, 0, -1, LogParser.ITF_OTHER);
+		BlockStats.Counts counts = stats.query(10001, BlockStats.ANY_ITF, base);
+		assertEquals(3, counts.total());
+		assertEquals(1, counts.size());
+		assertEquals(0, stats.query(10001, BlockStats.ANY_ITF, base + HOUR).total());
+		// hour buckets older than two days are rolled up into a day
+		stats.add(ctx, base + 3 * DAY, 10002, 0, -1, LogParser.ITF_OTHER);
+		counts = stats.query(10001, BlockStats.ANY_ITF, base);
+		assertEquals(3, counts.total());
+		assertEquals(3, counts.count(0));
+		assertEquals(0x08080808, counts.dst(0));
+		assertEquals(0, stats.query(10001, BlockStats.ANY_ITF, base + DAY).total());
+		assertEquals(2, stats.query(10002, BlockStats.ANY_ITF, base).total());
+		// day buckets older than five weeks are dropped
+		stats.add(ctx, base + 40 * DAY, 10002, 0, -1, LogParser.ITF_OTHER);
+		assertEquals(0, stats.query(10001, BlockStats.ANY_ITF, 0).total());
+		assertEquals(1, stats.query(10002, BlockStats.ANY_ITF, 0).total());
+	}
+
+	public void testDownsampling() {
+		final BlockStats stats = BlockStats.get(ctx);
+		for (int i = 0; i < 5000; i++) {
+			stats.add(ctx, base, 10001, 0x0a000000 + i, 80, LogParser.ITF_WIFI);
+		}
+		stats.add(ctx, base, 10001, 0x0a000000, 80, LogParser.ITF_WIFI);
+		final BlockStats.Counts counts = stats.query(10001, BlockStats.ANY_ITF, base);
+		assertEquals(5001, counts.total());
+		// the new destinations of a full bucket are counted per interface class
+		assertEquals(4097, counts.size());
+		assertEquals(5000 - 4096, counts.count(0));
+		assertEquals(0, counts.dst(0));
+		assertEquals(-1, counts.port(0));
+		assertEquals(LogParser.ITF_WIFI, counts.itf(0));
+		assertEquals(2, counts.count(1));
+	}
+
+	public void testClockSteps() {
+		final BlockStats stats = BlockStats.get(ctx);
+		stats.add(ctx, base + 10 * MINUTE, 10001, 0, -1, LogParser.ITF_WIFI);
+		// a small step back is counted on the newest bucket
+		stats.add(ctx, base + 5 * MINUTE, 10001, 0, -1, LogParser.ITF_WIFI);
+		assertEquals(2, stats.query(10001, BlockStats.ANY_ITF, base + 10 * MINUTE).total());
+		stats.add(ctx, base + 3 * HOUR, 10001, 0, -1, LogParser.ITF_WIFI);
+		// a larger one drops the newer buckets
+		stats.add(ctx, base + HOUR, 10001, 0, -1, LogParser.ITF_3G);
+		assertEquals(3, stats.query(10001, BlockStats.ANY_ITF, 0).total());
+		assertEquals(1, stats.query(10001, LogParser.ITF_3G, base + HOUR).total());
+		assertEquals(0, stats.query(10001, BlockStats.ANY_ITF, base + 2 * HOUR).total());
+		// the tiers are still in order
+		stats.add(ctx, base + 4 * DAY, 10002, 0, -1, LogParser.ITF_WIFI);
+		assertEquals(3, stats.query(10001, BlockStats.ANY_ITF, 0).total());
+	}
+
+	public void testRoundTrip() throws Exception {
+		final long now = System.currentTimeMillis();
+		BlockStats stats = BlockStats.get(ctx);
+		stats.add(ctx, now - 3 * HOUR, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		stats.add(ctx, now - 2 * MINUTE, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		stats.add(ctx, now - MINUTE, 10002, 0x01020304, 443, LogParser.ITF_3G);
+		stats.flush(ctx);
+		reload(BlockStats.class);
+		stats = BlockStats.get(ctx);
+		final BlockStats.Counts counts = stats.query(10001, BlockStats.ANY_ITF, now - DAY);
+		assertEquals(2, counts.total());
+		assertEquals(1, counts.size());
+		assertEquals(53, counts.port(0));
+		assertEquals(1, stats.query(10002, LogParser.ITF_3G, now - DAY).total());
+		stats.clear(ctx);
+		reload(BlockStats.class);
+		assertEquals(0, BlockStats.get(ctx).query(10001, BlockStats.ANY_ITF, 0).total());
+	}
+
+	public void testCorruptFile() throws Exception {
+		final long now = System.currentTimeMillis();
+		BlockStats.get(ctx).add(ctx, now - HOUR, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		BlockStats.get(ctx).add(ctx, now - MINUTE, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		BlockStats.get(ctx).flush(ctx);
+		truncate("stats.bin", file("stats.bin").length() - 5);
+		reload(BlockStats.class);
+		assertEquals(0, BlockStats.get(ctx).query(10001, BlockStats.ANY_ITF, 0).total());
+		BlockStats.get(ctx).add(ctx, now - MINUTE, 10001, 0x08080808, 53, LogParser.ITF_WIFI);
+		BlockStats.get(ctx).flush(ctx);
+		patch("stats.bin", 4, 2);
+		reload(BlockStats.class);
+		assertEquals(0, BlockStats.get(ctx).query(10001, BlockStats.ANY_ITF, 0).total());
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Unit tests of the iptables rule compilation.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the rules compiled for the fast path, which caches the verdict of
+ * each connection on its connection mark.
+ */
+public class CompileRulesTest extends AndroidTestCase {
+	/** mark tested by the fast path RETURN rule */
+	private static final Pattern ALLOW = Pattern.compile("-A droidwall -m connmark --mark (\\S+) -j RETURN\n");
+	/** toolchain supporting connmark */
+	private Toolchain tools;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final SharedPreferences prefs = getContext().getSharedPreferences("test.toolchain", 0);
+		prefs.edit().clear().putInt("caps", Toolchain.CAP_OWNER | Toolchain.CAP_UID_RANGE | Toolchain.CAP_CONNMARK)
+				.putString("grep", "grep").commit();
+		tools = new Toolchain(prefs, "test");
+	}
+
+	/**
+	 * Compile black-list rules
+	 *
+	 * @param wifi
+	 *            UIDs selected for wifi
+	 * @param g3
+	 *            UIDs selected for 2G/3G
+	 * @param fastpath
+	 *            true if the fast path is enabled
+	 * @param generation
+	 *            generation of the saved rules
+	 * @return compiled rules
+	 */
+	private RuleSet compile(int wifi[], int g3[], boolean fastpath, int generation) {
+		return Api.compileRules(getContext(), tools, IntSet.of(wifi), IntSet.of(g3), false, false, fastpath,
+				generation);
+	}
+
+	/**
+	 * @param script
+	 *            restore script
+	 * @return connection mark of the allowed connections
+	 */
+	private static String allowMark(String script) {
+		final Matcher m = ALLOW.matcher(script);
+		assertTrue(m.find());
+		return m.group(1);
+	}
+
+	public void testFastPath() {
+		final String script = compile(new int[] { 10001 }, new int[0], true, 5).toRestoreScript();
+		final String allow = allowMark(script);
+		final String block = allow.replaceFirst("^0x1", "0x2");
+		assertFalse(allow.equals(block));
+		// judged connections skip everything else
+		assertTrue(script.contains(":droidwall-reject - [0:0]\n-A droidwall -m connmark --mark " + allow
+				+ " -j RETURN\n-A droidwall -m connmark --mark " + block + " -j droidwall-reject\n"));
+		// the verdict is saved by the reject chain, or at the end of the main chain
+		assertTrue(script.contains("-A droidwall-reject -j CONNMARK --set-mark " + block + "\n"
+				+ "-A droidwall-reject -j REJECT\n"));
+		assertTrue(script.contains("-A droidwall -j CONNMARK --set-mark " + allow + "\n-A droidwall-wifi "));
+	}
+
+	public void testDisabled() {
+		final String script = compile(new int[] { 10001 }, new int[0], false, 5).toRestoreScript();
+		assertFalse(script.contains("connmark"));
+		assertFalse(script.contains("CONNMARK"));
+	}
+
+	public void testGeneration() {
+		assertEquals("0x1000500/0x3ffff00", allowMark(compile(new int[0], new int[0], true, 5).toRestoreScript()));
+		// only the low 16 bits of the generation are kept
+		assertEquals("0x1ffff00/0x3ffff00", allowMark(compile(new int[0], new int[0], true, 0x1ffff)
+				.toRestoreScript()));
+	}
+
+	public void testGenerationDelta() {
+		// "iptables -S" listing of the installed rules
+		final StringBuilder listing = new StringBuilder("-A OUTPUT -j droidwall\n");
+		for (String chain : new String[] { "droidwall", "droidwall-3g", "droidwall-wifi", "droidwall-reject" }) {
+			listing.append("-N ").append(chain).append('\n');
+		}
+		for (String line : compile(new int[] { 10001 }, new int[0], true, 5).toRestoreScript().split("\n")) {
+			if (line.startsWith("-A ")) {
+				listing.append(line.replace("--set-mark", "--set-xmark")).append('\n');
+			}
+		}
+		// a saved change replaces the marks in place, without a full apply
+		final String delta = compile(new int[] { 10002 }, new int[0], true, 6).toDeltaScript(
+				RuleSet.parseInstalled(listing.toString()));
+		assertNotNull(delta);
+		assertTrue(delta.contains("$IPTABLES -D droidwall-wifi -m owner --uid-owner 10001 -j droidwall-reject"));
+		assertTrue(delta.contains("$IPTABLES -I droidwall-wifi 1 -m owner --uid-owner 10002 -j droidwall-reject"));
+		assertTrue(delta.contains(" -m connmark --mark 0x1000600/0x3ffff00 -j RETURN || exit\n"));
+		assertTrue(delta.contains(" -j CONNMARK --set-mark 0x2000600/0x3ffff00 || exit\n"));
+		assertFalse(delta.contains("0x1000500"));
+	}
+
+	public void testAvailability() {
+		final Context ctx = new ContextWrapper(getContext()) {
+			@Override
+			public SharedPreferences getSharedPreferences(String name, int mode) {
+				return super.getSharedPreferences("test." + name, mode);
+			}
+		};
+		ctx.getSharedPreferences("DroidWallToolchain", 0).edit().clear().commit();
+		// not probed yet
+		assertEquals(-1, Toolchain.probedCaps(ctx));
+		assertTrue(Api.isFastPathAvailable(ctx));
+		final SharedPreferences prefs = ctx.getSharedPreferences("DroidWallToolchain", 0);
+		prefs.edit().putInt("caps", Toolchain.CAP_OWNER | Toolchain.CAP_CONNMARK).commit();
+		assertTrue(Api.isFastPathAvailable(ctx));
+		// the nftables backend does not cache verdicts
+		prefs.edit().putInt("caps", Toolchain.CAP_CONNMARK | Toolchain.CAP_NFT | Toolchain.CAP_NFT_UID).commit();
+		assertFalse(Api.isFastPathAvailable(ctx));
+		prefs.edit().putInt("caps", Toolchain.CAP_OWNER).commit();
+		assertFalse(Api.isFastPathAvailable(ctx));
+	}
+}
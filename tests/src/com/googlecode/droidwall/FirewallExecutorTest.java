@@ -0,0 +1,170 @@
+/**
+ * Unit tests of the firewall request queue.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the merging and ordering of the firewall requests. The worker thread
+ * is kept busy while the requests are queued, and every apply or purge is
+ * cancelled before it is released, so the firewall is never touched.
+ */
+public class FirewallExecutorTest extends AndroidTestCase {
+	/** keeps the worker thread busy until released */
+	private CountDownLatch gate;
+	/** request blocking the worker thread */
+	private Future<Object> blocker;
+	/** apply and purge requests queued by the test */
+	private final ArrayList<Future<Boolean>> queued = new ArrayList<Future<Boolean>>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		blocker = submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				started.countDown();
+				gate.await();
+				return null;
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Future<Boolean> future : queued) {
+			future.cancel(false);
+		}
+		gate.countDown();
+		// wait until the worker thread is idle again
+		submit(new Callable<Object>() {
+			public Object call() {
+				return null;
+			}
+		}).get(5, TimeUnit.SECONDS);
+		super.tearDown();
+	}
+
+	private static <T> Future<T> submit(Callable<T> command) {
+		return FirewallExecutor.submit(command, null, null);
+	}
+
+	private Future<Boolean> apply(boolean showErrors) {
+		final Future<Boolean> future = FirewallExecutor.apply(getContext(), showErrors, null);
+		queued.add(future);
+		return future;
+	}
+
+	private Future<Boolean> purge(boolean showErrors) {
+		final Future<Boolean> future = FirewallExecutor.purge(getContext(), showErrors, null);
+		queued.add(future);
+		return future;
+	}
+
+	public void testSameRequestShared() {
+		final Future<Boolean> apply = apply(false);
+		assertSame(apply, apply(true));
+		assertSame(apply, apply(false));
+		assertFalse(apply.isCancelled());
+	}
+
+	public void testSupersededRequestCancelled() {
+		final Future<Boolean> apply = apply(false);
+		final Future<Boolean> purge = purge(false);
+		assertNotSame(apply, purge);
+		assertTrue(apply.isCancelled());
+		assertFalse(purge.isCancelled());
+		final Future<Boolean> again = apply(false);
+		assertTrue(purge.isCancelled());
+		assertFalse(again.isCancelled());
+	}
+
+	public void testOtherCommandsNotMerged() {
+		final Future<Boolean> apply = apply(false);
+		final Future<Object> other = submit(new Callable<Object>() {
+			public Object call() {
+				return null;
+			}
+		});
+		assertNotSame(apply, other);
+		// the pending apply is still shared across other commands
+		assertSame(apply, apply(false));
+	}
+
+	public void testOrder() throws Exception {
+		final ArrayList<Integer> order = new ArrayList<Integer>();
+		Future<Object> last = null;
+		for (int i = 0; i < 3; i++) {
+			final int n = i;
+			last = submit(new Callable<Object>() {
+				public Object call() {
+					synchronized (order) {
+						order.add(n);
+					}
+					return null;
+				}
+			});
+		}
+		gate.countDown();
+		last.get(5, TimeUnit.SECONDS);
+		assertTrue(blocker.isDone());
+		synchronized (order) {
+			assertEquals("[0, 1, 2]", order.toString());
+		}
+	}
+
+	public void testCancelledRequestNotShared() {
+		final Future<Boolean> apply = apply(false);
+		assertTrue(FirewallExecutor.cancel(apply));
+		final Future<Boolean> again = apply(false);
+		assertNotSame(apply, again);
+		assertFalse(again.isCancelled());
+	}
+
+	public void testSharedRequestNotCancelled() {
+		final Future<Boolean> apply = apply(false);
+		apply(true);
+		// another caller (E.g.: a broadcast) still needs it
+		assertFalse(FirewallExecutor.cancel(apply));
+		assertFalse(apply.isCancelled());
+	}
+
+	public void testOtherCommandInterrupted() throws Exception {
+		// read-only commands are stopped even while running
+		assertTrue(FirewallExecutor.cancel(blocker));
+		assertTrue(blocker.isCancelled());
+		final Future<Object> next = submit(new Callable<Object>() {
+			public Object call() {
+				return Boolean.TRUE;
+			}
+		});
+		assertEquals(Boolean.TRUE, next.get(5, TimeUnit.SECONDS));
+	}
+}
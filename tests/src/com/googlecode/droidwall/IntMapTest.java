@@ -0,0 +1,83 @@
+/**
+ * Unit tests of the primitive int map.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the int map against a HashMap, including the FREE marker key and the
+ * removals in the middle of probe sequences.
+ */
+public class IntMapTest extends TestCase {
+	public void testBasics() {
+		final IntMap<String> map = new IntMap<String>();
+		assertNull(map.put(10001, "a"));
+		assertEquals("a", map.put(10001, "b"));
+		assertEquals("b", map.get(10001));
+		assertTrue(map.containsKey(10001));
+		assertFalse(map.containsKey(10002));
+		assertNull(map.put(IntSet.FREE, "free"));
+		assertEquals("free", map.get(IntSet.FREE));
+		assertEquals(2, map.size());
+		final int keys[] = map.keys();
+		Arrays.sort(keys);
+		assertTrue(Arrays.equals(new int[] { IntSet.FREE, 10001 }, keys));
+		final String values[] = map.values(new String[map.size()]);
+		Arrays.sort(values);
+		assertTrue(Arrays.equals(new String[] { "b", "free" }, values));
+		assertEquals("free", map.remove(IntSet.FREE));
+		assertEquals("b", map.remove(10001));
+		assertNull(map.remove(10001));
+		assertEquals(0, map.size());
+	}
+
+	public void testNullValue() {
+		try {
+			new IntMap<String>().put(1, null);
+			fail("null values are not allowed");
+		} catch (NullPointerException ex) {
+		}
+	}
+
+	public void testRandomOperations() {
+		final Random random = new Random(2);
+		final IntMap<Integer> map = new IntMap<Integer>(1);
+		final HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			final int key = random.nextInt(500) - 250;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int key = -250; key < 250; key++) {
+			assertEquals(expected.get(key), map.get(key));
+		}
+		assertEquals(expected.size(), map.keys().length);
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Unit tests of the primitive int set.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the int set against a HashSet, including the FREE marker value and
+ * the removals in the middle of probe sequences.
+ */
+public class IntSetTest extends TestCase {
+	public void testBasics() {
+		final IntSet set = IntSet.of(new int[] { 10001, 10003, 10001 });
+		assertEquals(2, set.size());
+		assertTrue(set.contains(10001));
+		assertFalse(set.contains(10002));
+		assertFalse(set.add(10003));
+		assertTrue(set.remove(10003));
+		assertFalse(set.remove(10003));
+		assertTrue(Arrays.equals(new int[] { 10001 }, set.toSortedArray()));
+		assertTrue(new IntSet().isEmpty());
+	}
+
+	public void testFreeValue() {
+		final IntSet set = new IntSet();
+		assertFalse(set.contains(IntSet.FREE));
+		assertTrue(set.add(IntSet.FREE));
+		assertFalse(set.add(IntSet.FREE));
+		set.add(-1);
+		assertTrue(Arrays.equals(new int[] { IntSet.FREE, -1 }, set.toSortedArray()));
+		assertTrue(set.remove(IntSet.FREE));
+		assertEquals(1, set.size());
+	}
+
+	public void testRandomOperations() {
+		final Random random = new Random(1);
+		final IntSet set = new IntSet(2);
+		final HashSet<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			// a small range, so values collide and are removed often
+			final int value = 10000 + random.nextInt(500);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(value), set.remove(value));
+			} else {
+				assertEquals(expected.add(value), set.add(value));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+		for (int value = 10000; value < 10500; value++) {
+			assertEquals(expected.contains(value), set.contains(value));
+		}
+		final int sorted[] = set.toSortedArray();
+		assertEquals(expected.size(), sorted.length);
+		for (int i = 1; i < sorted.length; i++) {
+			assertTrue(sorted[i - 1] < sorted[i]);
+		}
+	}
+
+	public void testTableSize() {
+		assertEquals(8, IntSet.tableSize(0));
+		for (int expected = 1; expected < 1000; expected++) {
+			final int length = IntSet.tableSize(expected);
+			assertEquals(0, length & (length - 1));
+			assertTrue(expected * 4 <= length * 3);
+		}
+	}
+}
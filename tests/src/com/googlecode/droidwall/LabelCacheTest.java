@@ -0,0 +1,137 @@
+/**
+ * Unit tests of the application label cache.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tests the label cache eviction, its file format and the migration of the
+ * labels cached on the preferences.
+ */
+public class LabelCacheTest extends StoreTestCase {
+	public void testRoundTrip() throws Exception {
+		LabelCache labels = LabelCache.get(ctx);
+		labels.put("com.example.browser", "Browser");
+		labels.put("com.example.mail", "Mail é中");
+		labels.put("com.example.clock", "Clock");
+		labels.remove("com.example.clock");
+		labels.flush(ctx);
+		reload(LabelCache.class);
+		labels = LabelCache.get(ctx);
+		assertEquals("Browser", labels.get("com.example.browser"));
+		assertEquals("Mail é中", labels.get("com.example.mail"));
+		assertNull(labels.get("com.example.clock"));
+	}
+
+	public void testUnflushedChangesAreLost() throws Exception {
+		LabelCache.get(ctx).put("com.example.browser", "Browser");
+		reload(LabelCache.class);
+		assertNull(LabelCache.get(ctx).get("com.example.browser"));
+	}
+
+	public void testRetain() {
+		final LabelCache labels = LabelCache.get(ctx);
+		labels.put("com.example.browser", "Browser");
+		labels.put("com.example.mail", "Mail");
+		labels.retain(Arrays.asList("com.example.mail", "com.example.clock"));
+		assertNull(labels.get("com.example.browser"));
+		assertEquals("Mail", labels.get("com.example.mail"));
+	}
+
+	public void testEviction() throws Exception {
+		LabelCache labels = LabelCache.get(ctx);
+		for (int i = 0; i < 2048; i++) {
+			labels.put("package" + i, "Label " + i);
+		}
+		// used recently: the oldest one is evicted instead
+		assertEquals("Label 0", labels.get("package0"));
+		labels.put("package2048", "Label 2048");
+		assertEquals("Label 0", labels.get("package0"));
+		assertNull(labels.get("package1"));
+		assertEquals("Label 2048", labels.get("package2048"));
+		// the access order survives a reload
+		labels.flush(ctx);
+		reload(LabelCache.class);
+		labels = LabelCache.get(ctx);
+		labels.put("package2049", "Label 2049");
+		assertNull(labels.get("package2"));
+		assertEquals("Label 0", labels.get("package0"));
+	}
+
+	public void testLocaleChange() throws Exception {
+		LabelCache.get(ctx).put("com.example.browser", "Browser");
+		LabelCache.get(ctx).flush(ctx);
+		final Locale locale = Locale.getDefault();
+		try {
+			Locale.setDefault(locale.equals(Locale.FRENCH) ? Locale.GERMAN : Locale.FRENCH);
+			reload(LabelCache.class);
+			assertNull(LabelCache.get(ctx).get("com.example.browser"));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	public void testLocaleChangeWhileLoaded() throws Exception {
+		LabelCache.get(ctx).put("com.example.browser", "Browser");
+		final Locale locale = Locale.getDefault();
+		try {
+			Locale.setDefault(locale.equals(Locale.FRENCH) ? Locale.GERMAN : Locale.FRENCH);
+			assertNull(LabelCache.get(ctx).get("com.example.browser"));
+			LabelCache.get(ctx).put("com.example.mail", "Courrier");
+			LabelCache.get(ctx).flush(ctx);
+			reload(LabelCache.class);
+			assertEquals("Courrier", LabelCache.get(ctx).get("com.example.mail"));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	public void testCorruptFile() throws Exception {
+		LabelCache labels = LabelCache.get(ctx);
+		labels.put("com.example.browser", "Browser");
+		labels.put("com.example.mail", "Mail");
+		labels.flush(ctx);
+		truncate("labels.bin", file("labels.bin").length() - 2);
+		reload(LabelCache.class);
+		assertNull(LabelCache.get(ctx).get("com.example.browser"));
+		// a file of another version is ignored (and not migrated again)
+		labels = LabelCache.get(ctx);
+		labels.put("com.example.browser", "Browser");
+		labels.flush(ctx);
+		patch("labels.bin", 4, 99);
+		reload(LabelCache.class);
+		assertNull(LabelCache.get(ctx).get("com.example.browser"));
+	}
+
+	public void testMigration() {
+		ctx.getSharedPreferences(Api.PREFS_NAME, 0).edit().putString("cache.label.com.example.browser", "Browser")
+				.putString("cache.label.com.example.mail", "").putString("AllowedUids", "10001").commit();
+		final LabelCache labels = LabelCache.get(ctx);
+		assertEquals("Browser", labels.get("com.example.browser"));
+		assertNull(labels.get("com.example.mail"));
+		assertTrue(file("labels.bin").exists());
+		// only the labels are removed from the preferences
+		assertFalse(ctx.getSharedPreferences(Api.PREFS_NAME, 0).contains("cache.label.com.example.browser"));
+		assertTrue(ctx.getSharedPreferences(Api.PREFS_NAME, 0).contains("AllowedUids"));
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Unit tests of the blocked packet log parser.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the fields extracted from the kernel log lines, and the line splitting
+ * of streams and buffers.
+ */
+public class LogParserTest extends TestCase {
+	/** a typical LOG target line */
+	private static final String LINE = "<4>[ 1234.567] [DROIDWALL] IN= OUT=wlan0 SRC=192.168.1.2 DST=74.125.230.80 "
+			+ "LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=1 DF PROTO=TCP SPT=40000 DPT=443 WINDOW=5840 RES=0x00 SYN "
+			+ "URGP=0 UID=10045";
+
+	/** packets received from the parser, as "uid dst port proto itf" */
+	private final ArrayList<String> packets = new ArrayList<String>();
+	private final LogParser parser = new LogParser(new LogParser.Sink() {
+		public void onPacket(int uid, int dst, int port, int proto, int itf) {
+			packets.add(uid + " " + (dst == 0 ? "-" : LogParser.formatAddress(dst)) + " " + port + " " + proto + " "
+					+ itf);
+		}
+	});
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		packets.clear();
+	}
+
+	/**
+	 * Parse a single line
+	 *
+	 * @param line
+	 *            log line
+	 * @return parsed packet, or null if not a blocked packet
+	 */
+	private String parseLine(String line) {
+		final byte b[] = line.getBytes();
+		packets.clear();
+		final int count = parser.parseLine(b, 0, b.length);
+		assertEquals(packets.size(), count);
+		return (count == 0 ? null : packets.get(0));
+	}
+
+	public void testFields() {
+		assertEquals("10045 74.125.230.80 443 6 " + LogParser.ITF_WIFI, parseLine(LINE));
+		assertEquals("10001 8.8.8.8 53 17 " + LogParser.ITF_3G,
+				parseLine("[DROIDWALL] OUT=rmnet0 DST=8.8.8.8 PROTO=UDP DPT=53 UID=10001"));
+		assertEquals("10001 8.8.8.8 -1 1 " + LogParser.ITF_OTHER,
+				parseLine("[DROIDWALL] OUT=tun0 DST=8.8.8.8 PROTO=ICMP TYPE=8 UID=10001"));
+		assertEquals("10001 - -1 47 " + LogParser.ITF_OTHER, parseLine("[DROIDWALL] PROTO=47 UID=10001"));
+	}
+
+	public void testMissingOrInvalidFields() {
+		// no UID: sent by the kernel
+		assertEquals(Api.SPECIAL_UID_KERNEL + " - -1 -1 0", parseLine("[DROIDWALL] OUT= "));
+		assertEquals("10001 - -1 -1 0", parseLine("[DROIDWALL] DST=2001:db8::1 UID=10001"));
+		assertEquals("10001 - -1 -1 0", parseLine("[DROIDWALL] DST=1.2.3.256 UID=10001"));
+		assertEquals("10001 - -1 -1 0", parseLine("[DROIDWALL] DST=1.2.3 DPT=x UID=10001"));
+		assertEquals(Api.SPECIAL_UID_KERNEL + " - -1 -1 0", parseLine("[DROIDWALL] UID=1234567890123"));
+		assertNull(parseLine("<4>[ 1234.567] IN= OUT=wlan0 UID=10001"));
+		assertNull(parseLine(""));
+	}
+
+	public void testFormatAddress() {
+		assertEquals("0.0.0.0", LogParser.formatAddress(0));
+		assertEquals("255.255.255.255", LogParser.formatAddress(-1));
+		assertEquals("10.0.0.1", LogParser.formatAddress(0x0a000001));
+	}
+
+	public void testIndexOfMarker() {
+		final byte b[] = "xx [DROIDWALL] y".getBytes();
+		assertEquals(3, LogParser.indexOfMarker(b, 0, b.length));
+		assertEquals(-1, LogParser.indexOfMarker(b, 4, b.length));
+		assertEquals(-1, LogParser.indexOfMarker(b, 0, 10));
+	}
+
+	public void testKernelTime() {
+		assertEquals(1234567890L, kernelTime("<4>[ 1234.567890] [DROIDWALL] UID=10001"));
+		assertEquals(1234567000L, kernelTime("[1234.567] [DROIDWALL]"));
+		assertEquals(5000001L, kernelTime("[    5.0000019]"));
+		assertEquals(-1L, kernelTime("[DROIDWALL] UID=10001"));
+		assertEquals(-1L, kernelTime("<4>[DROIDWALL] UID=10001"));
+		assertEquals(-1L, kernelTime("[ 1234] [DROIDWALL]"));
+		assertEquals(-1L, kernelTime("[ 1234.567"));
+		assertEquals(-1L, kernelTime(""));
+	}
+
+	private static long kernelTime(String line) {
+		final byte b[] = line.getBytes();
+		return LogParser.kernelTime(b, 0, b.length);
+	}
+
+	public void testBuffer() {
+		final byte b[] = ("garbage\n" + LINE + "\n\n" + LINE.replace("UID=10045", "UID=10046")).getBytes();
+		assertEquals(2, parser.parse(b, 0, b.length));
+		assertEquals(2, packets.size());
+		assertTrue(packets.get(1).startsWith("10046 "));
+	}
+
+	public void testStream() throws IOException {
+		final StringBuilder log = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			log.append(LINE.replace("UID=10045", "UID=" + (10000 + i))).append('\n');
+		}
+		// the last line has no line terminator
+		log.append("[DROIDWALL] UID=9999");
+		assertEquals(501, parser.parse(new ByteArrayInputStream(log.toString().getBytes())));
+		assertEquals(501, packets.size());
+		assertTrue(packets.get(0).startsWith("10000 "));
+		assertTrue(packets.get(499).startsWith("10499 "));
+		assertTrue(packets.get(500).startsWith("9999 "));
+	}
+
+	public void testStreamSmallReads() throws IOException {
+		final byte b[] = (LINE + "\n" + LINE + "\n").getBytes();
+		// a stream returning a few bytes at a time (lines cross the reads)
+		final InputStream in = new ByteArrayInputStream(b) {
+			@Override
+			public synchronized int read(byte[] buf, int off, int len) {
+				return super.read(buf, off, Math.min(len, 7));
+			}
+		};
+		assertEquals(2, parser.parse(in));
+	}
+
+	public void testLongLinesAreSkipped() throws IOException {
+		final StringBuilder log = new StringBuilder(LINE).append('\n');
+		log.append("[DROIDWALL] UID=1 ");
+		for (int i = 0; i < 1000; i++) {
+			log.append("PAD=0123456789 ");
+		}
+		log.append('\n').append(LINE).append('\n');
+		assertEquals(2, parser.parse(new ByteArrayInputStream(log.toString().getBytes())));
+		assertEquals(2, packets.size());
+		assertTrue(packets.get(1).startsWith("10045 "));
+	}
+}
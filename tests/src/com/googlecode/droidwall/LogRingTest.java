@@ -0,0 +1,111 @@
+/**
+ * Unit tests of the persistent log ring.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Tests the log ring records, their persistence and the wraparound of the
+ * ring file.
+ */
+public class LogRingTest extends StoreTestCase {
+	/** Data capacity of the ring file */
+	private static final int CAPACITY = 256 * 1024;
+
+	/**
+	 * Append a record
+	 *
+	 * @param ring
+	 *            log ring
+	 * @param record
+	 *            record (without the line terminator)
+	 */
+	private static void append(LogRing ring, String record) {
+		final byte b[] = ("xx" + record + "yy").getBytes();
+		ring.append(b, 2, b.length - 4);
+	}
+
+	public void testAppendAndClear() throws Exception {
+		final LogRing ring = LogRing.get(ctx);
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.read().length);
+		append(ring, "[DROIDWALL] UID=1");
+		append(ring, "[DROIDWALL] UID=2");
+		assertFalse(ring.isEmpty());
+		assertEquals("[DROIDWALL] UID=1\n[DROIDWALL] UID=2\n", new String(ring.read()));
+		ring.clear();
+		assertTrue(ring.isEmpty());
+		append(ring, "[DROIDWALL] UID=3");
+		assertEquals("[DROIDWALL] UID=3\n", new String(ring.read()));
+	}
+
+	public void testPersistence() throws Exception {
+		append(LogRing.get(ctx), "[DROIDWALL] UID=1");
+		LogRing.get(ctx).clear();
+		append(LogRing.get(ctx), "[DROIDWALL] UID=2");
+		reload(LogRing.class);
+		assertEquals("[DROIDWALL] UID=2\n", new String(LogRing.get(ctx).read()));
+	}
+
+	public void testWraparound() throws Exception {
+		LogRing ring = LogRing.get(ctx);
+		// records of different lengths, so the ring never ends on a record
+		int count = 0;
+		int length = 0;
+		while (length < 3 * CAPACITY + 100) {
+			final String record = "[DROIDWALL] UID=" + count + " PAD=" + "x".substring(0, count % 2);
+			append(ring, record);
+			length += record.length() + 1;
+			count++;
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			final String records[] = new String(ring.read()).split("\n");
+			// only whole records, the newest ones, in order
+			assertTrue(records.length > 1000);
+			final int first = count - records.length;
+			for (int i = 0; i < records.length; i++) {
+				assertEquals("[DROIDWALL] UID=" + (first + i) + " PAD=" + "x".substring(0, (first + i) % 2),
+						records[i]);
+			}
+			assertTrue(ring.read().length <= CAPACITY);
+			reload(LogRing.class);
+			ring = LogRing.get(ctx);
+		}
+		// a record longer than the ring is dropped
+		final byte huge[] = new byte[CAPACITY];
+		ring.append(huge, 0, huge.length);
+		assertTrue(new String(ring.read()).endsWith(" PAD=" + "x".substring(0, (count - 1) % 2) + "\n"));
+	}
+
+	public void testDamagedHeader() throws Exception {
+		append(LogRing.get(ctx), "[DROIDWALL] UID=1");
+		reload(LogRing.class);
+		// "start" after "end"
+		patch("log.ring", 24, 0);
+		patch("log.ring", 28, 1000);
+		assertTrue(LogRing.get(ctx).isEmpty());
+		reload(LogRing.class);
+		// unknown format: not read
+		append(LogRing.get(ctx), "[DROIDWALL] UID=2");
+		reload(LogRing.class);
+		patch("log.ring", 0, 0);
+		assertTrue(LogRing.get(ctx).isEmpty());
+	}
+}
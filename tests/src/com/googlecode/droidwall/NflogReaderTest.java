@@ -0,0 +1,277 @@
+/**
+ * Unit tests of the NFLOG capture reader.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the conversion of NFLOG packets (pcap records holding the NFLOG TLV
+ * attributes) to log records, on both byte orders, and the handling of
+ * truncated or invalid captures.
+ */
+public class NflogReaderTest extends TestCase {
+	/** converted records */
+	private final ArrayList<String> records = new ArrayList<String>();
+	private final NflogReader reader = new NflogReader(new NflogReader.Receiver() {
+		public void onRecord(byte b[], int off, int len) {
+			records.add(new String(b, off, len));
+		}
+	});
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		records.clear();
+	}
+
+	/**
+	 * Builds a pcap capture
+	 */
+	private static final class Capture {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		/** true to write it on little-endian order */
+		private final boolean little;
+
+		Capture(boolean little, int linktype) {
+			this.little = little;
+			putInt(0xa1b2c3d4);
+			putShort(2);
+			putShort(4);
+			putInt(0);
+			putInt(0);
+			putInt(65535);
+			putInt(linktype);
+		}
+
+		void putShort(int value) {
+			if (little) {
+				out.write(value);
+				out.write(value >> 8);
+			} else {
+				out.write(value >> 8);
+				out.write(value);
+			}
+		}
+
+		void putInt(int value) {
+			if (little) {
+				putShort(value);
+				putShort(value >>> 16);
+			} else {
+				putShort(value >>> 16);
+				putShort(value);
+			}
+		}
+
+		/**
+		 * Add a packet record
+		 *
+		 * @param tlvs
+		 *            NFLOG attributes (see {@link #tlv(int, byte[])})
+		 */
+		void packet(byte[]... tlvs) {
+			final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+			// AF_INET, version 0, group 40 (network order)
+			packet.write(2);
+			packet.write(0);
+			packet.write(0);
+			packet.write(40);
+			for (byte tlv[] : tlvs) {
+				packet.write(tlv, 0, tlv.length);
+			}
+			record(packet.toByteArray());
+		}
+
+		/**
+		 * Add a raw packet record
+		 */
+		void record(byte data[]) {
+			putInt(1300000000);
+			putInt(0);
+			putInt(data.length);
+			putInt(data.length);
+			out.write(data, 0, data.length);
+		}
+
+		/**
+		 * Build an attribute (length and type on the capture order, value
+		 * padded to 4 bytes)
+		 */
+		byte[] tlv(int type, byte value[]) {
+			final byte tlv[] = new byte[(4 + value.length + 3) & ~3];
+			final int length = 4 + value.length;
+			tlv[little ? 0 : 1] = (byte) length;
+			tlv[little ? 1 : 0] = (byte) (length >> 8);
+			tlv[little ? 2 : 3] = (byte) type;
+			System.arraycopy(value, 0, tlv, 4, value.length);
+			return tlv;
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * @return 32 bits value on network order
+	 */
+	private static byte[] int32(int value) {
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	/**
+	 * Build an IPv4 packet (header plus the first 4 bytes of the transport
+	 * header)
+	 */
+	private static byte[] ipv4(int proto, int dst, int port) {
+		final byte ip[] = new byte[24];
+		ip[0] = 0x45;
+		ip[9] = (byte) proto;
+		System.arraycopy(int32(dst), 0, ip, 16, 4);
+		ip[22] = (byte) (port >> 8);
+		ip[23] = (byte) port;
+		return ip;
+	}
+
+	private void read(byte capture[]) throws IOException {
+		reader.read(new ByteArrayInputStream(capture));
+	}
+
+	public void testRecords() throws IOException {
+		for (boolean little : new boolean[] { false, true }) {
+			records.clear();
+			final Capture capture = new Capture(little, 239);
+			capture.packet(capture.tlv(9, ipv4(6, 0x01020304, 443)), capture.tlv(11, int32(10001)));
+			capture.packet(capture.tlv(11, int32(10002)), capture.tlv(9, ipv4(17, 0x08080808, 53)));
+			capture.packet(capture.tlv(9, ipv4(1, 0x08080404, 0)));
+			capture.packet(capture.tlv(9, ipv4(47, 0x0a000001, 0)), capture.tlv(11, int32(0)));
+			// an unknown interface index and an unknown attribute
+			capture.packet(capture.tlv(5, int32(99999)), capture.tlv(10, new byte[] { 1, 2, 3 }),
+					capture.tlv(11, int32(10003)));
+			read(capture.toByteArray());
+			assertEquals(5, records.size());
+			assertEquals("[DROIDWALL] DST=1.2.3.4 PROTO=TCP DPT=443 UID=10001", records.get(0));
+			assertEquals("[DROIDWALL] DST=8.8.8.8 PROTO=UDP DPT=53 UID=10002", records.get(1));
+			assertEquals("[DROIDWALL] DST=8.8.4.4 PROTO=ICMP", records.get(2));
+			assertEquals("[DROIDWALL] DST=10.0.0.1 PROTO=47 UID=0", records.get(3));
+			assertEquals("[DROIDWALL] UID=10003", records.get(4));
+		}
+	}
+
+	public void testRecordsAreParsed() throws IOException {
+		final Capture capture = new Capture(true, 239);
+		capture.packet(capture.tlv(9, ipv4(6, 0x01020304, 443)), capture.tlv(11, int32(10001)));
+		read(capture.toByteArray());
+		final ArrayList<String> packets = new ArrayList<String>();
+		final byte b[] = records.get(0).getBytes();
+		new LogParser(new LogParser.Sink() {
+			public void onPacket(int uid, int dst, int port, int proto, int itf) {
+				packets.add(uid + " " + LogParser.formatAddress(dst) + " " + port + " " + proto);
+			}
+		}).parseLine(b, 0, b.length);
+		assertEquals("10001 1.2.3.4 443 6", packets.get(0));
+	}
+
+	public void testInvalidPayloads() throws IOException {
+		final Capture capture = new Capture(false, 239);
+		// IPv6, and IPv4 too short for the ports
+		final byte ipv6[] = new byte[40];
+		ipv6[0] = 0x60;
+		capture.packet(capture.tlv(9, ipv6), capture.tlv(11, int32(10001)));
+		final byte shortIp[] = new byte[20];
+		System.arraycopy(ipv4(6, 0x01020304, 443), 0, shortIp, 0, 20);
+		capture.packet(capture.tlv(9, shortIp));
+		// an attribute longer than the packet: the rest is ignored
+		final byte truncated[] = capture.tlv(11, int32(10002));
+		truncated[1] = 100;
+		capture.packet(truncated);
+		// a packet without attributes
+		capture.record(new byte[] { 2, 0, 0, 40 });
+		read(capture.toByteArray());
+		assertEquals(4, records.size());
+		assertEquals("[DROIDWALL] UID=10001", records.get(0));
+		assertEquals("[DROIDWALL] DST=1.2.3.4 PROTO=TCP", records.get(1));
+		assertEquals("[DROIDWALL]", records.get(2));
+		assertEquals("[DROIDWALL]", records.get(3));
+	}
+
+	public void testLargePacket() throws IOException {
+		final Capture capture = new Capture(true, 239);
+		// larger than the packet buffer: only the first part is converted
+		capture.packet(capture.tlv(11, int32(10001)), capture.tlv(9, new byte[5000]));
+		capture.packet(capture.tlv(11, int32(10002)));
+		read(capture.toByteArray());
+		assertEquals(2, records.size());
+		assertEquals("[DROIDWALL] UID=10001", records.get(0));
+		assertEquals("[DROIDWALL] UID=10002", records.get(1));
+	}
+
+	public void testTruncatedStream() throws IOException {
+		final Capture capture = new Capture(false, 239);
+		capture.packet(capture.tlv(11, int32(10001)));
+		capture.packet(capture.tlv(11, int32(10002)));
+		final byte b[] = capture.toByteArray();
+		final byte cut[] = new byte[b.length - 3];
+		System.arraycopy(b, 0, cut, 0, cut.length);
+		// the packet cut by the end of the stream is dropped
+		read(cut);
+		assertEquals(1, records.size());
+		assertEquals("[DROIDWALL] UID=10001", records.get(0));
+	}
+
+	public void testInvalidCaptures() {
+		// not a NFLOG capture (Ethernet)
+		try {
+			read(new Capture(true, 1).toByteArray());
+			fail("Ethernet capture accepted");
+		} catch (IOException ex) {
+		}
+		// not a pcap stream
+		try {
+			read(new byte[24]);
+			fail("invalid magic number accepted");
+		} catch (IOException ex) {
+		}
+		// header cut
+		try {
+			read(new byte[10]);
+			fail("truncated header accepted");
+		} catch (IOException ex) {
+		}
+		// invalid record length
+		final Capture capture = new Capture(false, 239);
+		capture.putInt(0);
+		capture.putInt(0);
+		capture.putInt(-1);
+		capture.putInt(0);
+		try {
+			read(capture.toByteArray());
+			fail("invalid record length accepted");
+		} catch (IOException ex) {
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Unit tests of the nftables rule set scripts.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the nftables table script, the set delta script and the structure
+ * signature that decides between them.
+ */
+public class NftRuleSetTest extends TestCase {
+	private static final String WIFI[] = { "wlan+", "eth+" };
+	private static final String MOBILE[] = { "rmnet+" };
+
+	/**
+	 * Build a rule set with both interface classes
+	 *
+	 * @param whitelist
+	 *            true if working on white-list mode
+	 * @param wifi
+	 *            UIDs selected for wifi
+	 * @param mobile
+	 *            UIDs selected for 2G/3G
+	 * @return rule set
+	 */
+	private static NftRuleSet rules(boolean whitelist, int wifi[], int mobile[]) {
+		final NftRuleSet rules = new NftRuleSet(whitelist, false, -1);
+		rules.add("mobile", MOBILE, mobile, false, false);
+		rules.add("wifi", WIFI, wifi, false, false);
+		return rules;
+	}
+
+	/**
+	 * @param script
+	 *            listing script
+	 * @return name of the signature chain checked by the script
+	 */
+	private static String signature(String script) {
+		final int start = script.indexOf("sig_");
+		return script.substring(start, script.indexOf(' ', start));
+	}
+
+	public void testScript() {
+		final String script = rules(true, new int[] { 10001, 10002 }, new int[0]).toScript();
+		// the iptables chains are unhooked, and the table replaced at once
+		assertTrue(script.startsWith("while $IPTABLES -D OUTPUT -j droidwall "));
+		assertTrue(script.contains("$NFT -f - <<'DROIDWALL_EOF' || exit\n" + "table inet droidwall\n"
+				+ "delete table inet droidwall\n" + "table inet droidwall {\n"));
+		assertTrue(script.contains("\tset uids_wifi {\n\t\ttype uid\n\t\telements = { 10001, 10002 }\n\t}\n"));
+		assertTrue(script.contains("\tset uids_mobile {\n\t\ttype uid\n\t}\n"));
+		// white-list: selected UIDs return, everything else is blocked
+		assertTrue(script.contains("\tchain wifi {\n\t\tmeta skuid @uids_wifi return\n\t\tjump block\n\t}\n"));
+		assertTrue(script.contains("\t\toifname \"wlan*\" jump wifi\n\t\toifname \"eth*\" jump wifi\n"));
+		assertTrue(script.contains("\t\toifname \"rmnet*\" jump mobile\n"));
+		assertTrue(script.contains("\tchain " + signature(rules(true, new int[0], new int[0]).toListScript())
+				+ " {\n\t}\n"));
+		assertTrue(script.endsWith("}\nDROIDWALL_EOF\n"));
+	}
+
+	public void testBlacklist() {
+		final NftRuleSet rules = new NftRuleSet(false, true, -1);
+		rules.add("mobile", MOBILE, new int[0], true, false);
+		rules.add("wifi", WIFI, new int[] { 10001 }, false, true);
+		final String script = rules.toScript();
+		assertTrue(script.contains("\tchain block {\n\t\tlog prefix \"[DROIDWALL] \" flags skuid\n\t\treject\n"));
+		// any application selected: the whole interface is blocked
+		assertTrue(script.contains("\tchain mobile {\n\t\tjump block\n\t}\n"));
+		// the kernel (packets without an owner) is blocked too
+		assertTrue(script.contains("\tchain wifi {\n\t\tmeta skuid @uids_wifi jump block\n"
+				+ "\t\tmeta skuid 0-999999999 return\n\t\tjump block\n\t}\n"));
+	}
+
+	public void testListScript() {
+		final String script = rules(true, new int[] { 10001 }, new int[] { 10002, 10003 }).toListScript();
+		// a different structure makes the script exit before listing the sets
+		assertTrue(script.startsWith("$NFT list chain inet droidwall sig_"));
+		assertTrue(script.contains(" >/dev/null 2>/dev/null || exit " + NftRuleSet.EXIT_STRUCTURE_CHANGED + "\n"));
+		assertTrue(script.contains("$NFT -nnn list set inet droidwall uids_mobile || exit\n"
+				+ "$NFT -nnn list set inet droidwall uids_wifi || exit\n"));
+	}
+
+	public void testParseSets() {
+		final Map<String, int[]> sets = NftRuleSet.parseSets("table inet droidwall {\n" + "\tset uids_mobile {\n"
+				+ "\t\ttype uid\n" + "\t}\n" + "}\n" + "table inet droidwall {\n" + "\tset uids_wifi {\n"
+				+ "\t\ttype uid\n" + "\t\telements = { 10005, 10001,\n" + "\t\t\t     10003 }\n" + "\t}\n" + "}\n");
+		assertEquals(0, sets.get("uids_mobile").length);
+		assertTrue(Arrays.equals(new int[] { 10001, 10003, 10005 }, sets.get("uids_wifi")));
+		// user names instead of UIDs
+		assertNull(NftRuleSet.parseSets("table inet droidwall {\n\tset uids_wifi {\n\t\ttype uid\n"
+				+ "\t\telements = { u0_a1 }\n\t}\n}\n"));
+		// cut output
+		assertNull(NftRuleSet.parseSets("table inet droidwall {\n\tset uids_wifi {\n\t\ttype uid\n"
+				+ "\t\telements = { 10001,\n"));
+	}
+
+	public void testDeltaScript() {
+		final NftRuleSet rules = rules(true, new int[] { 10001, 10004 }, new int[] { 10002 });
+		final Map<String, int[]> installed = new HashMap<String, int[]>();
+		installed.put("uids_mobile", new int[] { 10002 });
+		installed.put("uids_wifi", new int[] { 10001, 10002, 10003 });
+		// only the changed elements, in a single transaction
+		assertEquals("$NFT -f - <<'DROIDWALL_EOF' || exit\n"
+				+ "delete element inet droidwall uids_wifi { 10002, 10003 }\n"
+				+ "add element inet droidwall uids_wifi { 10004 }\n" + "DROIDWALL_EOF\n", rules.toDeltaScript(installed));
+		installed.put("uids_wifi", new int[] { 10001, 10004 });
+		assertEquals("", rules.toDeltaScript(installed));
+		// a missing set requires a full replace
+		installed.remove("uids_mobile");
+		assertNull(rules.toDeltaScript(installed));
+	}
+
+	public void testSignature() {
+		final String sig = signature(rules(true, new int[] { 10001 }, new int[0]).toListScript());
+		// the selected UIDs are not part of the structure
+		assertEquals(sig, signature(rules(true, new int[] { 10002, 10003 }, new int[] { 10004 }).toListScript()));
+		// but the mode is
+		assertFalse(sig.equals(signature(rules(false, new int[] { 10001 }, new int[0]).toListScript())));
+	}
+
+	public void testSize() {
+		assertEquals(3, rules(true, new int[] { 10001 }, new int[] { 10002, 10003 }).size());
+		assertEquals(0, rules(false, new int[0], new int[0]).size());
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Unit tests of the root shell output parsing.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how the output of the root shell is split on the sentinel marker.
+ */
+public class RootShellTest extends TestCase {
+	/** script output, as received from the shell */
+	private BufferedReader shell;
+	/** output collected from the last script */
+	private StringBuilder res;
+
+	/**
+	 * Feed the shell output
+	 *
+	 * @param output
+	 *            output of one or more scripts (each followed by the empty
+	 *            line and the marker)
+	 */
+	private void output(String output) {
+		shell = new BufferedReader(new StringReader(output));
+	}
+
+	/**
+	 * Read the result of the next script
+	 *
+	 * @return script exit code
+	 */
+	private int next() throws IOException {
+		res = new StringBuilder();
+		return RootShell.readResult(shell, new Api.ScriptOutput(res, null, -1));
+	}
+
+	/**
+	 * @param code
+	 *            exit code
+	 * @return end of a script output (empty line plus marker)
+	 */
+	private static String end(String code) {
+		return "\n" + RootShell.MARKER + " " + code + "\n";
+	}
+
+	public void testExitCode() throws IOException {
+		output("line 1\nline 2\n" + end("3"));
+		assertEquals(3, next());
+		assertEquals("line 1\nline 2\n", res.toString());
+	}
+
+	public void testNoOutput() throws IOException {
+		output(end("0"));
+		assertEquals(0, next());
+		assertEquals("", res.toString());
+	}
+
+	public void testLastLineWithoutNewline() throws IOException {
+		// the empty echo terminates the last line, and is not reported
+		output("partial" + end("1"));
+		assertEquals(1, next());
+		assertEquals("partial\n", res.toString());
+		// empty lines written by the script itself are kept
+		output("a\n\n" + end("0"));
+		assertEquals(0, next());
+		assertEquals("a\n\n", res.toString());
+	}
+
+	public void testConsecutiveScripts() throws IOException {
+		output("first\n" + end("0") + "second\n" + end("255"));
+		assertEquals(0, next());
+		assertEquals("first\n", res.toString());
+		assertEquals(255, next());
+		assertEquals("second\n", res.toString());
+	}
+
+	public void testMarkerOnOutput() throws IOException {
+		// another marker (E.g.: from an older shell) is not a result
+		output("__DROIDWALL_0__ 1\n" + end("2"));
+		assertEquals(2, next());
+		assertEquals("__DROIDWALL_0__ 1\n", res.toString());
+		output(end("garbage"));
+		assertEquals(-1, next());
+	}
+
+	public void testShellDied() {
+		output("line 1\nline 2");
+		try {
+			next();
+			fail("the shell has died");
+		} catch (IOException ex) {
+		}
+		assertEquals("line 1\n", res.toString());
+	}
+}
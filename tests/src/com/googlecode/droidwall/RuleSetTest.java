@@ -0,0 +1,213 @@
+/**
+ * Unit tests of the compiled iptables rule sets.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the rule set scripts, the parser of the installed rules and the delta
+ * between them.
+ */
+public class RuleSetTest extends TestCase {
+	/** "iptables -S" listing of the rules built by {@link #ruleSet(int...)} */
+	private static final String LISTING = "-P INPUT ACCEPT\n" + "-P OUTPUT ACCEPT\n" + "-N droidwall\n"
+			+ "-N droidwall-reject\n" + "-A OUTPUT -j droidwall\n"
+			+ "-A droidwall -m owner --uid-owner 10001 -j RETURN\n"
+			+ "-A droidwall -p udp -m udp --dport 53 -j RETURN\n"
+			+ "-A droidwall -j droidwall-reject\n"
+			+ "-A droidwall-reject -j REJECT --reject-with icmp-port-unreachable\n";
+
+	/**
+	 * Build a small white-list rule set
+	 *
+	 * @param uids
+	 *            allowed UIDs
+	 * @return rule set
+	 */
+	private static RuleSet ruleSet(int... uids) {
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		rules.chain("droidwall-reject");
+		rules.append("droidwall", "-p udp --dport 53 -j RETURN");
+		for (int uid : uids) {
+			rules.appendUid("droidwall", "-m owner --uid-owner " + uid + " -j RETURN");
+		}
+		rules.append("droidwall", "-j droidwall-reject");
+		rules.append("droidwall-reject", "-j REJECT");
+		return rules;
+	}
+
+	public void testParseInstalled() {
+		final HashMap<String, ArrayList<String>> installed = RuleSet.parseInstalled(LISTING);
+		assertEquals(1, installed.get("OUTPUT").size());
+		assertEquals("-j droidwall", installed.get("OUTPUT").get(0));
+		assertEquals(0, installed.get("INPUT").size());
+		assertEquals(3, installed.get("droidwall").size());
+		assertEquals("-m owner --uid-owner 10001 -j RETURN", installed.get("droidwall").get(0));
+		assertEquals("-j REJECT --reject-with icmp-port-unreachable", installed.get("droidwall-reject").get(0));
+		assertNull(installed.get("droidwall-3g"));
+	}
+
+	public void testParseInstalledIgnoresNoise() {
+		final HashMap<String, ArrayList<String>> installed = RuleSet.parseInstalled("iptables v1.4.11\n"
+				+ "\n" + "  -N droidwall  \n" + "-A droidwall\n" + "Warning: something\n" + "-A droidwall -j RETURN");
+		assertEquals(1, installed.size());
+		assertEquals(1, installed.get("droidwall").size());
+		assertEquals("-j RETURN", installed.get("droidwall").get(0));
+		assertEquals(0, RuleSet.parseInstalled("").size());
+	}
+
+	public void testSize() {
+		assertEquals(3, ruleSet().size());
+		assertEquals(5, ruleSet(10001, 10002).size());
+	}
+
+	public void testRestoreScript() {
+		final String script = ruleSet(10001).toRestoreScript();
+		assertTrue(script.contains("$IPTABLES_RESTORE --noflush <<'DROIDWALL_EOF' || exit\n*filter\n"));
+		assertTrue(script.contains(":droidwall - [0:0]\n:droidwall-reject - [0:0]\n"));
+		// per-UID rules come first, the others keep their order
+		assertTrue(script.contains("-A droidwall -m owner --uid-owner 10001 -j RETURN\n"
+				+ "-A droidwall -p udp --dport 53 -j RETURN\n" + "-A droidwall -j droidwall-reject\n"));
+		assertTrue(script.contains("COMMIT\nDROIDWALL_EOF\n"));
+		// the OUTPUT jump is only added after the chains exist
+		assertTrue(script.indexOf("COMMIT") < script.indexOf("$IPTABLES -A OUTPUT -j droidwall"));
+		// staging chains left by an interrupted legacy apply are removed
+		assertTrue(script.indexOf("droidwall-new") < script.indexOf("$IPTABLES_RESTORE"));
+	}
+
+	public void testLegacyScript() {
+		final RuleSet rules = ruleSet(10001);
+		rules.appendOptional("droidwall-reject", "-j LOG --log-prefix \"[DROIDWALL] \"");
+		final String script = rules.toScript();
+		// rules are built on the staging chains, which reference each other
+		assertTrue(script.contains("$IPTABLES -A droidwall-new -j droidwall-reject-new || exit\n"));
+		assertTrue(script.contains("$IPTABLES -A droidwall-reject-new -j LOG --log-prefix \"[DROIDWALL] \"\n"));
+		assertTrue(script.contains("$IPTABLES -E droidwall-new droidwall || exit"));
+		assertTrue(script.contains("$IPTABLES -E droidwall-reject-new droidwall-reject || exit"));
+		// the OUTPUT jump is switched before the old chains are dropped
+		assertTrue(script.indexOf("-R OUTPUT $N -j droidwall-new") < script.lastIndexOf("$IPTABLES -X droidwall "));
+	}
+
+	public void testStagingCleanup() {
+		final String script = ruleSet(10001).toScript();
+		// a swap whose OUTPUT jump was already switched is finished first
+		final int finish = script.indexOf("if $IPTABLES -L OUTPUT -n | $GREP -q \"^droidwall-new \" ; then\n");
+		assertTrue(finish != -1);
+		assertTrue(script.indexOf("\t$IPTABLES -E droidwall-new droidwall >/dev/null 2>/dev/null\n") > finish);
+		// then any staging chain left behind is unhooked and deleted
+		final int unhook = script.indexOf("while $IPTABLES -D OUTPUT -j droidwall-new >/dev/null 2>/dev/null");
+		assertTrue(unhook > finish);
+		assertTrue(script.indexOf("\n$IPTABLES -X droidwall-reject-new >/dev/null 2>/dev/null\n") > unhook);
+		// before the staging chains are built again
+		assertTrue(unhook < script.indexOf("$IPTABLES -N droidwall-new"));
+		assertTrue(unhook < script.indexOf("$IPTABLES -A droidwall-new "));
+	}
+
+	public void testDeltaUnchanged() {
+		// the way iptables prints the rules back is normalized
+		assertEquals("", ruleSet(10001).toDeltaScript(RuleSet.parseInstalled(LISTING)));
+	}
+
+	public void testDeltaUids() {
+		final String delta = ruleSet(10002, 10003).toDeltaScript(RuleSet.parseInstalled(LISTING));
+		assertEquals("$IPTABLES -D droidwall -m owner --uid-owner 10001 -j RETURN || exit\n"
+				+ "$IPTABLES -I droidwall 1 -m owner --uid-owner 10002 -j RETURN || exit\n"
+				+ "$IPTABLES -I droidwall 1 -m owner --uid-owner 10003 -j RETURN || exit\n", delta);
+		assertEquals("$IPTABLES -D droidwall -m owner --uid-owner 10001 -j RETURN || exit\n", ruleSet()
+				.toDeltaScript(RuleSet.parseInstalled(LISTING)));
+	}
+
+	public void testDeltaUidRange() {
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		rules.appendUid("droidwall", "-m owner --uid-owner 10001-10003 -j RETURN");
+		rules.append("droidwall", "-j REJECT");
+		assertEquals("", rules.toDeltaScript(RuleSet.parseInstalled("-A OUTPUT -j droidwall\n"
+				+ "-A droidwall -m owner --uid-owner 10001:10003 -j RETURN\n" + "-A droidwall -j REJECT\n")));
+	}
+
+	public void testDeltaFullApply() {
+		// fixed rules changed (E.g.: logging enabled)
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		rules.chain("droidwall-reject");
+		rules.append("droidwall", "-p udp --dport 53 -j RETURN");
+		rules.appendUid("droidwall", "-m owner --uid-owner 10001 -j RETURN");
+		rules.append("droidwall", "-j droidwall-reject");
+		rules.appendOptional("droidwall-reject", "-j LOG --log-prefix \"[DROIDWALL] \" --log-uid");
+		rules.append("droidwall-reject", "-j REJECT");
+		assertNull(rules.toDeltaScript(RuleSet.parseInstalled(LISTING)));
+		assertNull(ruleSet(10001).toDeltaScript(RuleSet.parseInstalled(LISTING.replace("-j REJECT", "-j DROP"))));
+		// not installed, or a chain is missing
+		assertNull(ruleSet(10001).toDeltaScript(
+				RuleSet.parseInstalled(LISTING.replace("-A OUTPUT -j droidwall\n", ""))));
+		final RuleSet extra = ruleSet(10001);
+		extra.chain("droidwall-3g");
+		assertNull(extra.toDeltaScript(RuleSet.parseInstalled(LISTING)));
+		// staging chains left by an interrupted apply
+		assertNull(ruleSet(10001).toDeltaScript(RuleSet.parseInstalled(LISTING + "-A OUTPUT -j droidwall-new\n")));
+	}
+
+	public void testDeltaReplaceable() {
+		final String listing = "-A OUTPUT -j droidwall\n" + "-A droidwall -m owner --uid-owner 10001 -j RETURN\n"
+				+ "-A droidwall -m connmark --mark 0x1000/0xff00 -j RETURN\n" + "-A droidwall -j droidwall-reject\n"
+				+ "-A droidwall-reject -j CONNMARK --set-xmark 0x1100/0xff00\n" + "-A droidwall-reject -j REJECT\n";
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		rules.chain("droidwall-reject");
+		rules.appendUid("droidwall", "-m owner --uid-owner 10001 -j RETURN");
+		rules.appendUid("droidwall", "-m owner --uid-owner 10002 -j RETURN");
+		rules.appendReplaceable("droidwall", "-m connmark --mark 0x2000/0xff00 -j RETURN");
+		rules.append("droidwall", "-j droidwall-reject");
+		rules.appendReplaceable("droidwall-reject", "-j CONNMARK --set-mark 0x2100/0xff00");
+		rules.append("droidwall-reject", "-j REJECT");
+		final String delta = rules.toDeltaScript(RuleSet.parseInstalled(listing));
+		// the marks are replaced after the per-UID changes, at their new position
+		assertEquals("$IPTABLES -I droidwall 1 -m owner --uid-owner 10002 -j RETURN || exit\n"
+				+ "$IPTABLES -R droidwall 3 -m connmark --mark 0x2000/0xff00 -j RETURN || exit\n"
+				+ "$IPTABLES -R droidwall-reject 1 -j CONNMARK --set-mark 0x2100/0xff00 || exit\n", delta);
+		// unchanged marks (--set-mark is printed back as --set-xmark)
+		final RuleSet same = new RuleSet("droidwall");
+		same.chain("droidwall");
+		same.chain("droidwall-reject");
+		same.appendUid("droidwall", "-m owner --uid-owner 10001 -j RETURN");
+		same.appendReplaceable("droidwall", "-m connmark --mark 0x1000/0xff00 -j RETURN");
+		same.append("droidwall", "-j droidwall-reject");
+		same.appendReplaceable("droidwall-reject", "-j CONNMARK --set-mark 0x1100/0xff00");
+		same.append("droidwall-reject", "-j REJECT");
+		assertEquals("", same.toDeltaScript(RuleSet.parseInstalled(listing)));
+		// only the hexadecimal values may differ
+		final RuleSet other = new RuleSet("droidwall");
+		other.chain("droidwall");
+		other.chain("droidwall-reject");
+		other.appendUid("droidwall", "-m owner --uid-owner 10001 -j RETURN");
+		other.appendReplaceable("droidwall", "-m connmark --mark 0x1000/0xff00 -j ACCEPT");
+		other.append("droidwall", "-j droidwall-reject");
+		other.appendReplaceable("droidwall-reject", "-j CONNMARK --set-mark 0x1100/0xff00");
+		other.append("droidwall-reject", "-j REJECT");
+		assertNull(other.toDeltaScript(RuleSet.parseInstalled(listing)));
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Unit tests of the saved rules store.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Tests the saved rules, their file format and the migration of the rules
+ * saved on the preferences.
+ */
+public class RuleStoreTest extends StoreTestCase {
+	public void testSelection() {
+		final RuleStore store = RuleStore.get(ctx);
+		store.setSelection(ctx, new int[] { 10005, 10001, 10005, 0 }, new int[] {});
+		assertTrue(Arrays.equals(new int[] { 0, 10001, 10005 }, store.uidsWifi()));
+		assertEquals(0, store.uids3g().length);
+		assertTrue(store.isSelectedWifi(10001));
+		assertFalse(store.isSelectedWifi(10002));
+		assertFalse(store.isSelected3g(10001));
+		assertTrue(store.removeUid(ctx, 10001));
+		assertFalse(store.removeUid(ctx, 10001));
+		assertTrue(Arrays.equals(new int[] { 0, 10005 }, store.uidsWifi()));
+	}
+
+	public void testGeneration() {
+		final RuleStore store = RuleStore.get(ctx);
+		final int generation = store.generation();
+		store.setSelection(ctx, new int[] { 10001 }, new int[] { 10002 });
+		assertEquals(generation + 1, store.generation());
+		// nothing changed: no new generation
+		store.setSelection(ctx, new int[] { 10001, 10001 }, new int[] { 10002 });
+		store.setWhitelist(ctx, store.isWhitelist());
+		assertEquals(generation + 1, store.generation());
+		store.setLogEnabled(ctx, true);
+		assertEquals(generation + 2, store.generation());
+	}
+
+	public void testRoundTrip() throws Exception {
+		RuleStore store = RuleStore.get(ctx);
+		store.setSelection(ctx, new int[] { 10001, 10003 }, new int[] { 10002 });
+		store.setWhitelist(ctx, false);
+		store.setLogEnabled(ctx, true);
+		store.setFastPathEnabled(ctx, true);
+		store.setFastPathEnabled(ctx, false);
+		final int generation = store.generation();
+		reload(RuleStore.class);
+		store = RuleStore.get(ctx);
+		assertTrue(Arrays.equals(new int[] { 10001, 10003 }, store.uidsWifi()));
+		assertTrue(Arrays.equals(new int[] { 10002 }, store.uids3g()));
+		assertFalse(store.isWhitelist());
+		assertTrue(store.isLogEnabled());
+		assertFalse(store.isFastPathEnabled());
+		assertEquals(generation, store.generation());
+	}
+
+	public void testCorruptFile() throws Exception {
+		RuleStore store = RuleStore.get(ctx);
+		store.setSelection(ctx, new int[] { 10001 }, new int[] {});
+		store.setSelection(ctx, new int[] { 10001, 10003 }, new int[] { 10002 });
+		final int generation = store.generation();
+		// header (16 bytes), then the wifi UIDs: cut the 3G ones
+		truncate("rules.bin", 16 + 4 + 8 + 2);
+		reload(RuleStore.class);
+		store = RuleStore.get(ctx);
+		// the previous rules are restored from the backup
+		assertTrue(Arrays.equals(new int[] { 10001 }, store.uidsWifi()));
+		assertEquals(0, store.uids3g().length);
+		assertTrue(store.generation() > generation);
+		assertTrue(file("rules.bin.bad").exists());
+		assertEquals(RuleStore.PROBLEM_RESTORED, store.takeLoadProblem(ctx));
+		assertEquals(0, store.takeLoadProblem(ctx));
+		// the restored rules were saved again
+		reload(RuleStore.class);
+		assertTrue(Arrays.equals(new int[] { 10001 }, RuleStore.get(ctx).uidsWifi()));
+		assertEquals(0, RuleStore.get(ctx).takeLoadProblem(ctx));
+	}
+
+	public void testLostFile() throws Exception {
+		RuleStore.get(ctx).setSelection(ctx, new int[] { 10001 }, new int[] {});
+		file("rules.bin.bak").delete();
+		// invalid UID count
+		patch("rules.bin", 16, -1);
+		reload(RuleStore.class);
+		assertEquals(0, RuleStore.get(ctx).uidsWifi().length);
+		assertEquals(RuleStore.PROBLEM_LOST, RuleStore.get(ctx).takeLoadProblem(ctx));
+		// unknown format
+		RuleStore.get(ctx).setSelection(ctx, new int[] { 10001 }, new int[] {});
+		file("rules.bin.bak").delete();
+		patch("rules.bin", 0, 0);
+		reload(RuleStore.class);
+		assertEquals(0, RuleStore.get(ctx).uidsWifi().length);
+		assertEquals(RuleStore.PROBLEM_LOST, RuleStore.get(ctx).takeLoadProblem(ctx));
+	}
+
+	public void testInterruptedSave() throws Exception {
+		RuleStore.get(ctx).setSelection(ctx, new int[] { 10001 }, new int[] {});
+		RuleStore.get(ctx).setSelection(ctx, new int[] { 10002 }, new int[] {});
+		// the new file was not renamed yet
+		file("rules.bin").delete();
+		reload(RuleStore.class);
+		assertTrue(Arrays.equals(new int[] { 10001 }, RuleStore.get(ctx).uidsWifi()));
+		assertEquals(0, RuleStore.get(ctx).takeLoadProblem(ctx));
+	}
+
+	public void testMigration() {
+		ctx.getSharedPreferences(Api.PREFS_NAME, 0).edit().putString(Api.PREF_WIFI_UIDS, "10003|10001|bad|10001")
+				.putString(Api.PREF_3G_UIDS, "").putString(Api.PREF_MODE, Api.MODE_BLACKLIST)
+				.putBoolean(Api.PREF_LOGENABLED, true).commit();
+		final RuleStore store = RuleStore.get(ctx);
+		assertTrue(Arrays.equals(new int[] { 10001, 10003 }, store.uidsWifi()));
+		assertEquals(0, store.uids3g().length);
+		assertFalse(store.isWhitelist());
+		assertTrue(store.isLogEnabled());
+		assertFalse(store.isFastPathEnabled());
+		assertTrue(file("rules.bin").exists());
+		assertFalse(ctx.getSharedPreferences(Api.PREFS_NAME, 0).contains(Api.PREF_WIFI_UIDS));
+		assertFalse(ctx.getSharedPreferences(Api.PREFS_NAME, 0).contains(Api.PREF_MODE));
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Unit tests of the selection edit buffer.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Tests that selection edits are only saved on a commit, and only for the UIDs
+ * on the application table.
+ */
+public class SelectionEditTest extends StoreTestCase {
+	public void testEdit() {
+		RuleStore.get(ctx).setSelection(ctx, new int[] { 10001 }, new int[] { 10002 });
+		final SelectionEdit edit = new SelectionEdit(RuleStore.get(ctx));
+		assertTrue(edit.isSelectedWifi(10001));
+		assertFalse(edit.isSelected3g(10001));
+		assertTrue(edit.isSelected3g(10002));
+		edit.setSelectedWifi(10003, true);
+		edit.setSelected3g(10002, false);
+		edit.remove(10001);
+		assertFalse(edit.isSelectedWifi(10001));
+		assertTrue(edit.isSelectedWifi(10003));
+		// nothing is saved before the commit
+		assertTrue(Arrays.equals(new int[] { 10001 }, RuleStore.get(ctx).uidsWifi()));
+		assertTrue(Arrays.equals(new int[] { 10002 }, RuleStore.get(ctx).uids3g()));
+	}
+
+	public void testCommit() {
+		final SelectionEdit edit = new SelectionEdit(RuleStore.get(ctx));
+		edit.setSelectedWifi(10003, true);
+		edit.setSelectedWifi(10001, true);
+		edit.setSelected3g(10002, true);
+		// not on the table (uninstalled meanwhile)
+		edit.setSelectedWifi(10009, true);
+		edit.setSelected3g(10009, true);
+		final AppTable apps = new AppTable.Builder().add(10003, "com.example.game", "Game")
+				.add(10001, "com.example.browser", "Browser").add(10002, "com.example.clock", "Clock").build();
+		edit.commit(ctx, apps);
+		assertTrue(Arrays.equals(new int[] { 10001, 10003 }, RuleStore.get(ctx).uidsWifi()));
+		assertTrue(Arrays.equals(new int[] { 10002 }, RuleStore.get(ctx).uids3g()));
+		// the edit keeps the UIDs that were not saved
+		assertTrue(edit.isSelectedWifi(10009));
+	}
+}
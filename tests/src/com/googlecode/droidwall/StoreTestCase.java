@@ -0,0 +1,158 @@
+/**
+ * Base of the unit tests of the persistent stores.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+/**
+ * Runs each test on an empty files directory (and separate preferences), and
+ * with no store loaded: the next get() call of a store loads its file again.
+ */
+public abstract class StoreTestCase extends AndroidTestCase {
+	/** Stores kept on the files directory */
+	private static final Class<?> STORES[] = { RuleStore.class, AppCatalog.class, LabelCache.class,
+			BlockStats.class, LogRing.class };
+
+	/** context of the tested stores */
+	protected Context ctx;
+	/** files directory of the tested stores */
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = new File(getContext().getCacheDir(), "test-files");
+		delete(dir);
+		dir.mkdirs();
+		ctx = new ContextWrapper(getContext()) {
+			@Override
+			public File getFilesDir() {
+				return dir;
+			}
+
+			@Override
+			public SharedPreferences getSharedPreferences(String name, int mode) {
+				return super.getSharedPreferences("test." + name, mode);
+			}
+
+			@Override
+			public Context getApplicationContext() {
+				return this;
+			}
+		};
+		ctx.getSharedPreferences(Api.PREFS_NAME, 0).edit().clear().commit();
+		for (Class<?> store : STORES) {
+			reload(store);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Class<?> store : STORES) {
+			reload(store);
+		}
+		delete(dir);
+		super.tearDown();
+	}
+
+	/**
+	 * Forget the loaded instance of a store
+	 *
+	 * @param store
+	 *            store class
+	 * @throws Exception
+	 *             if the store has no instance field
+	 */
+	protected static void reload(Class<?> store) throws Exception {
+		final Field field = store.getDeclaredField("instance");
+		field.setAccessible(true);
+		field.set(null, null);
+	}
+
+	/**
+	 * @param name
+	 *            file name
+	 * @return file on the files directory of the stores
+	 */
+	protected File file(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Cut a file, as an interrupted write would
+	 *
+	 * @param name
+	 *            file name
+	 * @param length
+	 *            new length
+	 * @throws IOException
+	 *             on error
+	 */
+	protected void truncate(String name, long length) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file(name), "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Overwrite an int of a file
+	 *
+	 * @param name
+	 *            file name
+	 * @param pos
+	 *            position of the int
+	 * @param value
+	 *            new value
+	 * @throws IOException
+	 *             on error
+	 */
+	protected void patch(String name, long pos, int value) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file(name), "rw");
+		try {
+			raf.seek(pos);
+			raf.writeInt(value);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void delete(File file) {
+		final File files[] = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
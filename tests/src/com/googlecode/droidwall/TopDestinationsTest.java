@@ -0,0 +1,101 @@
+/**
+ * Unit tests of the top-K destination counter.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the exact counts below the capacity, the eviction of the smallest
+ * counters and the report of the top destinations.
+ */
+public class TopDestinationsTest extends TestCase {
+	public void testExact() {
+		final TopDestinations top = new TopDestinations(4, 32);
+		top.add(0x08080808);
+		top.add(0x08080808);
+		top.add(0x01020304);
+		assertEquals(3, top.total());
+		assertFalse(top.isApproximate());
+		final StringBuilder res = new StringBuilder();
+		top.appendTo(res, 8);
+		assertEquals("2 packets for 8.8.8.8, 1 packets for 1.2.3.4", res.toString());
+	}
+
+	public void testPrefix() {
+		final TopDestinations top = new TopDestinations(4, 24);
+		top.add(0x0a000001);
+		top.add(0x0a0000fe);
+		top.add(0x0a000101);
+		final StringBuilder res = new StringBuilder();
+		top.appendTo(res, 1);
+		assertEquals("2 packets for 10.0.0.0/24, 1 packets for other destinations", res.toString());
+	}
+
+	public void testEviction() {
+		final TopDestinations top = new TopDestinations(2, 32);
+		top.add(1);
+		top.add(1);
+		top.add(1);
+		top.add(2);
+		// replaces the smallest counter (2), inheriting its count
+		top.add(3);
+		assertTrue(top.isApproximate());
+		assertEquals(5, top.total());
+		final StringBuilder res = new StringBuilder();
+		top.appendTo(res, 2);
+		assertEquals("3 packets for 0.0.0.1, ~2 packets for 0.0.0.3", res.toString());
+	}
+
+	public void testHeavyHitters() {
+		final Random random = new Random(3);
+		final TopDestinations top = new TopDestinations(16, 32);
+		int heavy = 0;
+		for (int i = 0; i < 10000; i++) {
+			// one destination on every fourth packet, the rest spread out
+			if (i % 4 == 0) {
+				top.add(0x08080808);
+				heavy++;
+			} else {
+				top.add(random.nextInt(1000));
+			}
+		}
+		assertEquals(10000, top.total());
+		final StringBuilder res = new StringBuilder();
+		top.appendTo(res, 1);
+		final String report = res.toString();
+		// tracked above total / capacity, never under-estimated
+		assertTrue(report, report.matches("~?\\d+ packets for 8\\.8\\.8\\.8, \\d+ packets for other destinations"));
+		final int count = Integer.parseInt(report.substring(report.startsWith("~") ? 1 : 0, report.indexOf(' ')));
+		assertTrue(count >= heavy);
+		// the counters always add up to the total
+		assertEquals(10000 - count,
+				Integer.parseInt(report.substring(report.indexOf(", ") + 2, report.lastIndexOf(" packets"))));
+	}
+
+	public void testEmpty() {
+		final StringBuilder res = new StringBuilder();
+		new TopDestinations(4, 32).appendTo(res, 8);
+		assertEquals("", res.toString());
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Unit tests of the per-UID rule compilation.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the merging of contiguous UIDs into "--uid-owner a-b" rules.
+ */
+public class UidRulesTest extends TestCase {
+	/**
+	 * Compile the per-UID rules of a chain
+	 *
+	 * @param uids
+	 *            sorted unique UIDs
+	 * @param ranges
+	 *            true if UID ranges are supported
+	 * @return rules on the restore script format
+	 */
+	private static String compile(boolean ranges, int... uids) {
+		final RuleSet rules = new RuleSet("droidwall");
+		rules.chain("droidwall");
+		final int count = Api.appendUidRules(rules, "droidwall", uids, "RETURN", ranges);
+		assertEquals(count, rules.size());
+		final String script = rules.toRestoreScript();
+		final StringBuilder res = new StringBuilder();
+		for (String line : script.split("\n")) {
+			if (line.startsWith("-A droidwall "))
+				res.append(line.substring("-A droidwall ".length())).append('\n');
+		}
+		return res.toString();
+	}
+
+	public void testRanges() {
+		assertEquals("-m owner --uid-owner 1000 -j RETURN\n" + "-m owner --uid-owner 10001-10003 -j RETURN\n"
+				+ "-m owner --uid-owner 10005 -j RETURN\n" + "-m owner --uid-owner 10007-10008 -j RETURN\n",
+				compile(true, 1000, 10001, 10002, 10003, 10005, 10007, 10008));
+	}
+
+	public void testWithoutRanges() {
+		assertEquals("-m owner --uid-owner 10001 -j RETURN\n" + "-m owner --uid-owner 10002 -j RETURN\n",
+				compile(false, 10001, 10002));
+	}
+
+	public void testSingleRange() {
+		assertEquals("-m owner --uid-owner 0-2 -j RETURN\n", compile(true, 0, 1, 2));
+		assertEquals("-m owner --uid-owner 10001 -j RETURN\n", compile(true, 10001));
+		assertEquals("", compile(true));
+	}
+}